@@ -0,0 +1,90 @@
+package com.anaconda.skein.benchmarks;
+
+import com.anaconda.skein.IntervalTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Adding, removing, and querying range watches in an IntervalTree. **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntervalTreeBenchmark {
+  // The width of each interval, in keys
+  private static final int SPAN = 100;
+
+  @Param({"100", "1000", "10000", "100000"})
+  public int numWatchers;
+
+  private IntervalTree<Integer> tree;
+  private String[] keys;
+  private int next = 0;
+
+  static String key(int i) {
+    return String.format("key-%08d", i);
+  }
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    int keySpace = numWatchers * 10;
+    tree = new IntervalTree<Integer>();
+    for (int i = 0; i < numWatchers; i++) {
+      int begin = random.nextInt(keySpace);
+      tree.add(key(begin), key(begin + SPAN), i);
+    }
+    keys = new String[1024];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = key(random.nextInt(keySpace));
+    }
+  }
+
+  private String nextKey() {
+    next = (next + 1) & (keys.length - 1);
+    return keys[next];
+  }
+
+  @Benchmark
+  public boolean addRemove() {
+    String begin = nextKey();
+    int id = tree.add(begin, begin + "~", -1);
+    return tree.remove(id);
+  }
+
+  @Benchmark
+  public List<IntervalTree.Item<Integer>> queryKey() {
+    return tree.query(nextKey());
+  }
+
+  @Benchmark
+  public List<IntervalTree.Item<Integer>> queryRange() {
+    String begin = nextKey();
+    return tree.query(begin, begin + "~");
+  }
+
+  @Benchmark
+  public void forEachOverlapping(final Blackhole bh) {
+    tree.forEachOverlapping(nextKey(), new IntervalTree.Visitor<Integer>() {
+      public void visit(IntervalTree.Item<Integer> item) {
+        bh.consume(item);
+      }
+    });
+  }
+}
@@ -0,0 +1,127 @@
+package com.anaconda.skein.benchmarks;
+
+import com.anaconda.skein.KeyValueStore;
+import com.anaconda.skein.Msg;
+import com.google.protobuf.ByteString;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Throughput of key-value store operations, locked the same way as the
+ * application master's handlers. **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyValueStoreBenchmark {
+  // Keys removed and restored by each deleteRange
+  private static final int RANGE_SIZE = 10;
+
+  @Param({"1000", "100000"})
+  public int numKeys;
+
+  @Param({"100"})
+  public int valueSize;
+
+  private KeyValueStore store;
+  private ByteString value;
+
+  static String key(int i) {
+    return String.format("key-%08d", i);
+  }
+
+  @Setup
+  public void setUp() {
+    store = new KeyValueStore();
+    value = ByteString.copyFrom(new byte[valueSize]);
+    for (int i = 0; i < numKeys; i++) {
+      store.put(Msg.KeyValue.newBuilder().setKey(key(i)).setValue(value));
+    }
+  }
+
+  private String randomKey() {
+    return key(ThreadLocalRandom.current().nextInt(numKeys));
+  }
+
+  private Msg.KeyValue put(String key) {
+    KeyValueStore.Locked locked = store.lockKey(key);
+    try {
+      return store.put(Msg.KeyValue.newBuilder().setKey(key).setValue(value));
+    } finally {
+      locked.release();
+    }
+  }
+
+  @Benchmark
+  public Msg.KeyValue putKey() {
+    return put(randomKey());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Msg.KeyValue putKeyContended() {
+    return put(randomKey());
+  }
+
+  @Benchmark
+  public Msg.KeyValue getKey() {
+    String key = randomKey();
+    KeyValueStore.Locked locked = store.lockKey(key);
+    try {
+      return store.get(key);
+    } finally {
+      locked.release();
+    }
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Msg.KeyValue getKeyContended() {
+    return getKey();
+  }
+
+  @Benchmark
+  public List<Msg.KeyValue> getRangeSnapshot() {
+    int start = ThreadLocalRandom.current().nextInt(numKeys - RANGE_SIZE);
+    KeyValueStore.Snapshot snapshot = store.snapshot();
+    try {
+      return snapshot.range(key(start), key(start + RANGE_SIZE));
+    } finally {
+      snapshot.release();
+    }
+  }
+
+  /** Delete a range of keys, then restore them so the store keeps its size.
+   * Compare against `putKey` to separate out the cost of the puts. **/
+  @Benchmark
+  public long deleteRange() {
+    int start = ThreadLocalRandom.current().nextInt(numKeys - RANGE_SIZE);
+    long revision;
+    KeyValueStore.Locked locked = store.lockAll();
+    try {
+      revision = store.deleteRange(store.selectRange(key(start), key(start + RANGE_SIZE)));
+      for (int i = start; i < start + RANGE_SIZE; i++) {
+        store.put(Msg.KeyValue.newBuilder().setKey(key(i)).setValue(value));
+      }
+    } finally {
+      locked.release();
+    }
+    return revision;
+  }
+}
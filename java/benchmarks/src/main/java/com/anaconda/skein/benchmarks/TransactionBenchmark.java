@@ -0,0 +1,111 @@
+package com.anaconda.skein.benchmarks;
+
+import com.anaconda.skein.Conditions;
+import com.anaconda.skein.KeyValueStore;
+import com.anaconda.skein.Msg;
+import com.google.protobuf.ByteString;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Evaluating transaction conditions, as done for every transaction before
+ * its operations are applied. **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+  private static final int NUM_KEYS = 10000;
+
+  @Param({"1", "10"})
+  public int numConditions;
+
+  @Param({"100"})
+  public int valueSize;
+
+  private KeyValueStore store;
+  private List<Msg.Condition> valueConditions;
+  private List<Msg.Condition> ownerConditions;
+
+  static String key(int i) {
+    return String.format("key-%08d", i);
+  }
+
+  @Setup
+  public void setUp() {
+    store = new KeyValueStore();
+    ByteString value = ByteString.copyFrom(new byte[valueSize]);
+    Msg.ContainerInstance owner = Msg.ContainerInstance.newBuilder()
+        .setServiceName("service")
+        .setInstance(1)
+        .build();
+    for (int i = 0; i < NUM_KEYS; i++) {
+      store.put(Msg.KeyValue.newBuilder().setKey(key(i)).setValue(value).setOwner(owner));
+    }
+
+    // All conditions hold, so every one is evaluated
+    valueConditions = new ArrayList<Msg.Condition>();
+    ownerConditions = new ArrayList<Msg.Condition>();
+    for (int i = 0; i < numConditions; i++) {
+      String key = key(i * (NUM_KEYS / numConditions));
+      valueConditions.add(Msg.Condition.newBuilder()
+          .setKey(key)
+          .setField(Msg.Condition.Field.VALUE)
+          .setOperator(Msg.Condition.Operator.EQUAL)
+          .setValue(ByteString.copyFrom(new byte[valueSize]))
+          .build());
+      ownerConditions.add(Msg.Condition.newBuilder()
+          .setKey(key)
+          .setField(Msg.Condition.Field.OWNER)
+          .setOperator(Msg.Condition.Operator.EQUAL)
+          .setOwner(owner)
+          .build());
+    }
+  }
+
+  private static boolean evaluateAll(KeyValueStore.Reader reader,
+                                     List<Msg.Condition> conditions) {
+    for (Msg.Condition cond : conditions) {
+      if (!Conditions.evaluate(reader, cond)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Benchmark
+  public boolean valueLive() {
+    return evaluateAll(store.live(), valueConditions);
+  }
+
+  @Benchmark
+  public boolean ownerLive() {
+    return evaluateAll(store.live(), ownerConditions);
+  }
+
+  /** Read-only transactions evaluate against a snapshot instead. **/
+  @Benchmark
+  public boolean valueSnapshot() {
+    KeyValueStore.Snapshot snapshot = store.snapshot();
+    try {
+      return evaluateAll(snapshot, valueConditions);
+    } finally {
+      snapshot.release();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package com.anaconda.skein.benchmarks;
+
+import com.anaconda.skein.IntervalTree;
+import com.anaconda.skein.Msg;
+import com.anaconda.skein.WatchIndex;
+import com.google.protobuf.ByteString;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** Dispatching a single change to every watch on the changed key, building
+ * a response per watch as the application master does. **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WatchFanoutBenchmark {
+  // Total watches, most on keys unrelated to the change
+  @Param({"100", "10000", "100000"})
+  public int numWatchers;
+
+  // Watches on the changed key
+  @Param({"1", "100"})
+  public int numMatching;
+
+  private WatchIndex<Integer> index;
+  private Msg.KeyValue kv;
+
+  @Setup
+  public void setUp() {
+    index = new WatchIndex<Integer>();
+    int id = 0;
+    // Matching watches on the key, its prefixes, and ranges containing it
+    for (int i = 0; i < numMatching; i++) {
+      switch (i % 3) {
+        case 0:
+          index.add("app/service/0/address", "app/service/0/address\u0000", id++);
+          break;
+        case 1:
+          index.add("app/service/", "app/service0", id++);
+          break;
+        default:
+          index.add("app/service/0", "app/service/1", id++);
+          break;
+      }
+    }
+    // Unrelated prefix and range watches
+    for (int i = numMatching; i < numWatchers; i++) {
+      String prefix = String.format("other/%08d/", i);
+      if (i % 2 == 0) {
+        index.add(prefix, prefix.substring(0, prefix.length() - 1) + "0", id++);
+      } else {
+        index.add(prefix + "a", prefix + "b", id++);
+      }
+    }
+    kv = Msg.KeyValue.newBuilder()
+        .setKey("app/service/0/address")
+        .setValue(ByteString.copyFromUtf8("host:8080"))
+        .setModRevision(1)
+        .build();
+  }
+
+  @Benchmark
+  public void fanout(final Blackhole bh) {
+    final Msg.WatchResponse.Builder builder = Msg.WatchResponse.newBuilder()
+        .setType(Msg.WatchResponse.Type.PUT)
+        .addEvent(kv);
+    index.forEachOverlapping(kv.getKey(), new IntervalTree.Visitor<Integer>() {
+      public void visit(IntervalTree.Item<Integer> item) {
+        bh.consume(builder.setWatchId(item.getId()).build());
+      }
+    });
+  }
+}
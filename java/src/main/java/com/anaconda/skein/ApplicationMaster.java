@@ -4,19 +4,21 @@ import com.google.common.base.Function;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.AtomicDouble;
-import com.google.protobuf.ByteString;
 
 import io.grpc.Server;
+import io.grpc.ServerInterceptors;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.handler.ssl.ClientAuth;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslProvider;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataOutputBuffer;
@@ -26,6 +28,7 @@ import org.apache.hadoop.security.token.Token;
 import org.apache.hadoop.util.ShutdownHookManager;
 import org.apache.hadoop.yarn.api.ApplicationConstants.Environment;
 import org.apache.hadoop.yarn.api.protocolrecords.AllocateResponse;
+import org.apache.hadoop.yarn.api.protocolrecords.RegisterApplicationMasterResponse;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
 import org.apache.hadoop.yarn.api.records.Container;
 import org.apache.hadoop.yarn.api.records.ContainerExitStatus;
@@ -33,14 +36,16 @@ import org.apache.hadoop.yarn.api.records.ContainerId;
 import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
 import org.apache.hadoop.yarn.api.records.ContainerStatus;
 import org.apache.hadoop.yarn.api.records.FinalApplicationStatus;
+import org.apache.hadoop.yarn.api.records.NodeId;
 import org.apache.hadoop.yarn.api.records.Priority;
 import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.api.records.impl.pb.ContainerLaunchContextPBImpl;
 import org.apache.hadoop.yarn.client.api.AMRMClient.ContainerRequest;
 import org.apache.hadoop.yarn.client.api.AMRMClient;
-import org.apache.hadoop.yarn.client.api.NMClient;
 import org.apache.hadoop.yarn.client.api.YarnClient;
 import org.apache.hadoop.yarn.conf.YarnConfiguration;
 import org.apache.hadoop.yarn.exceptions.YarnException;
+import org.apache.hadoop.yarn.proto.YarnProtos.ContainerLaunchContextProto;
 import org.apache.hadoop.yarn.security.AMRMTokenIdentifier;
 import org.apache.hadoop.yarn.util.ConverterUtils;
 import org.apache.hadoop.yarn.webapp.util.WebAppUtils;
@@ -52,6 +57,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -60,31 +67,42 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class ApplicationMaster {
 
   private static final Logger LOG = LoggerFactory.getLogger(ApplicationMaster.class);
 
-  // One for the boss, one for the worker. Should be fine under normal loads.
-  private static final int NUM_EVENT_LOOP_GROUP_THREADS = 2;
+  // The default maximum number of results in each GetRangeStream response.
+  private static final int DEFAULT_RANGE_CHUNK_SIZE = 1000;
+  // A soft bound on the size of each GetRangeStream response, well below
+  // the default gRPC maximum message size.
+  private static final int RANGE_CHUNK_BYTES = 1024 * 1024;
 
-  // The thread bounds for handling requests. Since we use locking at some
-  // level, we can only get so much parallelism in *handling* requests.
-  private static final int MIN_GRPC_EXECUTOR_THREADS = 2;
-  private static final int MAX_GRPC_EXECUTOR_THREADS = 10;
+  // The maximum number of messages queued per watch stream before the
+  // overflow policy of the watch being notified is applied.
+  private static final int WATCH_QUEUE_SIZE = 1024;
 
-  // The thread bounds for launching containers.
-  private static final int MIN_EXECUTOR_THREADS = 0;
-  private static final int MAX_EXECUTOR_THREADS = 25;
+  // The maximum number of nodes containers are launched on concurrently.
+  private static final int MAX_LAUNCHER_THREADS = 25;
+
+  // How often key leases are checked for expiry. Leases expire at most this
+  // long after their time-to-live.
+  private static final long LEASE_TICK_MILLIS = 50;
 
   // Exit codes.
   private static final int EXIT_OK = 0;
@@ -104,6 +122,13 @@ public class ApplicationMaster {
       )
   );
   private final long pendingHeartbeat = Math.min(1000, idleHeartbeat);
+  // The interval right after requests are made or containers change state.
+  // It doubles on every quiet heartbeat, up to the intervals above.
+  private final long minHeartbeat = Math.min(100, pendingHeartbeat);
+
+  // Notified to heartbeat early, guarding heartbeatRequested
+  private final Object heartbeatLock = new Object();
+  private boolean heartbeatRequested = false;
 
   private Model.ApplicationSpec spec;
   private ByteBuffer tokens;
@@ -115,9 +140,38 @@ public class ApplicationMaster {
   private ContainerId containerId;
   private Resource amResources;
 
-  private final TreeMap<String, Msg.KeyValue.Builder> keyValueStore =
-      new TreeMap<String, Msg.KeyValue.Builder>();
-  private final IntervalTree<Watcher> intervalTree = new IntervalTree<Watcher>();
+  private final KeyValueStore keyValueStore = new KeyValueStore();
+  // Whether a later attempt may recover this one's state
+  private boolean recoverable;
+  // Persists the key-value store for later attempts, null if not recoverable
+  private KeyValueLog keyValueLog;
+  // Set when service state has changed since it was last persisted
+  private final AtomicBoolean serviceStateDirty = new AtomicBoolean(false);
+  private final WatchIndex<Watcher> watchIndex = new WatchIndex<Watcher>();
+  // Guards watchIndex. This is separate from the key-value store locks so
+  // that writers to unrelated keys can query watchers concurrently.
+  private final ReentrantReadWriteLock watchLock = new ReentrantReadWriteLock();
+  // Expiry and revocation remove a lease here without any store lock, then
+  // delete its keys under the store's exclusive lock (`deleteLeasedKeys`).
+  // Puts check their lease exists while holding the key's lock, which the
+  // exclusive lock excludes. A put either sees the lease removed and fails,
+  // or attaches its key before the deletion, which then removes it too.
+  private final Leases leases = new Leases(LEASE_TICK_MILLIS, monotonicMillis());
+
+  // Server-side metrics, served at /metrics by the web UI
+  private final Metrics metrics = new Metrics();
+  private final Metrics.Histogram allocateDuration = metrics.durationHistogram(
+      "skein_allocate_duration_seconds",
+      "Time spent in allocate heartbeats to the resource manager");
+  private final Metrics.Histogram newContainerDuration = metrics.durationHistogram(
+      "skein_container_allocated_duration_seconds",
+      "Time spent handling each newly allocated container");
+  private final Metrics.Histogram finishContainerDuration = metrics.durationHistogram(
+      "skein_container_finish_duration_seconds",
+      "Time spent finishing each container, including waiting for locks");
+  private final Metrics.Histogram watchQueueDepth = metrics.countHistogram(
+      "skein_watch_queue_depth",
+      "Number of messages already queued on a watch stream as each is queued");
 
   private final Map<String, ServiceTracker> services =
       new HashMap<String, ServiceTracker>();
@@ -130,18 +184,20 @@ public class ApplicationMaster {
   private final AtomicInteger totalVcores = new AtomicInteger(0);
   private final long startTimeMillis = System.currentTimeMillis();
 
-  private final TreeMap<Priority, ServiceTracker> priorities =
-      new TreeMap<Priority, ServiceTracker>();
-  private int nextPriority = 1;
+  // Each service's requests share a single priority, fixed at startup
+  private final Map<Priority, ServiceTracker> priorities =
+      new HashMap<Priority, ServiceTracker>();
 
   private Server grpcServer;
+  private ThreadPoolExecutor grpcExecutor;
+  private ScheduledExecutorService watchBatchExecutor;
+  private ScheduledExecutorService leaseExecutor;
   private WebUI ui;
   private String hostname;
 
   private FileSystem fs;
   private AMRMClient<ContainerRequest> rmClient;
-  private NMClient nmClient;
-  private ThreadPoolExecutor containerLaunchExecutor;
+  private ContainerLauncher containerLauncher;
   private Thread allocatorThread;
   private Process driverProcess;
   private Thread driverThread;
@@ -176,19 +232,24 @@ public class ApplicationMaster {
       LOG.error("Usage: <command> applicationDirectory");
       System.exit(1);
     }
-    appDir = new Path(args[0]);
     String appIdEnv = System.getenv("SKEIN_APPLICATION_ID");
     if (appIdEnv == null) {
       LOG.error("Couldn't find 'SKEIN_APPLICATION_ID' envar");
       System.exit(1);
     }
-    appId = Utils.appIdFromString(appIdEnv);
-
-    containerId = ConverterUtils.toContainerId(
-        System.getenv(Environment.CONTAINER_ID.name())
-    );
+    init(new Path(args[0]),
+         Utils.appIdFromString(appIdEnv),
+         ConverterUtils.toContainerId(System.getenv(Environment.CONTAINER_ID.name())),
+         System.getenv(Environment.NM_HOST.name()));
+  }
 
-    hostname = System.getenv(Environment.NM_HOST.name());
+  // Initialize without reading the container environment, used directly by
+  // the in-process test harness.
+  void init(Path appDir, ApplicationId appId, ContainerId containerId, String hostname) {
+    this.appDir = appDir;
+    this.appId = appId;
+    this.containerId = containerId;
+    this.hostname = hostname;
   }
 
   public int run() {
@@ -202,12 +263,20 @@ public class ApplicationMaster {
       registerShutdownHook();
 
       startClients();
+      registerMetrics();
+      startKeyValueLog();
+      // Read before serving any requests, so clients never see stale keys
+      Msg.ApplicationMasterState state = recoverable ? readServiceState() : null;
+      recoverKeys(state);
+      startLeaseExpiry();
       startServer();
+      writeAddress();
       startUI();
 
       LOG.info("Registering application with resource manager");
+      RegisterApplicationMasterResponse registration;
       synchronized (shutdownLock) {
-        rmClient.registerApplicationMaster(
+        registration = rmClient.registerApplicationMaster(
             hostname, grpcServer.getPort(), ui.getURI().toString()
         );
         appRegistered = true;
@@ -217,10 +286,16 @@ public class ApplicationMaster {
       // need to do this here, after the application is already registered
       lookupAppMasterResources();
 
-      // Start services
+      // Recover any state from previous attempts, then start services
+      boolean recovered = recoverServices(
+          state, registration.getContainersFromPreviousAttempts());
       for (ServiceTracker tracker: services.values()) {
         tracker.initialize();
       }
+      if (recovered) {
+        // Services may have finished or failed during the restart
+        maybeShutdown();
+      }
 
       // Start allocator loop
       startAllocator();
@@ -239,15 +314,24 @@ public class ApplicationMaster {
     return exitCode;
   }
 
-  private void loadApplicationSpec() throws Exception {
-    spec = MsgUtils.readApplicationSpec(
+  Model.ApplicationSpec readApplicationSpec() throws IOException {
+    return MsgUtils.readApplicationSpec(
         Msg.ApplicationSpec.parseFrom(new FileInputStream(".skein.proto")));
+  }
+
+  private void loadApplicationSpec() throws Exception {
+    spec = readApplicationSpec();
     spec.validate();
 
-    // Setup service trackers
-    for (Map.Entry<String, Model.Service> entry : spec.getServices().entrySet()) {
-      services.put(entry.getKey(),
-          new ServiceTracker(entry.getKey(), entry.getValue()));
+    // Setup service trackers, numbering priorities in service name order
+    int nextPriority = 1;
+    for (Map.Entry<String, Model.Service> entry
+         : new TreeMap<String, Model.Service>(spec.getServices()).entrySet()) {
+      Priority priority = Priority.newInstance(nextPriority++);
+      ServiceTracker tracker =
+          new ServiceTracker(entry.getKey(), entry.getValue(), priority);
+      services.put(entry.getKey(), tracker);
+      priorities.put(priority, tracker);
     }
 
     // Setup dependents
@@ -275,46 +359,345 @@ public class ApplicationMaster {
     tokens = ByteBuffer.wrap(dob.getData(), 0, dob.getLength());
   }
 
+  // The methods below are package-private so the test harness can replace
+  // the resource manager and node managers with in-process stand-ins.
+
+  AMRMClient<ContainerRequest> createRMClient() {
+    return AMRMClient.createAMRMClient();
+  }
+
+  ContainerLauncher createContainerLauncher() {
+    return new ContainerLauncher(conf, MAX_LAUNCHER_THREADS, metrics);
+  }
+
+  Metrics getMetrics() {
+    return metrics;
+  }
+
   private void startClients() throws IOException {
     fs = FileSystem.get(conf);
 
-    rmClient = AMRMClient.createAMRMClient();
+    rmClient = createRMClient();
     rmClient.init(conf);
     rmClient.start();
 
-    nmClient = NMClient.createNMClient();
-    nmClient.init(conf);
-    nmClient.start();
+    containerLauncher = createContainerLauncher();
+  }
 
-    containerLaunchExecutor = Utils.newThreadPoolExecutor(
-        "container-launch-executor",
-        MIN_EXECUTOR_THREADS,
-        MAX_EXECUTOR_THREADS,
-        true);
+  // Stop launching containers, and close all node manager connections
+  private void stopContainerLauncher() {
+    if (containerLauncher != null) {
+      containerLauncher.stop();
+    }
   }
 
-  private void startServer() throws IOException {
-    // Setup and start the server
-    SslContext sslContext = GrpcSslContexts
+  private void registerMetrics() {
+    keyValueStore.registerMetrics(metrics);
+    metrics.gauge("skein_watches", "Number of active watches",
+        new Metrics.Gauge() {
+          public double getValue() {
+            watchLock.readLock().lock();
+            try {
+              return watchIndex.size();
+            } finally {
+              watchLock.readLock().unlock();
+            }
+          }
+        });
+    metrics.gauge("skein_leases", "Number of live key leases",
+        new Metrics.Gauge() {
+          public double getValue() {
+            return leases.size();
+          }
+        });
+    metrics.gauge("skein_containers_memory_mb", "Memory of all running containers",
+        new Metrics.Gauge() {
+          public double getValue() {
+            return totalMemory.get();
+          }
+        });
+    metrics.gauge("skein_containers_vcores", "Virtual cores of all running containers",
+        new Metrics.Gauge() {
+          public double getValue() {
+            return totalVcores.get();
+          }
+        });
+  }
+
+  private int getMaxAttempts() {
+    return Math.min(
+        spec.getMaxAttempts(),
+        conf.getInt(YarnConfiguration.RM_AM_MAX_ATTEMPTS,
+                    YarnConfiguration.DEFAULT_RM_AM_MAX_ATTEMPTS)
+    );
+  }
+
+  private void startKeyValueLog() throws IOException {
+    // Only needed if a later attempt may recover the store
+    recoverable = getMaxAttempts() > 1;
+    if (!recoverable) {
+      return;
+    }
+    keyValueLog = new KeyValueLog(fs, new Path(appDir, "kv"), keyValueStore);
+    long revision = keyValueLog.recover();
+    if (revision > 0) {
+      LOG.info("Recovered {} keys at revision {} from a previous attempt",
+               keyValueStore.size(), revision);
+    }
+    keyValueLog.start();
+  }
+
+  private void stopKeyValueLog() {
+    if (keyValueLog != null) {
+      keyValueLog.close();
+    }
+  }
+
+  // Wait for all changes to the key-value store so far to be persisted.
+  // Returns false after failing the call if they can't be, as the changes
+  // would be lost if this attempt failed.
+  private boolean awaitPersisted(StreamObserver<?> resp) {
+    if (keyValueLog != null) {
+      try {
+        keyValueLog.sync(keyValueStore.getRevision());
+      } catch (IOException exc) {
+        resp.onError(Status.UNAVAILABLE
+            .withDescription("Change applied, but failed to persist it: "
+                             + exc.getMessage())
+            .withCause(exc)
+            .asRuntimeException());
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long monotonicMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+  private void startLeaseExpiry() {
+    leaseExecutor = Executors.newSingleThreadScheduledExecutor(
+        new Utils.CustomThreadFactory("lease-expiry", true));
+    leaseExecutor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          List<Long> expired = leases.expire(monotonicMillis());
+          if (!expired.isEmpty()) {
+            LOG.debug("Expired {} leases", expired.size());
+            deleteLeasedKeys(expired);
+          }
+        } catch (Throwable exc) {
+          // Raising would cancel all later runs
+          LOG.error("Failed to expire leases", exc);
+        }
+      }
+    }, LEASE_TICK_MILLIS, LEASE_TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  // Delete all keys attached to leases that were already removed, returning
+  // the store's revision afterwards.
+  private long deleteLeasedKeys(List<Long> ids) {
+    KeyValueStore.Locked locked = keyValueStore.lockAll();
+    try {
+      for (long id : ids) {
+        keyValueStore.deleteLeased(id);
+      }
+      return keyValueStore.getRevision();
+    } finally {
+      locked.release();
+    }
+  }
+
+  private Path serviceStatePath() {
+    return new Path(appDir, "services");
+  }
+
+  private Msg.ApplicationMasterState readServiceState() throws IOException {
+    Path path = serviceStatePath();
+    if (!fs.exists(path)) {
+      // The temporary file is only missing its rename if the write was
+      // interrupted after the previous state was deleted
+      path = path.suffix(".tmp");
+      if (!fs.exists(path)) {
+        return null;
+      }
+    }
+    FSDataInputStream in = fs.open(path);
+    try {
+      return Msg.ApplicationMasterState.parseFrom(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void writeServiceState() throws IOException {
+    Msg.ApplicationMasterState.Builder builder = Msg.ApplicationMasterState.newBuilder();
+    for (ServiceTracker tracker : services.values()) {
+      builder.addServices(tracker.toServiceState());
+    }
+    replaceFile(serviceStatePath(), builder.build().toByteArray());
+  }
+
+  // Replace a file in the application directory, writing to a temporary file
+  // first so readers never see a partial write
+  private void replaceFile(Path path, byte[] contents) throws IOException {
+    Path tmp = path.suffix(".tmp");
+    FSDataOutputStream out = fs.create(tmp, true);
+    try {
+      out.write(contents);
+    } finally {
+      out.close();
+    }
+    fs.delete(path, false);
+    if (!fs.rename(tmp, path)) {
+      throw new IOException("Failed to rename " + tmp);
+    }
+  }
+
+  private Path addressPath() {
+    return new Path(appDir, "address");
+  }
+
+  // Publish the gRPC server's address in the application directory. Every
+  // attempt writes its own, so containers adopted from a previous attempt
+  // (whose environment still has that attempt's address) can find it here.
+  private void writeAddress() throws IOException {
+    replaceFile(addressPath(),
+                (hostname + ":" + grpcServer.getPort()).getBytes(StandardCharsets.UTF_8));
+  }
+
+  // Persist service state if it changed. Called once per allocation cycle,
+  // so bursts of changes are written together.
+  private void maybeWriteServiceState() {
+    if (recoverable && serviceStateDirty.getAndSet(false)) {
+      try {
+        writeServiceState();
+      } catch (IOException exc) {
+        LOG.warn("Failed to persist service state, will retry", exc);
+        serviceStateDirty.set(true);
+      }
+    }
+  }
+
+  // Remove keys recovered from the key-value log that can't still be valid.
+  // Leases don't survive a restart, so leased keys are removed. Owned keys
+  // are kept only if their owner was running when the service state was
+  // last saved; those whose containers turn out to be lost are removed once
+  // containers are recovered. Deleted in a single revision.
+  private void recoverKeys(Msg.ApplicationMasterState state) {
+    Set<Msg.ContainerInstance> running = new HashSet<Msg.ContainerInstance>();
+    if (state != null) {
+      for (Msg.ServiceState serviceState : state.getServicesList()) {
+        if (!services.containsKey(serviceState.getName())) {
+          continue;
+        }
+        List<Msg.ContainerState> containerStates = serviceState.getContainersList();
+        for (int i = 0; i < containerStates.size(); i++) {
+          if (containerStates.get(i).getContainer().getState()
+              == Msg.Container.State.RUNNING) {
+            running.add(Msg.ContainerInstance.newBuilder()
+                .setServiceName(serviceState.getName())
+                .setInstance(i)
+                .build());
+          }
+        }
+      }
+    }
+
+    KeyValueStore.Locked locked = keyValueStore.lockAll();
+    try {
+      Set<String> stale = new HashSet<String>();
+      for (Msg.KeyValue kv : keyValueStore.live().range("", "")) {
+        if (kv.getLease() != 0 || (kv.hasOwner() && !running.contains(kv.getOwner()))) {
+          stale.add(kv.getKey());
+        }
+      }
+      if (!stale.isEmpty()) {
+        keyValueStore.deleteKeys(stale);
+        LOG.info("Removed {} keys left by a previous attempt", stale.size());
+      }
+    } finally {
+      locked.release();
+    }
+  }
+
+  // Returns true if services were recovered from a previous attempt
+  private boolean recoverServices(Msg.ApplicationMasterState state,
+                                  List<Container> previous) {
+    Map<ContainerId, Container> alive = new HashMap<ContainerId, Container>();
+    for (Container c : previous) {
+      alive.put(c.getId(), c);
+    }
+
+    List<Model.Container> lost = new ArrayList<Model.Container>();
+    if (state != null) {
+      LOG.info("Recovering services from a previous attempt");
+      for (Msg.ServiceState serviceState : state.getServicesList()) {
+        ServiceTracker tracker = services.get(serviceState.getName());
+        if (tracker != null) {
+          lost.addAll(tracker.recover(serviceState, alive));
+        }
+      }
+      LOG.info("Adopted {} of {} containers from previous attempts",
+               previous.size() - alive.size(), previous.size());
+    }
+
+    // Release any containers we have no record of
+    for (ContainerId id : alive.keySet()) {
+      LOG.info("Releasing unknown {} from a previous attempt", id);
+      rmClient.releaseAssignedContainer(id);
+    }
+
+    // Keys owned by containers that were lost are removed, the rest are
+    // reattached to their owners
+    if (!lost.isEmpty()) {
+      KeyValueStore.Locked locked = keyValueStore.lockAll();
+      try {
+        for (Model.Container container : lost) {
+          keyValueStore.deleteOwned(Msg.ContainerInstance.newBuilder()
+              .setServiceName(container.getServiceName())
+              .setInstance(container.getInstance())
+              .build());
+        }
+      } finally {
+        locked.release();
+      }
+    }
+    return state != null;
+  }
+
+  SslContext newServerSslContext() throws IOException {
+    return GrpcSslContexts
         .forServer(new File(".skein.crt"), new File(".skein.pem"))
         .trustManager(new File(".skein.crt"))
         .clientAuth(ClientAuth.REQUIRE)
         .sslProvider(SslProvider.OPENSSL)
         .build();
+  }
 
-    NioEventLoopGroup eg = new NioEventLoopGroup(NUM_EVENT_LOOP_GROUP_THREADS);
-    ThreadPoolExecutor executor = Utils.newThreadPoolExecutor(
-        "grpc-executor",
-        MIN_GRPC_EXECUTOR_THREADS,
-        MAX_GRPC_EXECUTOR_THREADS,
-        true);
+  private void startServer() throws IOException {
+    // Setup and start the server
+    SslContext sslContext = newServerSslContext();
+
+    GrpcServerOptions options = GrpcServerOptions.fromSystemProperties();
+    LOG.info("Starting gRPC server with {}", options);
+    keyValueStore.addListener(new KeyValueStore.Listener() {
+      @Override
+      public void append(List<KeyValueStore.Event> events) {
+        notifyWatchers(events);
+      }
+    });
+    grpcExecutor = options.newExecutor();
+    watchBatchExecutor = Executors.newSingleThreadScheduledExecutor(
+        new Utils.CustomThreadFactory("watch-batch-executor", true));
 
-    grpcServer = NettyServerBuilder.forPort(0)
+    grpcServer = options.configure(NettyServerBuilder.forPort(0))
         .sslContext(sslContext)
-        .addService(new AppMasterImpl())
-        .workerEventLoopGroup(eg)
-        .bossEventLoopGroup(eg)
-        .executor(executor)
+        .addService(ServerInterceptors.intercept(
+            new AppMasterImpl(), metrics.serverInterceptor()))
+        .executor(grpcExecutor)
         .build()
         .start();
 
@@ -368,7 +751,7 @@ public class ApplicationMaster {
     ui = new WebUI(0, appId.toString(), spec.getName(), userName,
                     amLogAddress, hasDriver, progress, totalMemory,
                     totalVcores, startTimeMillis, keyValueStore,
-                    serviceContexts, allowedUsers, conf, false);
+                    serviceContexts, metrics, allowedUsers, conf, false);
 
     ui.start();
 
@@ -384,23 +767,25 @@ public class ApplicationMaster {
 
   private void startAllocator() {
     LOG.debug("Starting allocator thread");
-    LOG.debug("Heartbeat intervals [idle: {} ms, pending: {} ms]",
-              idleHeartbeat, pendingHeartbeat);
+    LOG.debug("Heartbeat intervals [idle: {} ms, pending: {} ms, min: {} ms]",
+              idleHeartbeat, pendingHeartbeat, minHeartbeat);
     allocatorThread =
       new Thread() {
         public void run() {
+          long interval = minHeartbeat;
           while (true) {
             try {
               long start = System.currentTimeMillis();
-              allocate();
+              boolean changed = allocate();
+              maybeWriteServiceState();
               // Check after allocation to cut sleep time from shutdown
               if (appFinished) {
                 break;
               }
-              long interval = (priorities.size() > 0) ? pendingHeartbeat : idleHeartbeat;
-              long left = interval - (System.currentTimeMillis() - start);
-              if (left > 0) {
-                Thread.sleep(left);
+              long max = hasPendingRequests() ? pendingHeartbeat : idleHeartbeat;
+              interval = changed ? minHeartbeat : Math.min(2 * interval, max);
+              if (awaitHeartbeat(start, interval)) {
+                interval = minHeartbeat;
               }
             } catch (InterruptedException exc) {
               break;
@@ -418,6 +803,33 @@ public class ApplicationMaster {
     allocatorThread.start();
   }
 
+  // Wait until `interval` after `start`, or `minHeartbeat` after it if a
+  // heartbeat is requested in the meantime. Returns true if one was.
+  private boolean awaitHeartbeat(long start, long interval) throws InterruptedException {
+    synchronized (heartbeatLock) {
+      while (true) {
+        long deadline = start + (heartbeatRequested ? minHeartbeat : interval);
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          break;
+        }
+        heartbeatLock.wait(left);
+      }
+      boolean requested = heartbeatRequested;
+      heartbeatRequested = false;
+      return requested;
+    }
+  }
+
+  // Heartbeat soon, so new requests and releases reach the RM without
+  // waiting out the current interval.
+  private void requestHeartbeat() {
+    synchronized (heartbeatLock) {
+      heartbeatRequested = true;
+      heartbeatLock.notifyAll();
+    }
+  }
+
   private void stopAllocator() {
     if (allocatorThread != null && !Thread.currentThread().equals(allocatorThread)) {
       LOG.debug("Stopping allocator thread");
@@ -489,12 +901,8 @@ public class ApplicationMaster {
     }
   }
 
-  private void runOnExit() {
-    int maxAttempts = Math.min(
-        spec.getMaxAttempts(),
-        conf.getInt(YarnConfiguration.RM_AM_MAX_ATTEMPTS,
-                    YarnConfiguration.DEFAULT_RM_AM_MAX_ATTEMPTS)
-    );
+  void runOnExit() {
+    int maxAttempts = getMaxAttempts();
     int currentAttempt = containerId.getApplicationAttemptId().getAttemptId();
 
     synchronized (shutdownLock) {
@@ -522,6 +930,7 @@ public class ApplicationMaster {
           }
         }
         // Attempt to delete the app directory
+        stopKeyValueLog();
         if (fs == null) {
           LOG.warn("Shutdown before filesystem connected, failed to delete "
                   + "application directory {}", appDir);
@@ -541,9 +950,11 @@ public class ApplicationMaster {
     }
     stopUI();
     stopServer();
+    stopContainerLauncher();
+    stopKeyValueLog();
   }
 
-  private void registerShutdownHook() {
+  void registerShutdownHook() {
     // We register with a higher priority than FileSystem to ensure that the
     // hdfs client is still active
     ShutdownHookManager.get().addShutdownHook(
@@ -596,60 +1007,55 @@ public class ApplicationMaster {
     }
   }
 
-  // Due to how YARN container allocation works, sometimes duplicate requests
-  // can be sent. This can be avoided if all outstanding requests are of a
-  // different priority. To handle this, we keep a *sorted* map of all
-  // outstanding priorities -> the service tracker that they are requesting. We
-  // also keep an integer of the next priority to use to speed up allocating a
-  // new ContainerRequest. This layout provides the following benefits:
+  // Each service requests all its containers with a single priority, so the
+  // RM keeps at most one row per service in its request table, however many
+  // containers are requested over the application's lifetime. This provides
+  // the following benefits:
   //
-  // - Older requests get lower priorities. Since we always want FIFO for
-  // requests, this makes sense.
+  // - The priority space is bounded by the number of services, so heartbeats
+  // and RM scheduling don't slow down with churn.
   //
-  // - The max priority is bounded by the maximum outstanding requests, meaning
-  // for realistic workloads this should never grow unbounded.
-  //
-  // - We get O(1) lookup of returned requests. Until recently, returned
-  // containers had no easy way to match them to their request - you had to
-  // compare the resources and understand the rounding strategy. By always
-  // matching priority -> request, this makes the pairing easy. As a safety
+  // - We get O(1) lookup of returned requests. Returned containers have no
+  // easy way to match them to their request - you'd have to compare the
+  // resources and understand the rounding strategy. All requests of a
+  // service are interchangeable, so matching priority -> service and then
+  // taking its oldest outstanding request makes the pairing easy. As a safety
   // check, we also check that the resources match.
-  private Priority newPriority(ServiceTracker tracker) {
-    synchronized (priorities) {
-      Priority priority = Priority.newInstance(nextPriority);
-      nextPriority += 1;
-      priorities.put(priority, tracker);
-      return priority;
-    }
-  }
-
+  //
+  // The RM may allocate a few more containers than needed if requests are
+  // canceled before it sees the update, these are released on arrival.
   private ServiceTracker trackerFromPriority(Priority priority) {
-    synchronized (priorities) {
-      return priorities.get(priority);
-    }
+    return priorities.get(priority);
   }
 
-  private void removePriority(Priority priority) {
-    synchronized (priorities) {
-      priorities.remove(priority);
+  // Offer capacity released by one service to the pending requests of others.
+  // Called from finishContainer, which holds the store's exclusive lock, so
+  // two trackers are never locked in opposite orders.
+  private void offerReleased(ServiceTracker from, Model.Container container) {
+    for (ServiceTracker tracker : services.values()) {
+      if (tracker != from
+          && tracker.preferNode(container.getYarnNodeId(), container.getResources())) {
+        return;
+      }
     }
   }
 
-  private void updatePriorities() {
-    // Store the next priority for fast access between allocation cycles.
-    synchronized (priorities) {
-      if (priorities.size() > 0) {
-        nextPriority = priorities.lastKey().getPriority() + 1;
-      } else {
-        nextPriority = 1;
+  private boolean hasPendingRequests() {
+    for (ServiceTracker tracker : services.values()) {
+      if (tracker.getNumRequested() > 0) {
+        return true;
       }
     }
+    return false;
   }
 
-  private void allocate() throws IOException, YarnException {
+  // Returns true if any containers were allocated or completed
+  private boolean allocate() throws IOException, YarnException {
     // If the user hasn't set the progress, set it to started but not far along.
     float prog = progress.floatValue();
+    long start = System.nanoTime();
     AllocateResponse resp = rmClient.allocate(prog < 0 ? 0.1f : prog);
+    allocateDuration.observeSince(start);
 
     List<Container> allocated = resp.getAllocatedContainers();
     List<ContainerStatus> completed = resp.getCompletedContainersStatuses();
@@ -662,9 +1068,7 @@ public class ApplicationMaster {
       handleCompleted(completed);
     }
 
-    if (allocated.size() > 0 || completed.size() > 0) {
-      updatePriorities();
-    }
+    return allocated.size() > 0 || completed.size() > 0;
   }
 
   private void handleAllocated(List<Container> newContainers) {
@@ -673,7 +1077,9 @@ public class ApplicationMaster {
     for (Container c : newContainers) {
       ServiceTracker tracker = trackerFromPriority(c.getPriority());
       if (tracker != null) {
+        long start = System.nanoTime();
         tracker.handleNewContainer(c);
+        newContainerDuration.observeSince(start);
       } else {
         LOG.debug("Releasing {} with priority {} due to canceled request",
                   c.getId(), c.getPriority());
@@ -753,16 +1159,23 @@ public class ApplicationMaster {
     }
   }
 
-  private void lookupAppMasterResources() throws IOException, YarnException {
-    LOG.debug("Determining resources available for application master");
+  Resource getAppMasterResources() throws IOException, YarnException {
     YarnClient yarnClient = YarnClient.createYarnClient();
     yarnClient.init(conf);
     yarnClient.start();
-    amResources = yarnClient
-      .getApplicationReport(appId)
-      .getApplicationResourceUsageReport()
-      .getUsedResources();
-    yarnClient.stop();
+    try {
+      return yarnClient
+        .getApplicationReport(appId)
+        .getApplicationResourceUsageReport()
+        .getUsedResources();
+    } finally {
+      yarnClient.stop();
+    }
+  }
+
+  private void lookupAppMasterResources() throws IOException, YarnException {
+    LOG.debug("Determining resources available for application master");
+    amResources = getAppMasterResources();
 
     totalMemory.addAndGet(amResources.getMemory());
     totalVcores.addAndGet(amResources.getVirtualCores());
@@ -771,6 +1184,7 @@ public class ApplicationMaster {
   private void updateServiceEnvironment(Map<String, String> env, Resource resource,
       String containerId) {
     env.put("SKEIN_APPMASTER_ADDRESS", hostname + ":" + grpcServer.getPort());
+    env.put("SKEIN_APPMASTER_ADDRESS_FILE", fs.makeQualified(addressPath()).toString());
     env.put("SKEIN_APPLICATION_ID", appId.toString());
     env.put("SKEIN_RESOURCE_VCORES", String.valueOf(resource.getVirtualCores()));
     env.put("SKEIN_RESOURCE_MEMORY", String.valueOf(resource.getMemory()));
@@ -779,21 +1193,176 @@ public class ApplicationMaster {
     }
   }
 
+  private void removeFromIndex(List<Integer> watchIds) {
+    watchLock.writeLock().lock();
+    try {
+      for (int watchId : watchIds) {
+        watchIndex.remove(watchId);
+      }
+    } finally {
+      watchLock.writeLock().unlock();
+    }
+  }
+
+  // Notifies matching watchers in place while holding the watch read lock,
+  // so no intermediate list of watchers is built. Sends only enqueue, but may
+  // cancel watches on overflow; these are removed from the index once the
+  // read lock is released.
+  private abstract class WatchNotifier implements IntervalTree.Visitor<Watcher> {
+    private List<Integer> canceled = null;
+
+    protected void send(IntervalTree.Item<Watcher> item, Msg.WatchResponse msg) {
+      List<Integer> ids = item.getValue().trySend(item.getId(), msg);
+      if (!ids.isEmpty()) {
+        if (canceled == null) {
+          canceled = new ArrayList<Integer>();
+        }
+        canceled.addAll(ids);
+      }
+    }
+
+    // Notify all watchers containing the key.
+    public void notify(String key) {
+      watchLock.readLock().lock();
+      try {
+        watchIndex.forEachOverlapping(key, this);
+      } finally {
+        watchLock.readLock().unlock();
+      }
+      finish();
+    }
+
+    // Notify all watchers intersecting with [start, end] (note inclusive end).
+    public void notify(String start, String end) {
+      watchLock.readLock().lock();
+      try {
+        watchIndex.forEachOverlapping(start, end, this);
+      } finally {
+        watchLock.readLock().unlock();
+      }
+      finish();
+    }
+
+    private void finish() {
+      if (canceled != null) {
+        removeFromIndex(canceled);
+      }
+    }
+  }
+
+  // Notify watchers of the given type of a single-key event.
+  private void notifyWatchers(String key, final Msg.WatchResponse.Type type,
+                              final Msg.KeyValue kv) {
+    new WatchNotifier() {
+      private final Msg.WatchResponse.Builder wrBuilder =
+          Msg.WatchResponse.newBuilder().setType(type).addEvent(kv);
+
+      @Override
+      public void visit(IntervalTree.Item<Watcher> item) {
+        if (item.getValue().wants(type, kv.getModRevision())) {
+          send(item, wrBuilder.setWatchId(item.getId()).build());
+        }
+      }
+    }.notify(key);
+  }
+
+  // Notify watchers of the given type of events for several keys at once,
+  // sending one message per watcher with all the events for keys it covers.
+  private void notifyWatchers(final Msg.WatchResponse.Type type,
+                              final NavigableMap<String, Msg.KeyValue> events) {
+    final String firstKey = events.firstKey();
+    final String lastKey = events.lastKey();
+    final long revision = events.firstEntry().getValue().getModRevision();
+    new WatchNotifier() {
+      @Override
+      public void visit(IntervalTree.Item<Watcher> item) {
+        if (!item.getValue().wants(type, revision)) {
+          return;
+        }
+        // Subselect the events based on the overlapping interval. We need
+        // to floor/ceil the bounds since `subMap` rejects keys out of the
+        // already subselected range
+        String iStart = item.getIntervalBegin();
+        String iEnd = item.getIntervalEnd();
+        NavigableMap<String, Msg.KeyValue> iSelection =
+            KeyValueStore.selectRange(events, iStart, iEnd,
+                                      iStart.compareTo(firstKey) <= 0,
+                                      iEnd == null || iEnd.compareTo(lastKey) >= 0);
+        // The keys needn't be contiguous, so a watcher may fall between them
+        if (iSelection.isEmpty()) {
+          return;
+        }
+        send(item, Msg.WatchResponse
+            .newBuilder()
+            .setWatchId(item.getId())
+            .setType(type)
+            .addAllEvent(iSelection.values())
+            .build());
+      }
+    }.notify(firstKey, lastKey);
+  }
+
+  // Notify watchers of the events of a single revision. Called by the store
+  // one revision at a time, so watchers see events in revision order.
+  private void notifyWatchers(List<KeyValueStore.Event> events) {
+    KeyValueStore.Event first = events.get(0);
+    if (events.size() == 1) {
+      notifyWatchers(first.getKeyValue().getKey(), first.getType(), first.getKeyValue());
+      return;
+    }
+    NavigableMap<String, Msg.KeyValue> byKey = new TreeMap<String, Msg.KeyValue>();
+    for (KeyValueStore.Event event : events) {
+      byKey.put(event.getKeyValue().getKey(), event.getKeyValue());
+    }
+    notifyWatchers(first.getType(), byKey);
+  }
+
   private final class WatchRequestStream implements StreamObserver<Msg.WatchRequest> {
-    private StreamObserver<Msg.WatchResponse> resp;
-    private final Set<Integer> registered = new HashSet<Integer>();
+    private final ServerCallStreamObserver<Msg.WatchResponse> resp;
+    // Accessed by both the stream and any writers notifying watchers
+    private final Set<Integer> registered =
+        Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    // Outbound messages are queued and drained on the gRPC executor whenever
+    // the transport is ready, so writers never block on a slow client. The
+    // queue and the flags below are guarded by this.
+    private final ArrayDeque<Msg.WatchResponse> queue =
+        new ArrayDeque<Msg.WatchResponse>();
+    private boolean draining = false;
+    // Client half-closed, complete the stream once the queue is drained
+    private boolean completed = false;
+    // Stream overflowed, fail the stream on the next drain
+    private Status failure = null;
+    // No further messages will be sent
+    private boolean closed = false;
+
+    private final Runnable drainTask = new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    };
 
     WatchRequestStream(StreamObserver<Msg.WatchResponse> resp) {
       super();
-      this.resp = resp;
+      this.resp = (ServerCallStreamObserver<Msg.WatchResponse>) resp;
+      this.resp.setOnReadyHandler(new Runnable() {
+        @Override
+        public void run() {
+          scheduleDrain();
+        }
+      });
       LOG.debug("New watch stream created [stream: {}]",
                 System.identityHashCode(this));
     }
 
     private void removeWatch(int watchId) {
       if (registered.remove(watchId)) {
-        synchronized (keyValueStore) {
-          intervalTree.remove(watchId);
+        watchLock.writeLock().lock();
+        try {
+          watchIndex.remove(watchId);
+        } finally {
+          watchLock.writeLock().unlock();
         }
         LOG.debug("Removed watcher [stream: {}, watcher: {}]",
                   System.identityHashCode(this), watchId);
@@ -801,106 +1370,587 @@ public class ApplicationMaster {
     }
 
     private void removeAllWatches() {
-      synchronized (keyValueStore) {
+      watchLock.writeLock().lock();
+      try {
         for (Iterator<Integer> it = registered.iterator(); it.hasNext();) {
           int watchId = it.next();
-          intervalTree.remove(watchId);
+          watchIndex.remove(watchId);
           LOG.debug("Removed watcher [stream: {}, watcher: {}]",
                     System.identityHashCode(this), watchId);
           it.remove();
         }
+      } finally {
+        watchLock.writeLock().unlock();
       }
     }
 
     private boolean isActive() { return registered.size() > 0; }
 
-    @Override
-    public void onNext(Msg.WatchRequest req) {
-      Msg.WatchResponse.Builder builder = Msg.WatchResponse.newBuilder();
-      int watchId;
-      switch (req.getRequestCase()) {
-        case CREATE:
-          Msg.WatchCreateRequest create = req.getCreate();
-          String start = create.getStart();
-          String end = create.getEnd();
-          Msg.WatchCreateRequest.Type type = create.getEventType();
-          synchronized (keyValueStore) {
-            watchId = intervalTree.add(start, end, new Watcher(resp, this, type));
+    private synchronized void scheduleDrain() {
+      if (!draining && !closed) {
+        draining = true;
+        grpcExecutor.execute(drainTask);
+      }
+    }
+
+    // Only one drain runs at a time, so calls to `resp` are serialized.
+    private void drain() {
+      while (true) {
+        Msg.WatchResponse msg = null;
+        Status error = null;
+        synchronized (this) {
+          if (closed) {
+            draining = false;
+            return;
+          } else if (failure != null) {
+            error = failure;
+            closed = true;
+            queue.clear();
+          } else if (!queue.isEmpty() && resp.isReady()) {
+            msg = queue.poll();
+          } else if (queue.isEmpty() && completed) {
+            closed = true;
+          } else {
+            // Nothing to send, or the transport is full. In the latter case
+            // the on-ready handler will schedule another drain.
+            draining = false;
+            return;
           }
-          LOG.debug("Created watcher [stream: {}, watcher: {}, start: '{}', end: '{}', type: {}]",
-                    System.identityHashCode(this), watchId, start, end, type);
-          registered.add(watchId);
-          builder.setWatchId(watchId);
-          builder.setType(Msg.WatchResponse.Type.CREATE);
-          break;
-        case CANCEL:
-          watchId = req.getCancel().getWatchId();
-          removeWatch(watchId);
-          builder.setWatchId(watchId);
-          builder.setType(Msg.WatchResponse.Type.CANCEL);
-          break;
+        }
+        try {
+          if (msg != null) {
+            resp.onNext(msg);
+          } else if (error != null) {
+            resp.onError(error.asRuntimeException());
+          } else {
+            resp.onCompleted();
+          }
+        } catch (StatusRuntimeException exc) {
+          if (exc.getStatus().getCode() != Status.Code.CANCELLED) {
+            LOG.warn("Watch stream {} failed to send, got status {}",
+                     System.identityHashCode(this), exc.getStatus());
+          }
+          close();
+        }
       }
-      resp.onNext(builder.build());
     }
 
-    @Override
-    public void onError(Throwable t) {
-      LOG.debug("Watch stream canceled [stream: {}]",
-                System.identityHashCode(this));
+    private void close() {
+      synchronized (this) {
+        closed = true;
+        queue.clear();
+      }
       removeAllWatches();
     }
 
-    @Override
-    public void onCompleted() {
-      LOG.debug("Watch stream completed [stream: {}]",
-                System.identityHashCode(this));
-      removeAllWatches();
-      resp.onCompleted();
+    // Queue a control message. These are never dropped.
+    private synchronized void send(Msg.WatchResponse msg) {
+      if (!closed && failure == null) {
+        queue.add(msg);
+        scheduleDrain();
+      }
     }
-  }
 
-  private final class Watcher {
-    private StreamObserver<Msg.WatchResponse> resp;
-    private WatchRequestStream req;
-    private boolean put;
-    private boolean delete;
+    // Queue an event message, applying the watcher's overflow policy if the
+    // queue is full. Returns the ids of any watches canceled as a result,
+    // which the caller must remove from the watch index without holding
+    // this stream's monitor or the watch read lock.
+    private List<Integer> sendEvent(int watchId, Watcher watcher, Msg.WatchResponse msg) {
+      return (watcher.getBatch() == null
+              ? enqueueEvent(watchId, watcher, msg)
+              : batchEvent(watchId, watcher, msg));
+    }
 
-    Watcher(StreamObserver<Msg.WatchResponse> resp,
-            WatchRequestStream req,
-            Msg.WatchCreateRequest.Type type) {
-      this.resp = resp;
-      this.req = req;
-      switch (type) {
-        case PUT:
-          put = true;
-          delete = false;
-          break;
-        case DELETE:
-          put = false;
-          delete = true;
-          break;
-        case ALL:
-          put = true;
-          delete = true;
-          break;
+    // Returns the ids of any watches canceled due to overflow. These are
+    // already unregistered, but still need removing from the watch index.
+    private synchronized List<Integer> enqueueEvent(int watchId, Watcher watcher,
+                                                   Msg.WatchResponse msg) {
+      if (closed || failure != null || !registered.contains(watchId)) {
+        return Collections.emptyList();
       }
-    }
 
-    public boolean isPutType() { return put; }
-    public boolean isDeleteType() { return delete; }
+      watchQueueDepth.observe(queue.size());
+      if (queue.size() < WATCH_QUEUE_SIZE) {
+        queue.add(msg);
+        scheduleDrain();
+        return Collections.emptyList();
+      }
 
-    public void sendMsg(int watchId, Msg.WatchResponse msg) {
-      if (req.isActive()) {
-        try {
-          resp.onNext(msg);
-        } catch (StatusRuntimeException exc) {
-          if (exc.getStatus().getCode() != Status.Code.CANCELLED) {
-            LOG.warn("Watcher {} failed to send, got status {}",
-                     watchId, exc.getStatus());
+      Msg.WatchCreateRequest.OverflowPolicy policy = watcher.getOverflowPolicy();
+
+      if (policy == Msg.WatchCreateRequest.OverflowPolicy.COALESCE
+          && coalesce(watchId, msg)) {
+        return Collections.emptyList();
+      }
+
+      if (policy == Msg.WatchCreateRequest.OverflowPolicy.CANCEL) {
+        LOG.warn("Watch stream {} has too many pending events, canceling",
+                 System.identityHashCode(this));
+        failure = Status.RESOURCE_EXHAUSTED
+            .withDescription("Too many pending watch events, client is too slow");
+        queue.clear();
+        List<Integer> canceled = new ArrayList<Integer>(registered);
+        registered.clear();
+        scheduleDrain();
+        return canceled;
+      }
+
+      // Drop all pending events for the watch and cancel it, telling the
+      // client the revision to resume after.
+      long resumeRevision = dropEvents(watchId, msg);
+      registered.remove(watchId);
+      LOG.debug("Canceled watcher, too many pending events "
+                + "[stream: {}, watcher: {}, compact_revision: {}]",
+                System.identityHashCode(this), watchId, resumeRevision);
+      queue.add(Msg.WatchResponse
+                   .newBuilder()
+                   .setWatchId(watchId)
+                   .setType(Msg.WatchResponse.Type.CANCEL)
+                   .setCompactRevision(resumeRevision)
+                   .build());
+      scheduleDrain();
+      return Collections.singletonList(watchId);
+    }
+
+    private boolean isEvent(Msg.WatchResponse msg) {
+      return (msg.getType() == Msg.WatchResponse.Type.PUT
+              || msg.getType() == Msg.WatchResponse.Type.DELETE);
+    }
+
+    // Remove all pending events for a watch, returning the latest revision
+    // before any of the dropped events.
+    private long dropEvents(int watchId, Msg.WatchResponse msg) {
+      long minRevision = Long.MAX_VALUE;
+      for (Msg.KeyValue kv : msg.getEventList()) {
+        minRevision = Math.min(minRevision, kv.getModRevision());
+      }
+      for (Iterator<Msg.WatchResponse> it = queue.iterator(); it.hasNext();) {
+        Msg.WatchResponse queued = it.next();
+        if (queued.getWatchId() == watchId && isEvent(queued)) {
+          for (Msg.KeyValue kv : queued.getEventList()) {
+            minRevision = Math.min(minRevision, kv.getModRevision());
+          }
+          it.remove();
+        }
+      }
+      return minRevision == Long.MAX_VALUE ? 0 : minRevision - 1;
+    }
+
+    // Merge all pending events for a watch into the latest event per key.
+    // Returns false if this doesn't free up enough space in the queue.
+    private boolean coalesce(int watchId, Msg.WatchResponse msg) {
+      List<Msg.WatchResponse> pending = new ArrayList<Msg.WatchResponse>();
+      for (Msg.WatchResponse queued : queue) {
+        if (queued.getWatchId() == watchId && isEvent(queued)) {
+          pending.add(queued);
+        }
+      }
+      pending.add(msg);
+      List<Msg.WatchResponse> merged = latestPerKey(watchId, pending);
+
+      if (queue.size() - (pending.size() - 1) + merged.size() > WATCH_QUEUE_SIZE) {
+        return false;
+      }
+
+      for (Iterator<Msg.WatchResponse> it = queue.iterator(); it.hasNext();) {
+        Msg.WatchResponse queued = it.next();
+        if (queued.getWatchId() == watchId && isEvent(queued)) {
+          it.remove();
+        }
+      }
+      queue.addAll(merged);
+      scheduleDrain();
+      return true;
+    }
+
+    // Merge event messages into at most two messages, holding the latest
+    // event per key. Each key ends up in only one of these, so their relative
+    // order doesn't matter.
+    private List<Msg.WatchResponse> latestPerKey(int watchId,
+                                                 List<Msg.WatchResponse> msgs) {
+      Map<String, Msg.KeyValue> puts = new LinkedHashMap<String, Msg.KeyValue>();
+      Map<String, Msg.KeyValue> deletes = new LinkedHashMap<String, Msg.KeyValue>();
+      for (Msg.WatchResponse msg : msgs) {
+        boolean isPut = msg.getType() == Msg.WatchResponse.Type.PUT;
+        for (Msg.KeyValue kv : msg.getEventList()) {
+          if (isPut) {
+            deletes.remove(kv.getKey());
+            puts.put(kv.getKey(), kv);
+          } else {
+            puts.remove(kv.getKey());
+            deletes.put(kv.getKey(), kv);
           }
-          req.removeAllWatches();
         }
       }
+      List<Msg.WatchResponse> out = new ArrayList<Msg.WatchResponse>(2);
+      if (!deletes.isEmpty()) {
+        out.add(Msg.WatchResponse
+                   .newBuilder()
+                   .setWatchId(watchId)
+                   .setType(Msg.WatchResponse.Type.DELETE)
+                   .addAllEvent(deletes.values())
+                   .build());
+      }
+      if (!puts.isEmpty()) {
+        out.add(Msg.WatchResponse
+                   .newBuilder()
+                   .setWatchId(watchId)
+                   .setType(Msg.WatchResponse.Type.PUT)
+                   .addAllEvent(puts.values())
+                   .build());
+      }
+      return out;
+    }
+
+    // Join consecutive event messages of the same type, preserving order.
+    private List<Msg.WatchResponse> concatenate(int watchId,
+                                                List<Msg.WatchResponse> msgs) {
+      List<Msg.WatchResponse> out = new ArrayList<Msg.WatchResponse>();
+      Msg.WatchResponse.Builder builder = null;
+      for (Msg.WatchResponse msg : msgs) {
+        if (builder != null && builder.getType() != msg.getType()) {
+          out.add(builder.build());
+          builder = null;
+        }
+        if (builder == null) {
+          builder = Msg.WatchResponse
+                       .newBuilder()
+                       .setWatchId(watchId)
+                       .setType(msg.getType());
+        }
+        builder.addAllEvent(msg.getEventList());
+      }
+      if (builder != null) {
+        out.add(builder.build());
+      }
+      return out;
+    }
+
+    // Add an event message to a watcher's pending batch. The batch is sent
+    // once full, or when the batch window expires.
+    private synchronized List<Integer> batchEvent(final int watchId,
+                                                  final Watcher watcher,
+                                                  Msg.WatchResponse msg) {
+      if (closed || failure != null || !registered.contains(watchId)) {
+        return Collections.emptyList();
+      }
+      Batch batch = watcher.getBatch();
+      batch.add(msg);
+      if (batch.isFull()) {
+        return flushBatch(watchId, watcher);
+      }
+      if (!batch.scheduled) {
+        batch.scheduled = true;
+        watchBatchExecutor.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                List<Integer> canceled;
+                synchronized (WatchRequestStream.this) {
+                  canceled = flushBatch(watchId, watcher);
+                }
+                if (!canceled.isEmpty()) {
+                  removeFromIndex(canceled);
+                }
+              }
+            },
+            batch.windowMillis, TimeUnit.MILLISECONDS);
+      }
+      return Collections.emptyList();
+    }
+
+    private synchronized List<Integer> flushBatch(int watchId, Watcher watcher) {
+      Batch batch = watcher.getBatch();
+      batch.scheduled = false;
+      if (batch.messages.isEmpty()) {
+        return Collections.emptyList();
+      }
+      List<Msg.WatchResponse> msgs = (batch.latestOnly
+                                      ? latestPerKey(watchId, batch.messages)
+                                      : concatenate(watchId, batch.messages));
+      batch.clear();
+      for (Msg.WatchResponse msg : msgs) {
+        List<Integer> canceled = enqueueEvent(watchId, watcher, msg);
+        if (!canceled.isEmpty()) {
+          return canceled;
+        }
+      }
+      return Collections.emptyList();
+    }
+
+    private void createWatch(Msg.WatchCreateRequest create) {
+      String start = create.getStart();
+      String end = create.getEnd();
+      Msg.WatchCreateRequest.Type type = create.getEventType();
+      long startRevision = create.getStartRevision();
+      Watcher watcher = new Watcher(this, create);
+
+      // Registration and replay happen with publishing paused. Events up to
+      // the published revision are replayed from the history, and later
+      // events are sent live, so the watcher sees every revision once.
+      KeyValueStore.Locked paused = keyValueStore.pausePublishing();
+      try {
+        long publishedRevision = keyValueStore.getPublishedRevision();
+        watcher.setStartRevision(startRevision > 0
+                                 ? startRevision : keyValueStore.getRevision() + 1);
+        int watchId;
+        watchLock.writeLock().lock();
+        try {
+          watchId = watchIndex.add(start, end, watcher);
+        } finally {
+          watchLock.writeLock().unlock();
+        }
+        LOG.debug("Created watcher [stream: {}, watcher: {}, start: '{}', end: '{}', type: {}]",
+                  System.identityHashCode(this), watchId, start, end, type);
+        registered.add(watchId);
+        send(Msg.WatchResponse
+                .newBuilder()
+                .setWatchId(watchId)
+                .setType(Msg.WatchResponse.Type.CREATE)
+                .build());
+
+        if (startRevision <= 0) {
+          return;
+        }
+
+        List<KeyValueStore.Event> events = keyValueStore.eventsSince(startRevision);
+        if (events == null) {
+          // Requested revision has been compacted, client needs to resync
+          long compactRevision = keyValueStore.getCompactRevision();
+          LOG.debug("Canceled watcher, revision {} has been compacted "
+                    + "[stream: {}, watcher: {}, compact_revision: {}]",
+                    startRevision, System.identityHashCode(this), watchId,
+                    compactRevision);
+          removeWatch(watchId);
+          send(Msg.WatchResponse
+                  .newBuilder()
+                  .setWatchId(watchId)
+                  .setType(Msg.WatchResponse.Type.CANCEL)
+                  .setCompactRevision(compactRevision)
+                  .build());
+          return;
+        }
+
+        // Replay missed events, batching consecutive events of the same type
+        IntervalTree.Interval interval = new IntervalTree.Interval(start, end);
+        Msg.WatchResponse.Builder builder = null;
+        for (KeyValueStore.Event event : events) {
+          if (event.getRevision() > publishedRevision) {
+            break;  // Sent live once published
+          }
+          Msg.WatchResponse.Type eventType = event.getType();
+          boolean wanted = (eventType == Msg.WatchResponse.Type.PUT
+                            ? watcher.isPutType() : watcher.isDeleteType());
+          if (!wanted || !interval.contains(event.getKeyValue().getKey())) {
+            continue;
+          }
+          if (builder != null && builder.getType() != eventType) {
+            watcher.sendMsg(watchId, builder.build());
+            builder = null;
+          }
+          if (builder == null) {
+            builder = Msg.WatchResponse
+                         .newBuilder()
+                         .setWatchId(watchId)
+                         .setType(eventType);
+          }
+          builder.addEvent(event.getKeyValue());
+        }
+        if (builder != null) {
+          watcher.sendMsg(watchId, builder.build());
+        }
+      } finally {
+        paused.release();
+      }
+    }
+
+    @Override
+    public void onNext(Msg.WatchRequest req) {
+      Msg.WatchResponse.Builder builder = Msg.WatchResponse.newBuilder();
+      int watchId;
+      switch (req.getRequestCase()) {
+        case CREATE:
+          createWatch(req.getCreate());
+          return;
+        case CANCEL:
+          watchId = req.getCancel().getWatchId();
+          removeWatch(watchId);
+          builder.setWatchId(watchId);
+          builder.setType(Msg.WatchResponse.Type.CANCEL);
+          break;
+      }
+      send(builder.build());
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      LOG.debug("Watch stream canceled [stream: {}]",
+                System.identityHashCode(this));
+      close();
+    }
+
+    @Override
+    public void onCompleted() {
+      LOG.debug("Watch stream completed [stream: {}]",
+                System.identityHashCode(this));
+      removeAllWatches();
+      synchronized (this) {
+        completed = true;
+        scheduleDrain();
+      }
+    }
+  }
+
+  // Events accumulated for a batched watcher, guarded by its stream.
+  private static final class Batch {
+    private final int windowMillis;
+    private final int maxEvents;
+    private final boolean latestOnly;
+    private final List<Msg.WatchResponse> messages = new ArrayList<Msg.WatchResponse>();
+    private int numEvents = 0;
+    private boolean scheduled = false;
+
+    Batch(int windowMillis, int maxEvents, boolean latestOnly) {
+      this.windowMillis = windowMillis;
+      this.maxEvents = maxEvents;
+      this.latestOnly = latestOnly;
+    }
+
+    void add(Msg.WatchResponse msg) {
+      messages.add(msg);
+      numEvents += msg.getEventCount();
+    }
+
+    boolean isFull() {
+      return maxEvents > 0 && numEvents >= maxEvents;
+    }
+
+    void clear() {
+      messages.clear();
+      numEvents = 0;
+    }
+  }
+
+  // Sends a snapshot of a range in bounded chunks, as flow control allows.
+  private static final class RangeStreamer implements Runnable {
+    private final Msg.GetRangeRequest.ResultType resultType;
+    private final int limit;
+    private final long revision;
+    private final List<Msg.KeyValue> snapshot;
+    private final ServerCallStreamObserver<Msg.GetRangeResponse> call;
+    private int index = 0;
+    private boolean done = false;
+
+    RangeStreamer(Msg.GetRangeRequest req, long revision,
+                  List<Msg.KeyValue> snapshot,
+                  ServerCallStreamObserver<Msg.GetRangeResponse> call) {
+      this.resultType = req.getResultType();
+      this.limit = req.getLimit() > 0 ? req.getLimit() : DEFAULT_RANGE_CHUNK_SIZE;
+      this.revision = revision;
+      this.snapshot = snapshot;
+      this.call = call;
+    }
+
+    @Override
+    public void run() {
+      while (!done && call.isReady()) {
+        if (call.isCancelled()) {
+          done = true;
+          return;
+        }
+        Msg.GetRangeResponse.Builder builder =
+            Msg.GetRangeResponse
+               .newBuilder()
+               .setCount(snapshot.size())
+               .setResultType(resultType)
+               .setRevision(revision);
+        if (resultType == Msg.GetRangeRequest.ResultType.NONE) {
+          index = snapshot.size();
+        }
+        int size = 0;
+        int end = Math.min(snapshot.size(), index + limit);
+        while (index < end && size < RANGE_CHUNK_BYTES) {
+          Msg.KeyValue kv = snapshot.get(index++);
+          if (resultType == Msg.GetRangeRequest.ResultType.KEYS) {
+            kv = Msg.KeyValue.newBuilder().setKey(kv.getKey()).build();
+          }
+          builder.addResult(kv);
+          size += kv.getSerializedSize();
+        }
+        call.onNext(builder.build());
+        if (index == snapshot.size()) {
+          done = true;
+          call.onCompleted();
+        }
+      }
+    }
+  }
+
+  private final class Watcher {
+    private WatchRequestStream req;
+    private Msg.WatchCreateRequest.OverflowPolicy overflowPolicy;
+    // Null if events aren't batched
+    private Batch batch;
+    private boolean put;
+    private boolean delete;
+    // Events before this revision are either replayed on creation, or
+    // predate the watch
+    private long startRevision;
+
+    Watcher(WatchRequestStream req, Msg.WatchCreateRequest create) {
+      this.req = req;
+      this.overflowPolicy = create.getOverflowPolicy();
+      if (create.getBatchWindowMs() > 0) {
+        this.batch = new Batch(create.getBatchWindowMs(),
+                               create.getBatchMaxEvents(),
+                               create.getBatchLatestOnly());
+      }
+      switch (create.getEventType()) {
+        case PUT:
+          put = true;
+          delete = false;
+          break;
+        case DELETE:
+          put = false;
+          delete = true;
+          break;
+        case ALL:
+          put = true;
+          delete = true;
+          break;
+      }
+    }
+
+    public boolean isPutType() { return put; }
+    public boolean isDeleteType() { return delete; }
+    public void setStartRevision(long startRevision) {
+      this.startRevision = startRevision;
+    }
+
+    // Whether to send an event of this type and revision live
+    public boolean wants(Msg.WatchResponse.Type type, long revision) {
+      return (revision >= startRevision
+              && (type == Msg.WatchResponse.Type.PUT ? put : delete));
+    }
+    public Msg.WatchCreateRequest.OverflowPolicy getOverflowPolicy() {
+      return overflowPolicy;
+    }
+    public Batch getBatch() { return batch; }
+
+    // Never blocks, events are queued on the stream and sent asynchronously.
+    // Returns the ids of any watches canceled due to overflow.
+    public List<Integer> trySend(int watchId, Msg.WatchResponse msg) {
+      if (req.isActive()) {
+        return req.sendEvent(watchId, this, msg);
+      }
+      return Collections.emptyList();
+    }
+
+    public void sendMsg(int watchId, Msg.WatchResponse msg) {
+      List<Integer> canceled = trySend(watchId, msg);
+      if (!canceled.isEmpty()) {
+        removeFromIndex(canceled);
+      }
     }
   }
 
@@ -910,10 +1960,15 @@ public class ApplicationMaster {
     private boolean initialRunning = false;
     private final Set<String> depends = new HashSet<String>();
     private final Set<Integer> waiting = new LinkedHashSet<Integer>();
-    // An ordered map of priority -> container. Earlier entries are older
-    // requests. The priority is the same as container.req.getPriority().
-    private final TreeMap<Priority, Model.Container> requested =
-        new TreeMap<Priority, Model.Container>();
+    // The priority of all requests for this service
+    private final Priority priority;
+    // Instances with outstanding requests, in request order
+    private final Set<Integer> requested = new LinkedHashSet<Integer>();
+    // The launch context shared by all containers, without the environment.
+    // Built on first launch.
+    private ContainerLaunchContextProto launchTemplate = null;
+    // Requests moved onto nodes released by other services, host -> instance
+    private final Map<String, Integer> hinted = new HashMap<String, Integer>();
     private final Set<Integer> running = new LinkedHashSet<Integer>();
     private final List<Model.Container> containers = new ArrayList<Model.Container>();
     private final List<ServiceTracker> dependents = new ArrayList<ServiceTracker>();
@@ -922,9 +1977,13 @@ public class ApplicationMaster {
     private int numFailed = 0;
     private int numKilled = 0;
     private int numRestarted = 0;
+    // Pending containers recovered from a previous attempt, requested on
+    // initialization. Null if not recovered.
+    private List<Model.Container> recovered = null;
 
-    public ServiceTracker(String name, Model.Service service) {
+    public ServiceTracker(String name, Model.Service service, Priority priority) {
       this.name = name;
+      this.priority = priority;
       this.service = service;
       this.depends.addAll(service.getDepends());
       this.numTarget = service.getInstances();
@@ -959,6 +2018,10 @@ public class ApplicationMaster {
       return waiting.size() + requested.size() + running.size();
     }
 
+    public synchronized int getNumRequested() {
+      return requested.size();
+    }
+
     private boolean isReady() {
       return depends.size() == 0;
     }
@@ -974,35 +2037,146 @@ public class ApplicationMaster {
     public synchronized void notifyRunning(String dependency) {
       depends.remove(dependency);
       if (isReady()) {
+        List<Model.Container> batch = new ArrayList<Model.Container>(waiting.size());
         for (int instance : waiting) {
-          requestContainer(containers.get(instance));
+          batch.add(containers.get(instance));
         }
         waiting.clear();
+        requestContainers(batch);
       }
     }
 
-    public synchronized boolean addOwnedKey(int instance, String key) {
-      Model.Container container = getContainer(instance);
-      assert container != null;  // pre-checked before calling
-      if (!container.completed()) {
-        container.addOwnedKey(key);
-        return true;
+    public void initialize() throws IOException {
+      synchronized (this) {
+        if (recovered == null) {
+          LOG.info("Initializing service '{}'.", name);
+          // Request initial containers
+          addContainers(service.getInstances(), Collections.<String, String>emptyMap());
+          return;
+        }
+        LOG.info("Resuming service '{}' with {} running containers.",
+                 name, running.size());
+        if (isReady()) {
+          requestContainers(recovered);
+        } else {
+          for (Model.Container container : recovered) {
+            container.setState(Model.Container.State.WAITING);
+            waiting.add(container.getInstance());
+            LOG.info("WAITING: {}", container.getId());
+          }
+        }
+        recovered = null;
+        if (!initialRunning && requested.size() == 0 && running.size() > 0) {
+          initialRunning = true;
+        }
+      }
+      if (initialRunning) {
+        for (ServiceTracker dep : dependents) {
+          dep.notifyRunning(name);
+        }
       }
-      return false;
     }
 
-    public synchronized void removeOwnedKey(int instance, String key) {
-      Model.Container container = getContainer(instance);
-      assert container != null;  // should never get here.
-      container.removeOwnedKey(key);
-    }
+    /** Restore the state persisted by a previous attempt.
+     *
+     * Running containers that are still alive are adopted (and removed from
+     * `alive`), lost ones are marked failed and restarted if allowed.
+     * Pending containers are requested again on initialization.
+     **/
+    // Returns the containers that were running, but weren't adopted
+    public synchronized List<Model.Container> recover(Msg.ServiceState state,
+                                                      Map<ContainerId, Container> alive) {
+      numTarget = state.getNumTarget();
+      numSucceeded = state.getNumSucceeded();
+      numFailed = state.getNumFailed();
+      numKilled = state.getNumKilled();
+      numRestarted = state.getNumRestarted();
+      initialRunning = state.getInitialRunning();
+      recovered = new ArrayList<Model.Container>();
+
+      List<Model.Container> lost = new ArrayList<Model.Container>();
+      for (Msg.ContainerState containerState : state.getContainersList()) {
+        Msg.Container msg = containerState.getContainer();
+        Model.Container container = new Model.Container(
+            name, containers.size(),
+            MsgUtils.readContainerState(msg.getState()),
+            new HashMap<String, String>(containerState.getEnvMap()));
+        container.setStartTime(msg.getStartTime());
+        container.setFinishTime(msg.getFinishTime());
+        container.setExitMessage(Strings.emptyToNull(msg.getExitMessage()));
+        container.setYarnNodeHttpAddress(
+            Strings.emptyToNull(msg.getYarnNodeHttpAddress()));
+        if (!msg.getYarnContainerId().isEmpty()) {
+          container.setYarnContainerId(ContainerId.fromString(msg.getYarnContainerId()));
+        }
+        containers.add(container);
 
-    public void initialize() throws IOException {
-      LOG.info("Initializing service '{}'.", name);
-      // Request initial containers
-      for (int i = 0; i < service.getInstances(); i++) {
-        addContainer();
+        switch (container.getState()) {
+          case WAITING:
+          case REQUESTED:
+            recovered.add(container);
+            break;
+          case RUNNING:
+            Container yarnContainer = alive.remove(container.getYarnContainerId());
+            if (yarnContainer != null) {
+              adoptContainer(container, yarnContainer);
+            } else {
+              lost.add(container);
+            }
+            break;
+          default:
+            break;
+        }
+      }
+
+      for (Model.Container container : lost) {
+        container.setState(Model.Container.State.FAILED);
+        container.setFinishTime(System.currentTimeMillis());
+        container.setExitMessage("Lost while the application master restarted.");
+        numFailed += 1;
+        LOG.warn("FAILED: {} - {}", container.getId(), container.getExitMessage());
+        if (service.getMaxRestarts() == -1 || numRestarted < service.getMaxRestarts()) {
+          numRestarted += 1;
+          Model.Container replacement = new Model.Container(
+              name, containers.size(), Model.Container.State.WAITING,
+              container.getEnv());
+          containers.add(replacement);
+          recovered.add(replacement);
+        }
+      }
+      serviceStateDirty.set(true);
+      return lost;
+    }
+
+    private void adoptContainer(Model.Container container, Container yarnContainer) {
+      Resource resource = Resource.newInstance(
+          yarnContainer.getResource().getMemory(),
+          service.getResources().getVirtualCores());
+      container.setYarnNodeId(yarnContainer.getNodeId());
+      container.setYarnNodeHttpAddress(yarnContainer.getNodeHttpAddress());
+      container.setResources(resource);
+      ApplicationMaster.this.containers.put(yarnContainer.getId(), container);
+      running.add(container.getInstance());
+      totalMemory.addAndGet(resource.getMemory());
+      totalVcores.addAndGet(resource.getVirtualCores());
+      LOG.info("RUNNING: {} on {} (adopted)", container.getId(), yarnContainer.getId());
+    }
+
+    public synchronized Msg.ServiceState toServiceState() {
+      Msg.ServiceState.Builder builder = Msg.ServiceState.newBuilder()
+          .setName(name)
+          .setNumTarget(numTarget)
+          .setNumSucceeded(numSucceeded)
+          .setNumFailed(numFailed)
+          .setNumKilled(numKilled)
+          .setNumRestarted(numRestarted)
+          .setInitialRunning(initialRunning);
+      for (Model.Container container : containers) {
+        builder.addContainers(Msg.ContainerState.newBuilder()
+            .setContainer(MsgUtils.writeContainer(container))
+            .putAllEnv(container.getEnv()));
       }
+      return builder.build();
     }
 
     private synchronized Model.Container getContainer(int instance) {
@@ -1051,7 +2225,8 @@ public class ApplicationMaster {
 
       // Any function that may remove containers needs to lock the kv store
       // outside the tracker to prevent deadlocks.
-      synchronized (keyValueStore) {
+      KeyValueStore.Locked locked = keyValueStore.lockAll();
+      try {
         synchronized (this) {
           int active = getNumActive();
           if (delta == 0) {
@@ -1065,10 +2240,8 @@ public class ApplicationMaster {
                    name, count, delta);
           if (delta > 0) {
             // Scale up
-            for (int i = 0; i < delta; i++) {
-              out.add(addContainer());
-              numTarget += 1;
-            }
+            out.addAll(addContainers(delta, Collections.<String, String>emptyMap()));
+            numTarget += delta;
           } else if (delta < 0) {
             // Scale down
             for (int i = delta; i < 0; i++) {
@@ -1076,7 +2249,7 @@ public class ApplicationMaster {
               if (waiting.size() > 0) {
                 instance = Utils.popfirst(waiting);
               } else if (requested.size() > 0) {
-                instance = requested.get(requested.firstKey()).getInstance();
+                instance = requested.iterator().next();
               } else {
                 instance = Utils.popfirst(running);
               }
@@ -1086,51 +2259,123 @@ public class ApplicationMaster {
             }
           }
         }
+      } finally {
+        locked.release();
       }
       return out;
     }
 
-    private synchronized void requestContainer(Model.Container container) {
-      Priority priority = newPriority(this);
+    // Request a batch of containers. The RM aggregates requests with the
+    // same priority and constraints, so this only updates the count of the
+    // service's row in the RM's request table.
+    private synchronized void requestContainers(List<Model.Container> batch) {
+      if (batch.isEmpty()) {
+        return;
+      }
       String[] nodes = (service.getNodes().isEmpty() ? null
                         : service.getNodes().toArray(new String[0]));
       String[] racks = (service.getRacks().isEmpty() ? null
                         : service.getRacks().toArray(new String[0]));
       boolean relaxLocality = ((nodes == null && racks == null) ? true
                                : service.getRelaxLocality());
-      ContainerRequest req = new ContainerRequest(
-          service.getResources(),
-          nodes,
-          racks,
-          priority,
-          relaxLocality,
-          Strings.emptyToNull(service.getNodeLabel()));
-      container.setContainerRequest(req);
-      rmClient.addContainerRequest(req);
-      requested.put(priority, container);
-      LOG.info("REQUESTED: {}", container.getId());
+      for (Model.Container container : batch) {
+        ContainerRequest req = new ContainerRequest(
+            service.getResources(),
+            nodes,
+            racks,
+            priority,
+            relaxLocality,
+            Strings.emptyToNull(service.getNodeLabel()));
+        container.setState(Model.Container.State.REQUESTED);
+        container.setContainerRequest(req);
+        rmClient.addContainerRequest(req);
+        requested.add(container.getInstance());
+        LOG.info("REQUESTED: {}", container.getId());
+      }
+      requestHeartbeat();
+    }
+
+    /** Move an outstanding request onto a node just released by another
+     * service, if this service can run there.
+     *
+     * YARN can't start a new process in a container that has already run
+     * one, so released capacity can't be handed over directly. Instead the
+     * RM is asked for the released node specifically (still relaxing
+     * locality), so it can give the capacity straight back to this
+     * application on that node's next heartbeat. Returns true if a request
+     * was moved.
+     **/
+    public synchronized boolean preferNode(NodeId node, Resource resource) {
+      String host = node.getHost();
+      if (requested.isEmpty()
+          || hinted.containsKey(host)
+          || !service.getNodes().isEmpty()
+          || !service.getRacks().isEmpty()
+          || !service.getNodeLabel().isEmpty()
+          || lookupResources(resource) == null) {
+        return false;
+      }
+      for (int instance : requested) {
+        if (hinted.containsValue(instance)) {
+          continue;
+        }
+        Model.Container container = containers.get(instance);
+        rmClient.removeContainerRequest(container.popContainerRequest());
+        ContainerRequest req = new ContainerRequest(
+            service.getResources(), new String[] {host}, null, priority, true, null);
+        container.setContainerRequest(req);
+        rmClient.addContainerRequest(req);
+        hinted.put(host, instance);
+        LOG.debug("Requesting {} on released node {}", container.getId(), host);
+        return true;
+      }
+      return false;
     }
 
-    public Model.Container addContainer() {
-      return addContainer(Collections.<String, String>emptyMap());
+    public synchronized Model.Container addContainer(Map<String, String> env) {
+      return addContainers(1, env).get(0);
+    }
+
+    public synchronized List<Model.Container> addContainers(int count,
+        Map<String, String> env) {
+      List<Model.Container> out = new ArrayList<Model.Container>(count);
+      boolean ready = isReady();
+      for (int i = 0; i < count; i++) {
+        Model.Container container =
+            new Model.Container(name, containers.size(),
+                                Model.Container.State.WAITING,
+                                env);
+        containers.add(container);
+        out.add(container);
+        if (!ready) {
+          waiting.add(container.getInstance());
+          LOG.info("WAITING: {}", container.getId());
+        }
+      }
+      if (ready) {
+        requestContainers(out);
+      }
+      serviceStateDirty.set(true);
+      return out;
     }
 
-    public synchronized Model.Container addContainer(Map<String, String> env) {
-      Model.Container container;
-      if (!isReady()) {
-        container = new Model.Container(name, containers.size(),
-                                        Model.Container.State.WAITING,
-                                        env);
-        waiting.add(container.getInstance());
-        LOG.info("WAITING: {}", container.getId());
-      } else {
-        container = new Model.Container(name, containers.size(),
-                                        Model.Container.State.REQUESTED,
-                                        env);
-        requestContainer(container);
+    // Create a launch context for a container of this service. Everything
+    // but the environment is the same for all containers, so is converted
+    // to protobuf once and shared.
+    private synchronized ContainerLaunchContext newLaunchContext(Map<String, String> env) {
+      if (launchTemplate == null) {
+        ContainerLaunchContext template = ContainerLaunchContext.newInstance(
+            service.getLocalResources(),
+            null,
+            Arrays.asList(service.getScript()),
+            null,
+            tokens,
+            spec.getAcls().getYarnAcls());
+        launchTemplate = ((ContainerLaunchContextPBImpl) template).getProto();
       }
-      containers.add(container);
-      return container;
+      ContainerLaunchContext ctx = new ContainerLaunchContextPBImpl(launchTemplate);
+      ctx.setEnvironment(env);
+      return ctx;
     }
 
     public void handleNewContainer(final Container container) {
@@ -1159,15 +2404,22 @@ public class ApplicationMaster {
           return;
         }
 
-        removePriority(priority);
-        newContainer = requested.remove(priority);
-        if (newContainer == null) {
+        // Prefer a request moved onto this node, otherwise take the oldest
+        Integer next = hinted.remove(container.getNodeId().getHost());
+        if (next != null) {
+          requested.remove(next);
+        } else {
+          next = Utils.popfirst(requested);
+          hinted.values().remove(next);
+        }
+        if (next == null) {
           // Container received after request was canceled
           LOG.debug("Releasing {} with priority {} due to canceled request for service {}",
                     container.getId(), priority, name);
           rmClient.releaseAssignedContainer(container.getId());
           return;
         }
+        newContainer = containers.get(next);
         // Remove request so it dosn't get resubmitted
         rmClient.removeContainerRequest(newContainer.popContainerRequest());
 
@@ -1183,6 +2435,7 @@ public class ApplicationMaster {
 
         final int instance = newContainer.getInstance();
         running.add(instance);
+        serviceStateDirty.set(true);
 
         // Update container environment variables
         Map<String, String> env = new HashMap<String, String>(service.getEnv());
@@ -1193,31 +2446,20 @@ public class ApplicationMaster {
           env.put("HADOOP_USER_NAME", userName);
         }
 
-        final ContainerLaunchContext ctx =
-            ContainerLaunchContext.newInstance(
-                service.getLocalResources(),
-                env,
-                Arrays.asList(service.getScript()),
-                null,
-                tokens,
-                spec.getAcls().getYarnAcls());
+        final ContainerLaunchContext ctx = newLaunchContext(env);
 
         totalMemory.addAndGet(resource.getMemory());
         totalVcores.addAndGet(resource.getVirtualCores());
 
         LOG.info("Starting {}...", container.getId());
-        containerLaunchExecutor.execute(
-            new Runnable() {
+        containerLauncher.launch(container, ctx,
+            new ContainerLauncher.Callback() {
               @Override
-              public void run() {
-                try {
-                  nmClient.startContainer(container, ctx);
-                } catch (Throwable exc) {
-                  LOG.warn("Failed to start {}_{}", ServiceTracker.this.name, instance, exc);
-                  ServiceTracker.this.finishContainer(instance,
-                      Model.Container.State.FAILED,
-                      "Failed to start, exception raised: " + exc.getMessage());
-                }
+              public void onStartFailed(Throwable exc) {
+                LOG.warn("Failed to start {}_{}", ServiceTracker.this.name, instance, exc);
+                ServiceTracker.this.finishContainer(instance,
+                    Model.Container.State.FAILED,
+                    "Failed to start, exception raised: " + exc.getMessage());
               }
             });
 
@@ -1233,9 +2475,11 @@ public class ApplicationMaster {
     }
 
     public void finishContainer(int instance, Model.Container.State state, String exitMessage) {
+      long start = System.nanoTime();
       // Any function that may remove containers, needs to lock the kv store
       // outside the tracker to prevent deadlocks.
-      synchronized (keyValueStore) {
+      KeyValueStore.Locked locked = keyValueStore.lockAll();
+      try {
         synchronized (this) {
           Model.Container container = containers.get(instance);
 
@@ -1244,11 +2488,9 @@ public class ApplicationMaster {
               waiting.remove(instance);
               break;
             case REQUESTED:
-              ContainerRequest req = container.popContainerRequest();
-              Priority priority = req.getPriority();
-              removePriority(priority);
-              requested.remove(priority);
-              rmClient.removeContainerRequest(req);
+              requested.remove(instance);
+              hinted.values().remove(instance);
+              rmClient.removeContainerRequest(container.popContainerRequest());
               break;
             case RUNNING:
               rmClient.releaseAssignedContainer(container.getYarnContainerId());
@@ -1257,6 +2499,9 @@ public class ApplicationMaster {
               Resource resource = container.getResources();
               totalMemory.getAndAdd(-resource.getMemory());
               totalVcores.getAndAdd(-resource.getVirtualCores());
+              if (state == Model.Container.State.KILLED) {
+                offerReleased(this, container);
+              }
               break;
             default:
               return;  // Already finished, should never get here
@@ -1289,31 +2534,8 @@ public class ApplicationMaster {
 
           container.setState(state);
           container.setExitMessage(exitMessage);
-
-          // Remove any owned keys from the key-value store
-          for (String key : container.getOwnedKeys()) {
-            Msg.KeyValue.Builder prevKv = keyValueStore.remove(key);
-            // if not removed already, notify watchers
-            if (prevKv != null) {
-              // Message a single delete event with only the key set
-              Msg.WatchResponse.Builder wrBuilder =
-                  Msg.WatchResponse
-                     .newBuilder()
-                     .setType(Msg.WatchResponse.Type.DELETE)
-                     .addEvent(prevKv.clearValue().clearOwner());
-              for (IntervalTree.Item<Watcher> item : intervalTree.query(key)) {
-                if (item.getValue().isDeleteType()) {
-                  int watchId = item.getId();
-                  item.getValue()
-                      .sendMsg(watchId, wrBuilder.setWatchId(watchId).build());
-                }
-              }
-            } else {
-              LOG.error("Key '{}' already deleted, but wasn't removed from "
-                        + "owned-keys set of service '{}'", key, name);
-            }
-          }
-          container.clearOwnedKeys();
+          serviceStateDirty.set(true);
+          requestHeartbeat();
 
           if (mayRestart && (service.getMaxRestarts() == -1
               || numRestarted < service.getMaxRestarts())) {
@@ -1327,6 +2549,19 @@ public class ApplicationMaster {
             maybeShutdown();
           }
         }
+
+        // Remove any owned keys from the key-value store. The container is
+        // already completed, so it can't gain more keys, and the store lock
+        // keeps other writers out; this is done outside the tracker's monitor
+        // so a container with many keys doesn't block the service meanwhile.
+        Msg.ContainerInstance owner = Msg.ContainerInstance.newBuilder()
+            .setServiceName(name)
+            .setInstance(instance)
+            .build();
+        keyValueStore.deleteOwned(owner);
+      } finally {
+        locked.release();
+        finishContainerDuration.observeSince(start);
       }
     }
   }
@@ -1514,55 +2749,51 @@ public class ApplicationMaster {
       resp.onCompleted();
     }
 
-    private SortedMap<String, Msg.KeyValue.Builder> selectRange(
-          SortedMap<String, Msg.KeyValue.Builder> map,
-          String start, String end,
-          boolean openStart, boolean openEnd) {
-      if (openStart && openEnd) {
-        return map;
-      } else if (openEnd) {
-        return map.tailMap(start);
-      } else if (openStart) {
-        return map.headMap(end);
-      } else if (start.compareTo(end) <= 0) {
-        return map.subMap(start, end);
-      }
-      return null;
-    }
-
-    private Msg.GetRangeResponse.Builder evalGetRange(Msg.GetRangeRequest req) {
+    private Msg.GetRangeResponse.Builder evalGetRange(KeyValueStore.Reader reader,
+                                                      Msg.GetRangeRequest req) {
       String start = req.getStart();
       String end = req.getEnd();
 
-      Msg.GetRangeResponse.Builder builder;
-
-      synchronized (keyValueStore) {
-        SortedMap<String, Msg.KeyValue.Builder> selection =
-            selectRange(keyValueStore, start, end,
-                        start.isEmpty() || start.equals("\u0000"),
-                        end.isEmpty());
+      Msg.GetRangeResponse.Builder builder =
+          Msg.GetRangeResponse
+             .newBuilder()
+             .setResultType(req.getResultType())
+             .setRevision(reader.getRevision());
 
-        builder = Msg.GetRangeResponse
-                     .newBuilder()
-                     .setCount(selection == null ? 0 : selection.size())
-                     .setResultType(req.getResultType());
-
-        if (selection != null) {
+      if (KeyValueStore.isSingleKey(start, end)) {
+        // Single key lookups are atomic, no need to lock the range
+        Msg.KeyValue kv = reader.get(start);
+        builder.setCount(kv == null ? 0 : 1);
+        if (kv != null) {
           switch (req.getResultType()) {
             case ITEMS:
-              for (Map.Entry<String, Msg.KeyValue.Builder> entry : selection.entrySet()) {
-                builder.addResult(entry.getValue());
-              }
+              builder.addResult(kv);
               break;
             case KEYS:
-              for (String key : selection.keySet()) {
-                builder.addResult(Msg.KeyValue.newBuilder().setKey(key));
-              }
+              builder.addResult(Msg.KeyValue.newBuilder().setKey(start));
               break;
             case NONE:
               break;
           }
         }
+        return builder;
+      }
+
+      List<Msg.KeyValue> selection = reader.range(start, end);
+
+      builder.setCount(selection.size());
+
+      switch (req.getResultType()) {
+        case ITEMS:
+          builder.addAllResult(selection);
+          break;
+        case KEYS:
+          for (Msg.KeyValue kv : selection) {
+            builder.addResult(Msg.KeyValue.newBuilder().setKey(kv.getKey()));
+          }
+          break;
+        case NONE:
+          break;
       }
       return builder;
     }
@@ -1585,84 +2816,81 @@ public class ApplicationMaster {
     @Override
     public void getRange(Msg.GetRangeRequest req,
         StreamObserver<Msg.GetRangeResponse> resp) {
-      resp.onNext(evalGetRange(req).build());
+      Msg.GetRangeResponse.Builder builder;
+      if (KeyValueStore.isSingleKey(req.getStart(), req.getEnd())) {
+        builder = evalGetRange(keyValueStore.live(), req);
+      } else {
+        // Range reads use a snapshot, so writers aren't blocked
+        KeyValueStore.Snapshot snapshot = keyValueStore.snapshot();
+        try {
+          builder = evalGetRange(snapshot, req);
+        } finally {
+          snapshot.release();
+        }
+      }
+      resp.onNext(builder.build());
       resp.onCompleted();
     }
 
+    @Override
+    public void getRangeStream(Msg.GetRangeRequest req,
+        StreamObserver<Msg.GetRangeResponse> resp) {
+      if (req.getLimit() < 0) {
+        resp.onError(Status.INVALID_ARGUMENT
+            .withDescription("limit must be >= 0, got " + req.getLimit())
+            .asRuntimeException());
+        return;
+      }
+      // Collect the selection from a snapshot. This only copies references,
+      // the (much more expensive) serialization and sending happen after the
+      // snapshot is released.
+      List<Msg.KeyValue> selection;
+      long revision;
+      KeyValueStore.Snapshot snapshot = keyValueStore.snapshot();
+      try {
+        revision = snapshot.getRevision();
+        selection = snapshot.range(req.getStart(), req.getEnd());
+      } finally {
+        snapshot.release();
+      }
+      RangeStreamer streamer = new RangeStreamer(
+          req, revision, selection,
+          (ServerCallStreamObserver<Msg.GetRangeResponse>) resp);
+      streamer.call.setOnReadyHandler(streamer);
+      // Handlers run serialized with this method, so it's safe to start here
+      streamer.run();
+    }
+
     private Msg.DeleteRangeResponse.Builder evalDeleteRange(
         Msg.DeleteRangeRequest req) {
       String start = req.getStart();
       String end = req.getEnd();
 
-      Msg.DeleteRangeResponse.Builder builder;
-
-      synchronized (keyValueStore) {
-        SortedMap<String, Msg.KeyValue.Builder> selection =
-            selectRange(keyValueStore, start, end,
-                        start.isEmpty() || start.equals("\u0000"),
-                        end.isEmpty());
-
-        builder = Msg.DeleteRangeResponse
-                     .newBuilder()
-                     .setCount(selection == null ? 0 : selection.size())
-                     .setResultType(req.getResultType());
-
-        if (selection != null && selection.size() > 0) {
-          switch (req.getResultType()) {
-            case ITEMS:
-              for (Map.Entry<String, Msg.KeyValue.Builder> entry : selection.entrySet()) {
-                builder.addResult(entry.getValue());
-              }
-              break;
-            case KEYS:
-              for (String key : selection.keySet()) {
-                builder.addResult(Msg.KeyValue.newBuilder().setKey(key));
-              }
-              break;
-            case NONE:
-              break;
-          }
+      NavigableMap<String, Msg.KeyValue> selection = keyValueStore.selectRange(start, end);
 
-          // Notify watchers, if any
-          String firstKey = selection.firstKey();
-          String lastKey = selection.lastKey();
-          for (IntervalTree.Item<Watcher> item : intervalTree.query(firstKey, lastKey)) {
-            if (item.getValue().isDeleteType()) {
-              int watchId = item.getId();
-              Msg.WatchResponse.Builder wrBuilder =
-                  Msg.WatchResponse
-                     .newBuilder()
-                     .setWatchId(watchId)
-                     .setType(Msg.WatchResponse.Type.DELETE);
-              // Subselect the deleted keys based on the overlapping interval.
-              // We need to floor/ceil the bounds since `subMap` rejects keys
-              // out of the already subselected range
-              String iStart = item.getIntervalBegin();
-              String iEnd = item.getIntervalEnd();
-              SortedMap<String, Msg.KeyValue.Builder> iSelection =
-                  selectRange(selection, iStart, iEnd,
-                              iStart.compareTo(firstKey) <= 0,
-                              iEnd == null || iEnd.compareTo(lastKey) >= 0);
-
-              for (String key : iSelection.keySet()) {
-                wrBuilder.addEvent(Msg.KeyValue.newBuilder().setKey(key));
-              }
-              item.getValue().sendMsg(watchId, wrBuilder.build());
-            }
-          }
+      Msg.DeleteRangeResponse.Builder builder =
+          Msg.DeleteRangeResponse
+             .newBuilder()
+             .setCount(selection == null ? 0 : selection.size())
+             .setResultType(req.getResultType());
 
-          // Do deletion
-          // Clear owners first before deleting
-          for (Map.Entry<String, Msg.KeyValue.Builder> entry : selection.entrySet()) {
-            Msg.KeyValue.Builder value = entry.getValue();
-            if (value.hasOwner()) {
-              services.get(value.getOwner().getServiceName())
-                      .removeOwnedKey(value.getOwner().getInstance(),
-                                      entry.getKey());
+      if (selection != null && selection.size() > 0) {
+        switch (req.getResultType()) {
+          case ITEMS:
+            builder.addAllResult(selection.values());
+            break;
+          case KEYS:
+            for (String key : selection.keySet()) {
+              builder.addResult(Msg.KeyValue.newBuilder().setKey(key));
             }
-          }
-          selection.clear();
+            break;
+          case NONE:
+            break;
         }
+
+        builder.setRevision(keyValueStore.deleteRange(selection));
+      } else {
+        builder.setRevision(keyValueStore.getRevision());
       }
       return builder;
     }
@@ -1670,102 +2898,106 @@ public class ApplicationMaster {
     @Override
     public void deleteRange(Msg.DeleteRangeRequest req,
         StreamObserver<Msg.DeleteRangeResponse> resp) {
-      resp.onNext(evalDeleteRange(req).build());
+      Msg.DeleteRangeResponse.Builder builder;
+      KeyValueStore.Locked locked =
+          KeyValueStore.isSingleKey(req.getStart(), req.getEnd())
+          ? keyValueStore.lockKey(req.getStart())
+          : keyValueStore.lockAll();
+      try {
+        builder = evalDeleteRange(req);
+      } finally {
+        locked.release();
+      }
+      if (!awaitPersisted(resp)) {
+        return;
+      }
+      resp.onNext(builder.build());
       resp.onCompleted();
     }
 
     private boolean precheckPutKey(Msg.PutKeyRequest req, StreamObserver<?> resp) {
-      synchronized (keyValueStore) {
-        boolean ignoreValue = req.getIgnoreValue();
-        boolean ignoreOwner = req.getIgnoreOwner();
+      boolean ignoreValue = req.getIgnoreValue();
+      boolean ignoreOwner = req.getIgnoreOwner();
 
-        if (ignoreValue && ignoreOwner) {
-          // can't ignore both value and owner
-          resp.onError(Status.INVALID_ARGUMENT
-              .withDescription("ignore_value & ignore_owner can't both be true")
-              .asRuntimeException());
-          return false;
-        }
+      if (ignoreValue && ignoreOwner) {
+        // can't ignore both value and owner
+        resp.onError(Status.INVALID_ARGUMENT
+            .withDescription("ignore_value & ignore_owner can't both be true")
+            .asRuntimeException());
+        return false;
+      }
 
-        if (ignoreValue && keyValueStore.get(req.getKey()) == null) {
-          // ignore_value & key doesn't exist
-          resp.onError(Status.FAILED_PRECONDITION
-              .withDescription("ignore_value=True & key isn't already set")
-              .asRuntimeException());
-          return false;
-        }
+      if (ignoreValue && keyValueStore.get(req.getKey()) == null) {
+        // ignore_value & key doesn't exist
+        resp.onError(Status.FAILED_PRECONDITION
+            .withDescription("ignore_value=True & key isn't already set")
+            .asRuntimeException());
+        return false;
+      }
 
-        Msg.ContainerInstance owner = req.hasOwner() ? req.getOwner() : null;
+      Msg.ContainerInstance owner = req.hasOwner() ? req.getOwner() : null;
 
-        if (!ignoreOwner && owner != null) {
-          if (!checkContainerInstance(owner.getServiceName(),
-                                      owner.getInstance(),
-                                      true, resp)) {
-            // Either invalid container id, or container already completed
-            return false;
-          }
+      if (!ignoreOwner && owner != null) {
+        if (!checkContainerInstance(owner.getServiceName(),
+                                    owner.getInstance(),
+                                    true, resp)) {
+          // Either invalid container id, or container already completed
+          return false;
         }
       }
+
+      if (!req.getIgnoreLease() && req.getLease() != 0
+          && !leases.contains(req.getLease())) {
+        resp.onError(Status.FAILED_PRECONDITION
+            .withDescription("Lease " + req.getLease() + " doesn't exist or has expired")
+            .asRuntimeException());
+        return false;
+      }
       return true;
     }
 
-    private Msg.PutKeyResponse.Builder evalPutKey(Msg.PutKeyRequest req) {
-      String key = req.getKey();
+    // The value to store for a put, given the key's previous value
+    private Msg.KeyValue.Builder newKeyValue(Msg.PutKeyRequest req, Msg.KeyValue prev) {
       boolean ignoreValue = req.getIgnoreValue();
       boolean ignoreOwner = req.getIgnoreOwner();
-      boolean returnPrevious = req.getReturnPrevious();
-
-      Msg.KeyValue.Builder prev;
+      Msg.ContainerInstance owner = req.hasOwner() ? req.getOwner() : null;
 
-      synchronized (keyValueStore) {
-        prev = keyValueStore.get(key);
-        Msg.ContainerInstance owner = req.hasOwner() ? req.getOwner() : null;
+      Msg.KeyValue.Builder kvBuilder = Msg.KeyValue.newBuilder().setKey(req.getKey());
 
-        Msg.KeyValue.Builder kvBuilder = Msg.KeyValue.newBuilder().setKey(key);
+      if (ignoreValue) {
+        // prev == null was forbidden in precheckPutKey
+        kvBuilder.setValue(prev.getValue());
+      } else {
+        kvBuilder.setValue(req.getValue());
+      }
 
-        if (ignoreValue) {
-          // prev == null was forbidden in precheckPutKey
-          kvBuilder.setValue(prev.getValue());
-        } else {
-          kvBuilder.setValue(req.getValue());
+      if (ignoreOwner) {
+        // Copy over previous owner if one exists
+        if (prev != null && prev.hasOwner()) {
+          kvBuilder.setOwner(prev.getOwner());
         }
+      } else if (owner != null) {
+        // The owner was checked to be running in precheckPutKey, and can't
+        // complete while the key is locked. The store tracks which keys each
+        // owner holds.
+        kvBuilder.setOwner(owner);
+      }
 
-        if (ignoreOwner) {
-          // Copy over previous owner if one exists
-          if (prev != null && prev.hasOwner()) {
-            kvBuilder.setOwner(prev.getOwner());
-          }
-        } else {
-          // First clear any previous owner.
-          if (prev != null && prev.hasOwner()) {
-            services.get(prev.getOwner().getServiceName())
-                    .removeOwnedKey(prev.getOwner().getInstance(), key);
-          }
-          // Only need to update internal state if we're setting a new owner
-          if (owner != null) {
-            boolean ok = services.get(owner.getServiceName())
-                                 .addOwnedKey(owner.getInstance(), key);
-            assert ok;  // fail if owner -> completed without locking kv store
-            kvBuilder.setOwner(owner);
-          }
-        }
-        keyValueStore.put(key, kvBuilder);
-
-        // Notify watchers
-        Msg.WatchResponse.Builder wrBuilder =
-            Msg.WatchResponse
-               .newBuilder()
-               .setType(Msg.WatchResponse.Type.PUT)
-               .addEvent(kvBuilder);
-
-        for (IntervalTree.Item<Watcher> item : intervalTree.query(key)) {
-          if (item.getValue().isPutType()) {
-            int watchId = item.getId();
-            item.getValue().sendMsg(watchId, wrBuilder.setWatchId(watchId).build());
-          }
+      if (req.getIgnoreLease()) {
+        if (prev != null) {
+          kvBuilder.setLease(prev.getLease());
         }
+      } else {
+        // The lease was checked to exist in precheckPutKey, and its keys
+        // can't be deleted while this key is locked.
+        kvBuilder.setLease(req.getLease());
       }
+      return kvBuilder;
+    }
 
+    private Msg.PutKeyResponse.Builder putKeyResponse(Msg.PutKeyRequest req,
+                                                      Msg.KeyValue prev) {
+      boolean returnPrevious = req.getReturnPrevious();
       Msg.PutKeyResponse.Builder builder =
           Msg.PutKeyResponse.newBuilder().setReturnPrevious(returnPrevious);
 
@@ -1776,125 +3008,159 @@ public class ApplicationMaster {
       return builder;
     }
 
+    private Msg.PutKeyResponse.Builder evalPutKey(Msg.PutKeyRequest req) {
+      String key = req.getKey();
+      Msg.KeyValue prev = keyValueStore.get(key);
+      Msg.KeyValue.Builder kvBuilder = newKeyValue(req, prev);
+
+      keyValueStore.put(kvBuilder);
+      return putKeyResponse(req, prev);
+    }
+
+    // Apply several puts to distinct keys at a single revision, notifying
+    // each watcher once.
+    private Msg.PutKeysResponse.Builder evalPutKeys(List<Msg.PutKeyRequest> reqs) {
+      List<Msg.KeyValue> prevs = new ArrayList<Msg.KeyValue>(reqs.size());
+      List<Msg.KeyValue.Builder> kvBuilders = new ArrayList<Msg.KeyValue.Builder>(reqs.size());
+      for (Msg.PutKeyRequest req : reqs) {
+        Msg.KeyValue prev = keyValueStore.get(req.getKey());
+        prevs.add(prev);
+        kvBuilders.add(newKeyValue(req, prev));
+      }
+
+      Msg.PutKeysResponse.Builder builder = Msg.PutKeysResponse.newBuilder();
+      List<Msg.KeyValue> kvs = keyValueStore.putAll(kvBuilders);
+      builder.setRevision(kvs.get(0).getModRevision());
+
+      for (int i = 0; i < reqs.size(); i++) {
+        builder.addResult(putKeyResponse(reqs.get(i), prevs.get(i)));
+      }
+      return builder;
+    }
+
     @Override
     public void putKey(Msg.PutKeyRequest req, StreamObserver<Msg.PutKeyResponse> resp) {
-      synchronized (keyValueStore) {
+      Msg.PutKeyResponse.Builder builder;
+      KeyValueStore.Locked locked = keyValueStore.lockKey(req.getKey());
+      try {
         if (!precheckPutKey(req, resp)) {
           return;
         }
-        resp.onNext(evalPutKey(req).build());
-        resp.onCompleted();
+        builder = evalPutKey(req);
+      } finally {
+        locked.release();
       }
+      if (!awaitPersisted(resp)) {
+        return;
+      }
+      resp.onNext(builder.build());
+      resp.onCompleted();
     }
 
-    private int compareOwner(Msg.ContainerInstance lhs,
-                             Msg.ContainerInstance rhs) {
-      int out = lhs.getServiceName().compareTo(rhs.getServiceName());
-      return out != 0 ? out : Integer.compare(lhs.getInstance(), rhs.getInstance());
-    }
-
-    private int compareValue(ByteString lhs, ByteString rhs) {
-      return lhs.asReadOnlyByteBuffer().compareTo(rhs.asReadOnlyByteBuffer());
-    }
-
-    private boolean evalCondition(Msg.Condition cond) {
-      synchronized (keyValueStore) {
-        Msg.KeyValue.Builder kv = keyValueStore.get(cond.getKey());
-
-        ByteString rhsValue = null;
-        Msg.ContainerInstance rhsOwner = null;
-
-        ByteString lhsValue = null;
-        Msg.ContainerInstance lhsOwner = null;
-        if (kv != null) {
-          lhsValue = kv.getValue();
-          if (kv.hasOwner()) {
-            lhsOwner = kv.getOwner();
-          }
-        }
-
-        Msg.Condition.Operator op = cond.getOperator();
-
-        switch (cond.getRhsCase()) {
-          case VALUE:
-            rhsValue = cond.getValue();
+    // Collect the keys touched by a list of operations. Returns false if any
+    // operation spans a range of keys.
+    private boolean collectKeys(List<Msg.OpRequest> ops, List<String> keys) {
+      for (Msg.OpRequest op : ops) {
+        switch (op.getRequestCase()) {
+          case PUT_KEY:
+            keys.add(op.getPutKey().getKey());
             break;
-          case OWNER:
-            rhsOwner = cond.getOwner();
-            break;
-          case RHS_NOT_SET:
-            break;
-        }
-
-        int compare = 0;
-
-        switch (cond.getField()) {
-          case VALUE:
-            if (lhsValue == null || rhsValue == null) {
-              // only check equality if null, all other comparisons are false
-              switch (op) {
-                case EQUAL:
-                  return lhsValue == rhsValue;
-                case NOT_EQUAL:
-                  return lhsValue != rhsValue;
-                default:
-                  return false;
-              }
+          case GET_RANGE:
+            Msg.GetRangeRequest get = op.getGetRange();
+            if (!KeyValueStore.isSingleKey(get.getStart(), get.getEnd())) {
+              return false;
             }
-            compare = compareValue(lhsValue, rhsValue);
+            keys.add(get.getStart());
             break;
-          case OWNER:
-            if (lhsOwner == null || rhsOwner == null) {
-              // only check equality if null, all other comparisons are false
-              switch (op) {
-                case EQUAL:
-                  return lhsOwner == rhsOwner;
-                case NOT_EQUAL:
-                  return lhsOwner != rhsOwner;
-                default:
-                  return false;
-              }
+          case DELETE_RANGE:
+            Msg.DeleteRangeRequest delete = op.getDeleteRange();
+            if (!KeyValueStore.isSingleKey(delete.getStart(), delete.getEnd())) {
+              return false;
             }
-            compare = compareOwner(lhsOwner, rhsOwner);
+            keys.add(delete.getStart());
+            break;
+          default:
             break;
         }
+      }
+      return true;
+    }
 
-        switch (op) {
-          case EQUAL:
-            return compare == 0;
-          case NOT_EQUAL:
-            return compare != 0;
-          case LESS:
-            return compare < 0;
-          case LESS_EQUAL:
-            return compare <= 0;
-          case GREATER:
-            return compare > 0;
-          case GREATER_EQUAL:
-            return compare >= 0;
+    private boolean isReadOnly(List<Msg.OpRequest> ops) {
+      for (Msg.OpRequest op : ops) {
+        switch (op.getRequestCase()) {
+          case PUT_KEY:
+          case DELETE_RANGE:
+            return false;
+          default:
+            break;
         }
-        return true;  // appease compiler, all cases are covered above
       }
+      return true;
+    }
+
+    // Transactions that only touch individual keys lock just those keys, any
+    // transaction involving a range of keys locks the whole store.
+    private KeyValueStore.Locked lockTransaction(Msg.TransactionRequest req) {
+      List<String> keys = new ArrayList<String>();
+      for (Msg.Condition cond : req.getConditionList()) {
+        keys.add(cond.getKey());
+      }
+      if (collectKeys(req.getOnSuccessList(), keys)
+          && collectKeys(req.getOnFailureList(), keys)) {
+        return keyValueStore.lockKeys(keys);
+      }
+      return keyValueStore.lockAll();
     }
 
     @Override
     public void transaction(Msg.TransactionRequest req,
         StreamObserver<Msg.TransactionResponse> resp) {
 
-      Msg.TransactionResponse.Builder builder =
+      final Msg.TransactionResponse.Builder builder =
           Msg.TransactionResponse.newBuilder();
 
-      synchronized (keyValueStore) {
+      if (isReadOnly(req.getOnSuccessList()) && isReadOnly(req.getOnFailureList())) {
+        // Read-only transactions are evaluated against a snapshot, no locks
+        // needed
+        KeyValueStore.Snapshot snapshot = keyValueStore.snapshot();
+        try {
+          boolean succeeded = true;
+          for (Msg.Condition cond : req.getConditionList()) {
+            if (!Conditions.evaluate(snapshot, cond)) {
+              succeeded = false;
+              break;
+            }
+          }
+          List<Msg.OpRequest> ops = succeeded ? req.getOnSuccessList() : req.getOnFailureList();
+          for (Msg.OpRequest op : ops) {
+            if (op.getRequestCase() == Msg.OpRequest.RequestCase.GET_RANGE) {
+              builder.addResult(Msg.OpResponse.newBuilder()
+                     .setGetRange(evalGetRange(snapshot, op.getGetRange())));
+            }
+          }
+          builder.setSucceeded(succeeded);
+        } finally {
+          snapshot.release();
+        }
+        resp.onNext(builder.build());
+        resp.onCompleted();
+        return;
+      }
+
+      KeyValueStore.Locked locked = lockTransaction(req);
+      try {
         // Evaluate all conditions
         boolean succeeded = true;
         for (Msg.Condition cond : req.getConditionList()) {
-          if (!evalCondition(cond)) {
+          if (!Conditions.evaluate(keyValueStore.live(), cond)) {
             succeeded = false;
             break;
           }
         }
 
-        List<Msg.OpRequest> ops = succeeded ? req.getOnSuccessList() : req.getOnFailureList();
+        final List<Msg.OpRequest> ops =
+            succeeded ? req.getOnSuccessList() : req.getOnFailureList();
 
         // Validate all operations before committing any of them
         for (Msg.OpRequest op : ops) {
@@ -1909,28 +3175,40 @@ public class ApplicationMaster {
           }
         }
 
-        // Evaluate operations and build response list
-        for (Msg.OpRequest op : ops) {
-          switch (op.getRequestCase()) {
-            case PUT_KEY:
-              builder.addResult(Msg.OpResponse.newBuilder()
-                     .setPutKey(evalPutKey(op.getPutKey())));
-              break;
-            case GET_RANGE:
-              builder.addResult(Msg.OpResponse.newBuilder()
-                     .setGetRange(evalGetRange(op.getGetRange())));
-              break;
-            case DELETE_RANGE:
-              builder.addResult(Msg.OpResponse.newBuilder()
-                     .setDeleteRange(evalDeleteRange(op.getDeleteRange())));
-              break;
-            default:
-              break;
+        // Evaluate operations and build response list. All writes are made
+        // at one revision, so snapshots and watchers never see the
+        // transaction partially applied.
+        keyValueStore.atomically(new Runnable() {
+          @Override
+          public void run() {
+            for (Msg.OpRequest op : ops) {
+              switch (op.getRequestCase()) {
+                case PUT_KEY:
+                  builder.addResult(Msg.OpResponse.newBuilder()
+                         .setPutKey(evalPutKey(op.getPutKey())));
+                  break;
+                case GET_RANGE:
+                  builder.addResult(Msg.OpResponse.newBuilder()
+                         .setGetRange(evalGetRange(keyValueStore.live(), op.getGetRange())));
+                  break;
+                case DELETE_RANGE:
+                  builder.addResult(Msg.OpResponse.newBuilder()
+                         .setDeleteRange(evalDeleteRange(op.getDeleteRange())));
+                  break;
+                default:
+                  break;
+              }
+            }
           }
-        }
+        });
         builder.setSucceeded(succeeded);
+      } finally {
+        locked.release();
       }
 
+      if (!awaitPersisted(resp)) {
+        return;
+      }
       resp.onNext(builder.build());
       resp.onCompleted();
     }
@@ -1940,6 +3218,149 @@ public class ApplicationMaster {
       return new WatchRequestStream(resp);
     }
 
+    @Override
+    public void putKeys(Msg.PutKeysRequest req, StreamObserver<Msg.PutKeysResponse> resp) {
+      List<Msg.PutKeyRequest> puts = req.getPutKeyList();
+      if (puts.isEmpty()) {
+        resp.onNext(Msg.PutKeysResponse.newBuilder()
+            .setRevision(keyValueStore.getRevision())
+            .build());
+        resp.onCompleted();
+        return;
+      }
+      Set<String> keys = new HashSet<String>(puts.size());
+      for (Msg.PutKeyRequest put : puts) {
+        if (!keys.add(put.getKey())) {
+          resp.onError(Status.INVALID_ARGUMENT
+              .withDescription("Key '" + put.getKey() + "' is put more than once")
+              .asRuntimeException());
+          return;
+        }
+      }
+
+      Msg.PutKeysResponse.Builder builder;
+      KeyValueStore.Locked locked = keyValueStore.lockKeys(keys);
+      try {
+        // Validate all puts before committing any of them
+        for (Msg.PutKeyRequest put : puts) {
+          if (!precheckPutKey(put, resp)) {
+            return;
+          }
+        }
+        builder = evalPutKeys(puts);
+      } finally {
+        locked.release();
+      }
+      if (!awaitPersisted(resp)) {
+        return;
+      }
+      resp.onNext(builder.build());
+      resp.onCompleted();
+    }
+
+    @Override
+    public void compareAndSwap(Msg.CompareAndSwapRequest req,
+        StreamObserver<Msg.CompareAndSwapResponse> resp) {
+      Msg.PutKeyRequest put = req.getPutKey();
+      Msg.CompareAndSwapResponse.Builder builder = Msg.CompareAndSwapResponse.newBuilder();
+      boolean succeeded;
+      KeyValueStore.Locked locked = keyValueStore.lockKey(put.getKey());
+      try {
+        Msg.KeyValue prev = keyValueStore.get(put.getKey());
+        if (prev != null) {
+          builder.setPrevious(prev);
+        }
+        switch (req.getExpectedCase()) {
+          case VALUE:
+            succeeded = prev != null && prev.getValue().equals(req.getValue());
+            break;
+          case MOD_REVISION:
+            succeeded = (prev == null ? 0 : prev.getModRevision()) == req.getModRevision();
+            break;
+          default:
+            resp.onError(Status.INVALID_ARGUMENT
+                .withDescription("One of value or mod_revision must be set")
+                .asRuntimeException());
+            return;
+        }
+        if (succeeded) {
+          if (!precheckPutKey(put, resp)) {
+            return;
+          }
+          evalPutKey(put);
+          builder.setRevision(keyValueStore.get(put.getKey()).getModRevision());
+        } else {
+          builder.setRevision(keyValueStore.getRevision());
+        }
+      } finally {
+        locked.release();
+      }
+      if (succeeded && !awaitPersisted(resp)) {
+        return;
+      }
+      resp.onNext(builder.setSucceeded(succeeded).build());
+      resp.onCompleted();
+    }
+
+    @Override
+    public void leaseGrant(Msg.LeaseGrantRequest req,
+        StreamObserver<Msg.LeaseGrantResponse> resp) {
+      if (req.getTtlMs() <= 0) {
+        resp.onError(Status.INVALID_ARGUMENT
+            .withDescription("ttl_ms must be > 0")
+            .asRuntimeException());
+        return;
+      }
+      long id = leases.grant(req.getTtlMs(), monotonicMillis());
+      resp.onNext(Msg.LeaseGrantResponse.newBuilder()
+          .setId(id)
+          .setTtlMs(req.getTtlMs())
+          .build());
+      resp.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<Msg.LeaseKeepAliveRequest> leaseKeepAlive(
+        final StreamObserver<Msg.LeaseKeepAliveResponse> resp) {
+      return new StreamObserver<Msg.LeaseKeepAliveRequest>() {
+        @Override
+        public void onNext(Msg.LeaseKeepAliveRequest req) {
+          long ttl = leases.keepAlive(req.getId(), monotonicMillis());
+          resp.onNext(Msg.LeaseKeepAliveResponse.newBuilder()
+              .setId(req.getId())
+              .setTtlMs(ttl)
+              .build());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+          // Leases expire on their own if the client is gone
+        }
+
+        @Override
+        public void onCompleted() {
+          resp.onCompleted();
+        }
+      };
+    }
+
+    @Override
+    public void leaseRevoke(Msg.LeaseRevokeRequest req,
+        StreamObserver<Msg.LeaseRevokeResponse> resp) {
+      if (!leases.revoke(req.getId())) {
+        resp.onError(Status.FAILED_PRECONDITION
+            .withDescription("Lease " + req.getId() + " doesn't exist or has expired")
+            .asRuntimeException());
+        return;
+      }
+      long revision = deleteLeasedKeys(Collections.singletonList(req.getId()));
+      if (!awaitPersisted(resp)) {
+        return;
+      }
+      resp.onNext(Msg.LeaseRevokeResponse.newBuilder().setRevision(revision).build());
+      resp.onCompleted();
+    }
+
     @Override
     public void addProxy(Msg.Proxy req, StreamObserver<Msg.Empty> resp) {
       ui.addProxy(req, resp);
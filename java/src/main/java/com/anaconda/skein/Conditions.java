@@ -0,0 +1,97 @@
+package com.anaconda.skein;
+
+import com.google.protobuf.ByteString;
+
+/** Evaluation of key-value store transaction conditions. **/
+public final class Conditions {
+  private Conditions() {}
+
+  private static int compareOwner(Msg.ContainerInstance lhs,
+                                  Msg.ContainerInstance rhs) {
+    int out = lhs.getServiceName().compareTo(rhs.getServiceName());
+    return out != 0 ? out : Integer.compare(lhs.getInstance(), rhs.getInstance());
+  }
+
+  private static int compareValue(ByteString lhs, ByteString rhs) {
+    return lhs.asReadOnlyByteBuffer().compareTo(rhs.asReadOnlyByteBuffer());
+  }
+
+  /** Evaluate a transaction condition against a view of the store. **/
+  public static boolean evaluate(KeyValueStore.Reader reader, Msg.Condition cond) {
+    Msg.KeyValue kv = reader.get(cond.getKey());
+
+    ByteString rhsValue = null;
+    Msg.ContainerInstance rhsOwner = null;
+
+    ByteString lhsValue = null;
+    Msg.ContainerInstance lhsOwner = null;
+    if (kv != null) {
+      lhsValue = kv.getValue();
+      if (kv.hasOwner()) {
+        lhsOwner = kv.getOwner();
+      }
+    }
+
+    Msg.Condition.Operator op = cond.getOperator();
+
+    switch (cond.getRhsCase()) {
+      case VALUE:
+        rhsValue = cond.getValue();
+        break;
+      case OWNER:
+        rhsOwner = cond.getOwner();
+        break;
+      case RHS_NOT_SET:
+        break;
+    }
+
+    int compare = 0;
+
+    switch (cond.getField()) {
+      case VALUE:
+        if (lhsValue == null || rhsValue == null) {
+          // only check equality if null, all other comparisons are false
+          switch (op) {
+            case EQUAL:
+              return lhsValue == rhsValue;
+            case NOT_EQUAL:
+              return lhsValue != rhsValue;
+            default:
+              return false;
+          }
+        }
+        compare = compareValue(lhsValue, rhsValue);
+        break;
+      case OWNER:
+        if (lhsOwner == null || rhsOwner == null) {
+          // only check equality if null, all other comparisons are false
+          switch (op) {
+            case EQUAL:
+              return lhsOwner == rhsOwner;
+            case NOT_EQUAL:
+              return lhsOwner != rhsOwner;
+            default:
+              return false;
+          }
+        }
+        compare = compareOwner(lhsOwner, rhsOwner);
+        break;
+    }
+
+    switch (op) {
+      case EQUAL:
+        return compare == 0;
+      case NOT_EQUAL:
+        return compare != 0;
+      case LESS:
+        return compare < 0;
+      case LESS_EQUAL:
+        return compare <= 0;
+      case GREATER:
+        return compare > 0;
+      case GREATER_EQUAL:
+        return compare >= 0;
+    }
+    return true;  // appease compiler, all cases are covered above
+  }
+}
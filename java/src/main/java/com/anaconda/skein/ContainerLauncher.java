@@ -0,0 +1,232 @@
+package com.anaconda.skein;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.protocolrecords.StartContainerRequest;
+import org.apache.hadoop.yarn.api.protocolrecords.StartContainersRequest;
+import org.apache.hadoop.yarn.api.protocolrecords.StartContainersResponse;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.api.records.SerializedException;
+import org.apache.hadoop.yarn.client.api.impl.ContainerManagementProtocolProxy;
+import org.apache.hadoop.yarn.client.api.impl.ContainerManagementProtocolProxy.ContainerManagementProtocolProxyData;
+import org.apache.hadoop.yarn.exceptions.YarnException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Launches containers without blocking the caller, batching launches on
+ * the same NodeManager.
+ *
+ * Each node has at most one StartContainers RPC in flight. Launches queued
+ * for a node while an RPC is running are sent together in its next one, so
+ * the launch rate grows with load instead of being bounded by the number of
+ * launcher threads.
+ **/
+public class ContainerLauncher {
+  private static final Logger LOG = LoggerFactory.getLogger(ContainerLauncher.class);
+
+  // The maximum number of containers started by a single RPC
+  private static final int MAX_BATCH_SIZE = 100;
+
+  /** Notified if a container fails to start. **/
+  public interface Callback {
+    void onStartFailed(Throwable exc);
+  }
+
+  private static final class Launch {
+    private final Container container;
+    private final ContainerLaunchContext ctx;
+    private final Callback callback;
+    private final long queuedNanos = System.nanoTime();
+
+    Launch(Container container, ContainerLaunchContext ctx, Callback callback) {
+      this.container = container;
+      this.ctx = ctx;
+      this.callback = callback;
+    }
+  }
+
+  private final ContainerManagementProtocolProxy proxy;
+  private final ThreadPoolExecutor executor;
+  // Launches waiting for each node. A node has an entry only while a task
+  // for it is scheduled or running. Guarded by this.
+  private final Map<NodeId, List<Launch>> queued = new HashMap<NodeId, List<Launch>>();
+
+  private final Metrics.Counter numStarted;
+  private final Metrics.Counter numFailed;
+  private final Metrics.Histogram batchSize;
+  private final Metrics.Histogram launchLatency;
+
+  /** Create a launcher, running RPCs to at most `maxThreads` nodes at once.
+   *
+   * NodeManager tokens are taken from the shared NMTokenCache, which the
+   * AMRMClient populates on allocation.
+   **/
+  public ContainerLauncher(Configuration conf, int maxThreads, Metrics metrics) {
+    numStarted = metrics.counter("skein_container_launches_total",
+        "Total number of container launches", "result", "started");
+    numFailed = metrics.counter("skein_container_launches_total",
+        "Total number of container launches", "result", "failed");
+    batchSize = metrics.countHistogram("skein_container_launch_batch_size",
+        "Number of containers started by each StartContainers RPC");
+    launchLatency = metrics.durationHistogram("skein_container_launch_duration_seconds",
+        "Time from queueing a container launch until it is started");
+    proxy = new ContainerManagementProtocolProxy(conf);
+    executor = Utils.newThreadPoolExecutor(
+        "container-launcher", maxThreads, maxThreads, true);
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /** Start a container asynchronously. **/
+  public void launch(Container container, ContainerLaunchContext ctx,
+                     Callback callback) {
+    final NodeId node = container.getNodeId();
+    Launch launch = new Launch(container, ctx, callback);
+    synchronized (this) {
+      List<Launch> launches = queued.get(node);
+      if (launches != null) {
+        launches.add(launch);
+        return;
+      }
+      launches = new ArrayList<Launch>();
+      launches.add(launch);
+      queued.put(node, launches);
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          List<Launch> batch;
+          while ((batch = nextBatch(node)) != null) {
+            startBatch(node, batch);
+          }
+        }
+      });
+    } catch (RejectedExecutionException exc) {
+      // Stopped. Fail everything queued for the node, so later launches
+      // aren't added to a list nothing drains.
+      List<Launch> rejected;
+      synchronized (this) {
+        rejected = queued.remove(node);
+      }
+      for (Launch failed : rejected) {
+        fail(failed, exc);
+      }
+    }
+  }
+
+  // Take the next batch of launches for a node, or null if there are none.
+  private synchronized List<Launch> nextBatch(NodeId node) {
+    List<Launch> launches = queued.get(node);
+    if (launches.isEmpty()) {
+      queued.remove(node);
+      return null;
+    }
+    if (launches.size() <= MAX_BATCH_SIZE) {
+      queued.put(node, new ArrayList<Launch>());
+      return launches;
+    }
+    List<Launch> batch = new ArrayList<Launch>(launches.subList(0, MAX_BATCH_SIZE));
+    launches.subList(0, MAX_BATCH_SIZE).clear();
+    return batch;
+  }
+
+  /** Start containers on a node with a single StartContainers RPC,
+   * returning those that failed. Overridden by the test harness. **/
+  Map<ContainerId, SerializedException> startContainers(
+      NodeId node, List<Container> containers, List<ContainerLaunchContext> contexts)
+      throws IOException, YarnException {
+    List<StartContainerRequest> requests =
+        new ArrayList<StartContainerRequest>(containers.size());
+    for (int i = 0; i < containers.size(); i++) {
+      requests.add(StartContainerRequest.newInstance(
+          contexts.get(i), containers.get(i).getContainerToken()));
+    }
+
+    ContainerManagementProtocolProxyData data = null;
+    try {
+      data = proxy.getProxy(node.toString(), containers.get(0).getId());
+      StartContainersResponse resp = data.getContainerManagementProtocol()
+          .startContainers(StartContainersRequest.newInstance(requests));
+      return resp.getFailedRequests();
+    } finally {
+      if (data != null) {
+        proxy.mayBeCloseProxy(data);
+      }
+    }
+  }
+
+  private void startBatch(NodeId node, List<Launch> batch) {
+    List<Container> containers = new ArrayList<Container>(batch.size());
+    List<ContainerLaunchContext> contexts =
+        new ArrayList<ContainerLaunchContext>(batch.size());
+    for (Launch launch : batch) {
+      containers.add(launch.container);
+      contexts.add(launch.ctx);
+    }
+
+    long start = System.nanoTime();
+    Map<ContainerId, SerializedException> failed = null;
+    Throwable error = null;
+    try {
+      failed = startContainers(node, containers, contexts);
+    } catch (Throwable exc) {
+      error = exc;
+    }
+
+    long end = System.nanoTime();
+    batchSize.observe(batch.size());
+    for (Launch launch : batch) {
+      Throwable exc = error;
+      if (exc == null && failed != null) {
+        SerializedException serialized = failed.get(launch.container.getId());
+        if (serialized != null) {
+          exc = serialized.deSerialize();
+        }
+      }
+      if (exc == null) {
+        numStarted.inc();
+        launchLatency.observe(end - launch.queuedNanos);
+      } else {
+        fail(launch, exc);
+      }
+    }
+    LOG.debug("Started {} containers on {} in {} ms", batch.size(), node,
+              TimeUnit.NANOSECONDS.toMillis(end - start));
+  }
+
+  private void fail(Launch launch, Throwable exc) {
+    numFailed.inc();
+    try {
+      launch.callback.onStartFailed(exc);
+    } catch (Throwable callbackExc) {
+      LOG.error("Error handling failed start of {}",
+                launch.container.getId(), callbackExc);
+    }
+  }
+
+  /** The number of containers started successfully. **/
+  public long getNumStarted() {
+    return numStarted.get();
+  }
+
+  /** The number of containers that failed to start. **/
+  public long getNumFailed() {
+    return numFailed.get();
+  }
+
+  public void stop() {
+    executor.shutdownNow();
+    proxy.stopAllProxies();
+  }
+}
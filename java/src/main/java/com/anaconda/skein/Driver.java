@@ -9,7 +9,6 @@ import io.grpc.StatusRuntimeException;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.handler.ssl.ClientAuth;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslProvider;
@@ -53,20 +52,11 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivilegedExceptionAction;
 import java.util.*;
-import java.util.concurrent.ThreadPoolExecutor;
 
 public class Driver {
 
   private static final Logger LOG = LoggerFactory.getLogger(Driver.class);
 
-  // One for the boss, one for the worker. Should be fine under normal loads.
-  private static final int NUM_EVENT_LOOP_GROUP_THREADS = 2;
-
-  // The thread bounds for handling requests. Since we use locking at some
-  // level, we can only get so much parallelism in *handling* requests.
-  private static final int MIN_GRPC_EXECUTOR_THREADS = 2;
-  private static final int MAX_GRPC_EXECUTOR_THREADS = 10;
-
   // Owner rwx (700)
   private static final FsPermission SKEIN_DIR_PERM =
       FsPermission.createImmutable((short)448);
@@ -110,19 +100,15 @@ public class Driver {
         .sslProvider(SslProvider.OPENSSL)
         .build();
 
-    NioEventLoopGroup eg = new NioEventLoopGroup(NUM_EVENT_LOOP_GROUP_THREADS);
-    ThreadPoolExecutor executor = Utils.newThreadPoolExecutor(
-        "grpc-executor",
-        MIN_GRPC_EXECUTOR_THREADS,
-        MAX_GRPC_EXECUTOR_THREADS,
-        true);
+    GrpcServerOptions options = GrpcServerOptions.fromSystemProperties();
+    LOG.debug("Starting driver with {}", options);
 
-    server = NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0))
+    NettyServerBuilder builder =
+        NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0));
+    server = options.configure(builder)
         .sslContext(sslContext)
         .addService(new DriverImpl())
-        .workerEventLoopGroup(eg)
-        .bossEventLoopGroup(eg)
-        .executor(executor)
+        .executor(options.newExecutor())
         .build()
         .start();
 
@@ -359,6 +345,27 @@ public class Driver {
     }
   }
 
+  /** JVM options sizing the application master to fit its container. **/
+  private static String jvmOptions(Model.Master master) {
+    StringBuilder opts = new StringBuilder()
+        .append("-Xmx").append(master.getHeapMemory()).append("M ")
+        .append("-XX:MaxDirectMemorySize=").append(master.getDirectMemory()).append("M ");
+    switch (master.getGc()) {
+      case SERIAL:
+        opts.append("-XX:+UseSerialGC ");
+        break;
+      case PARALLEL:
+        opts.append("-XX:+UseParallelGC ");
+        break;
+      case G1:
+        opts.append("-XX:+UseG1GC ");
+        break;
+      default:
+        break;
+    }
+    return opts.toString();
+  }
+
   private ApplicationId submitApplicationInner(YarnClient yarnClient, FileSystem fs, Model.ApplicationSpec spec) throws IOException, YarnException {
     // First validate the spec request
     spec.validate();
@@ -393,7 +400,8 @@ public class Driver {
     Level logLevel = master.getLogLevel();
     List<String> commands = Arrays.asList(
         (Environment.JAVA_HOME.$$() + "/bin/java "
-         + "-Xmx128M "
+         + jvmOptions(master)
+         + master.getGrpcServerOptions().toJavaOptions()
          + log4jConfig
          + "-Dskein.log.level=" + logLevel
          + " -Dskein.log.directory=" + ApplicationConstants.LOG_DIR_EXPANSION_VAR
@@ -430,6 +438,8 @@ public class Driver {
       appContext.setPriority(Priority.newInstance(0));
       appContext.setQueue(spec.getQueue());
       appContext.setMaxAppAttempts(spec.getMaxAttempts());
+      // Later attempts adopt the containers of earlier ones
+      appContext.setKeepContainersAcrossApplicationAttempts(spec.getMaxAttempts() > 1);
       appContext.setNodeLabelExpression(Strings.emptyToNull(spec.getNodeLabel()));
       appContext.setApplicationTags(spec.getTags());
 
@@ -0,0 +1,173 @@
+package com.anaconda.skein;
+
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/** Threading and transport settings for a gRPC server.
+ *
+ * Settings are read from system properties, so they can be set in the java
+ * options of the driver, and are passed to the application master from its
+ * specification:
+ *
+ * - `skein.grpc.worker.threads`: threads handling connection IO. Defaults
+ *   to the number of available processors.
+ * - `skein.grpc.executor.threads`: the maximum number of threads handling
+ *   requests. Defaults to 10.
+ * - `skein.grpc.native.transport`: whether to use the native epoll transport
+ *   when available. Defaults to false.
+ * - `skein.grpc.flow.control.window`: the HTTP/2 flow control window in
+ *   bytes. Defaults to the gRPC default.
+ **/
+public class GrpcServerOptions {
+  private static final Logger LOG = LoggerFactory.getLogger(GrpcServerOptions.class);
+
+  public static final String WORKER_THREADS = "skein.grpc.worker.threads";
+  public static final String EXECUTOR_THREADS = "skein.grpc.executor.threads";
+  public static final String NATIVE_TRANSPORT = "skein.grpc.native.transport";
+  public static final String FLOW_CONTROL_WINDOW = "skein.grpc.flow.control.window";
+
+  // Accepting connections is cheap, a single thread is plenty.
+  private static final int NUM_BOSS_THREADS = 1;
+
+  // The thread bounds for handling requests. Since we use locking at some
+  // level, we can only get so much parallelism in *handling* requests.
+  private static final int MIN_EXECUTOR_THREADS = 2;
+  private static final int DEFAULT_MAX_EXECUTOR_THREADS = 10;
+
+  // The native transport isn't a compile-time dependency, as it's only
+  // available on some platforms.
+  private static final String EPOLL = "io.netty.channel.epoll.Epoll";
+  private static final String EPOLL_EVENT_LOOP_GROUP =
+      "io.netty.channel.epoll.EpollEventLoopGroup";
+  private static final String EPOLL_SERVER_SOCKET_CHANNEL =
+      "io.netty.channel.epoll.EpollServerSocketChannel";
+
+  // Unset (0) values use the defaults of the JVM running the server
+  private final int workerThreads;
+  private final int executorThreads;
+  private final boolean nativeTransport;
+  private final int flowControlWindow;
+
+  public GrpcServerOptions(int workerThreads, int executorThreads,
+                           boolean nativeTransport, int flowControlWindow) {
+    this.workerThreads = workerThreads;
+    this.executorThreads = executorThreads;
+    this.nativeTransport = nativeTransport;
+    this.flowControlWindow = flowControlWindow;
+  }
+
+  public static GrpcServerOptions fromSystemProperties() {
+    return new GrpcServerOptions(
+        Integer.getInteger(WORKER_THREADS, 0),
+        Integer.getInteger(EXECUTOR_THREADS, 0),
+        Boolean.getBoolean(NATIVE_TRANSPORT),
+        Integer.getInteger(FLOW_CONTROL_WINDOW, 0));
+  }
+
+  public int getWorkerThreads() {
+    return (workerThreads > 0
+            ? workerThreads
+            : Runtime.getRuntime().availableProcessors());
+  }
+
+  public int getExecutorThreads() {
+    return Math.max(MIN_EXECUTOR_THREADS,
+        executorThreads > 0 ? executorThreads : DEFAULT_MAX_EXECUTOR_THREADS);
+  }
+
+  public boolean getNativeTransport() { return nativeTransport; }
+
+  public int getFlowControlWindow() { return flowControlWindow; }
+
+  /** Create the executor for handling requests.
+   *
+   * The executor's queue is unbounded, so it never starts more than its core
+   * threads. All threads are core threads instead, which time out when idle.
+   **/
+  public ThreadPoolExecutor newExecutor() {
+    ThreadPoolExecutor executor = Utils.newThreadPoolExecutor(
+        "grpc-executor", getExecutorThreads(), getExecutorThreads(), true);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /** Configure the event loops, channel type, and flow control of a server
+   * builder. **/
+  public NettyServerBuilder configure(NettyServerBuilder builder) {
+    EventLoopGroup boss = null;
+    EventLoopGroup worker = null;
+    Class<? extends ServerChannel> channelType = NioServerSocketChannel.class;
+    if (nativeTransport) {
+      try {
+        if ((Boolean)Class.forName(EPOLL).getMethod("isAvailable").invoke(null)) {
+          boss = newEpollEventLoopGroup(NUM_BOSS_THREADS, "grpc-boss");
+          worker = newEpollEventLoopGroup(getWorkerThreads(), "grpc-worker");
+          channelType = Class.forName(EPOLL_SERVER_SOCKET_CHANNEL)
+              .asSubclass(ServerChannel.class);
+        } else {
+          LOG.warn("Native transport unavailable on this platform, using NIO");
+        }
+      } catch (Exception exc) {
+        LOG.warn("Failed to load native transport, using NIO", exc);
+        boss = worker = null;
+        channelType = NioServerSocketChannel.class;
+      }
+    }
+    if (boss == null) {
+      boss = new NioEventLoopGroup(NUM_BOSS_THREADS,
+          new Utils.CustomThreadFactory("grpc-boss", true));
+      worker = new NioEventLoopGroup(getWorkerThreads(),
+          new Utils.CustomThreadFactory("grpc-worker", true));
+    }
+    LOG.info("Using {} transport for gRPC server",
+             channelType == NioServerSocketChannel.class ? "NIO" : "native epoll");
+    builder.bossEventLoopGroup(boss)
+        .workerEventLoopGroup(worker)
+        .channelType(channelType);
+    if (flowControlWindow > 0) {
+      builder.flowControlWindow(flowControlWindow);
+    }
+    return builder;
+  }
+
+  private static EventLoopGroup newEpollEventLoopGroup(int threads, String name)
+      throws Exception {
+    return (EventLoopGroup)Class.forName(EPOLL_EVENT_LOOP_GROUP)
+        .getConstructor(int.class, ThreadFactory.class)
+        .newInstance(threads, new Utils.CustomThreadFactory(name, true));
+  }
+
+  /** The system properties passing any set options to another JVM. **/
+  public String toJavaOptions() {
+    StringBuilder opts = new StringBuilder();
+    appendOption(opts, WORKER_THREADS, workerThreads);
+    appendOption(opts, EXECUTOR_THREADS, executorThreads);
+    if (nativeTransport) {
+      opts.append("-D").append(NATIVE_TRANSPORT).append("=true ");
+    }
+    appendOption(opts, FLOW_CONTROL_WINDOW, flowControlWindow);
+    return opts.toString();
+  }
+
+  private static void appendOption(StringBuilder opts, String property, int value) {
+    if (value > 0) {
+      opts.append("-D").append(property).append("=").append(value).append(" ");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return ("GrpcServerOptions<workerThreads: " + getWorkerThreads()
+            + ", executorThreads: " + getExecutorThreads()
+            + ", nativeTransport: " + nativeTransport
+            + ", flowControlWindow: " + flowControlWindow + ">");
+  }
+}
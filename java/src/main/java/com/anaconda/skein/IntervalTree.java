@@ -16,9 +16,9 @@
 package com.anaconda.skein;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -59,6 +59,10 @@ public class IntervalTree<T> {
     String getBegin() { return begin; }
     String getEnd() { return end; }
 
+    boolean contains(String key) {
+      return begin.compareTo(key) <= 0 && nullStringCompare(end, key) > 0;
+    }
+
     @Override
     public int hashCode() {
       int hash = begin == null ? 0 : begin.hashCode();
@@ -82,9 +86,16 @@ public class IntervalTree<T> {
     }
   }
 
+  /** A callback for visiting items matched by a query. **/
+  public interface Visitor<V> {
+    void visit(Item<V> item);
+  }
+
   public static class Item<V> {
     private Interval interval;
     private TreeNode<V> treenode;
+    // Position in treenode.items
+    private int index;
     private V value;
     private int id;
 
@@ -111,7 +122,9 @@ public class IntervalTree<T> {
     TreeNode<V> left;
     TreeNode<V> right;
     TreeNode<V> parent;
-    HashSet<Item<V>> items;
+    // All items with this interval, stored compactly in items[0:numItems]
+    Item<V>[] items;
+    int numItems;
     String max;
 
     TreeNode(Interval interval, Color nodeColor, TreeNode<V> left, TreeNode<V> right) {
@@ -120,10 +133,43 @@ public class IntervalTree<T> {
       this.left = left;
       this.right = right;
       this.parent = null;
-      this.items = new HashSet<Item<V>>();
+      this.items = newItemArray(1);
+      this.numItems = 0;
       updateMax();
     }
 
+    @SuppressWarnings("unchecked")
+    private static <V> Item<V>[] newItemArray(int size) {
+      return (Item<V>[]) new Item<?>[size];
+    }
+
+    void addItem(Item<V> item) {
+      if (numItems == items.length) {
+        items = Arrays.copyOf(items, 2 * numItems);
+      }
+      item.treenode = this;
+      item.index = numItems;
+      items[numItems++] = item;
+    }
+
+    // Swap the last item into the removed slot, so removal is O(1)
+    void removeItem(Item<V> item) {
+      numItems--;
+      Item<V> last = items[numItems];
+      items[item.index] = last;
+      last.index = item.index;
+      items[numItems] = null;
+    }
+
+    // Take over all items from another node
+    void moveItemsFrom(TreeNode<V> other) {
+      items = other.items;
+      numItems = other.numItems;
+      for (int i = 0; i < numItems; i++) {
+        items[i].treenode = this;
+      }
+    }
+
     void updateMax() {
       max = interval.end;
 
@@ -150,40 +196,42 @@ public class IntervalTree<T> {
       return parent.sibling();
     }
 
-    private List<Item<V>> query(Interval target, List<Item<V>> out) {
+    private void visitItems(Visitor<V> visitor) {
+      for (int i = 0; i < numItems; i++) {
+        visitor.visit(items[i]);
+      }
+    }
+
+    private void query(Interval target, Visitor<V> visitor) {
       boolean eRightOfB = nullStringCompare(interval.begin, target.end) <= 0;
 
       if (eRightOfB && nullStringCompare(interval.end, target.begin) > 0) {
-        out.addAll(items);
+        visitItems(visitor);
       }
 
       if (left != null && nullStringCompare(left.max, target.begin) > 0) {
-        left.query(target, out);
+        left.query(target, visitor);
       }
 
       if (right != null && eRightOfB) {
-        right.query(target, out);
+        right.query(target, visitor);
       }
-
-      return out;
     }
 
-    private List<Item<V>> query(String target, List<Item<V>> out) {
+    private void query(String target, Visitor<V> visitor) {
       boolean rightOfB = nullStringCompare(interval.begin, target) <= 0;
 
       if (rightOfB && nullStringCompare(interval.end, target) > 0) {
-        out.addAll(items);
+        visitItems(visitor);
       }
 
       if (left != null && nullStringCompare(left.max, target) > 0) {
-        left.query(target, out);
+        left.query(target, visitor);
       }
 
       if (right != null && rightOfB) {
-        right.query(target, out);
+        right.query(target, visitor);
       }
-
-      return out;
     }
 
   }
@@ -206,12 +254,36 @@ public class IntervalTree<T> {
     return (n == null) ? Color.BLACK : n.color;
   }
 
+  private static final class Collector<V> implements Visitor<V> {
+    private final List<Item<V>> out = new ArrayList<Item<V>>();
+
+    public void visit(Item<V> item) {
+      out.add(item);
+    }
+  }
+
+  // Visit all intervals containing the target, without allocating.
+  public void forEachOverlapping(String target, Visitor<T> visitor) {
+    if (root != null) {
+      root.query(target, visitor);
+    }
+  }
+
+  // Visit all intervals intersecting with [begin, end] (note inclusive end).
+  public void forEachOverlapping(String begin, String end, Visitor<T> visitor) {
+    if (root != null) {
+      root.query(new Interval(begin, end), visitor);
+    }
+  }
+
   // Find all intervals containing the target
   public List<Item<T>> query(String target) {
     if (root == null) {
       return Collections.emptyList();
     }
-    return root.query(target, new ArrayList<Item<T>>(Math.round(size() * 0.5f)));
+    Collector<T> collector = new Collector<T>();
+    root.query(target, collector);
+    return collector.out;
   }
 
   // Find all intervals intersecting with [begin, end] (note inclusive end).
@@ -219,8 +291,9 @@ public class IntervalTree<T> {
     if (root == null) {
       return Collections.emptyList();
     }
-    return root.query(new Interval(begin, end),
-                      new ArrayList<Item<T>>(Math.round(size() * 0.5f)));
+    Collector<T> collector = new Collector<T>();
+    root.query(new Interval(begin, end), collector);
+    return collector.out;
   }
 
   private void replaceNode(TreeNode<T> oldn, TreeNode<T> newn) {
@@ -275,7 +348,12 @@ public class IntervalTree<T> {
   }
 
   public int add(String begin, String end, T value) {
-    Item<T> item = new Item<T>(begin, end, value, nextId());
+    return add(new Item<T>(begin, end, value, nextId()));
+  }
+
+  // Add an item whose id was assigned elsewhere (see WatchIndex). Callers
+  // must not mix this with `add(begin, end, value)` on the same tree.
+  int add(Item<T> item) {
     TreeNode<T> newNode = new TreeNode<T>(item.interval, Color.RED, null, null);
     lookup.put(item.id, item);
 
@@ -290,9 +368,8 @@ public class IntervalTree<T> {
         if (beginComp == 0) {
           int endComp = nullStringCompare(item.interval.end, n.interval.end);
           if (endComp == 0) {
-            // Match with existing interval, just add to set
-            n.items.add(item);
-            item.treenode = n;
+            // Match with existing interval, just add to items
+            n.addItem(item);
             return item.id;
           } else {
             if (endComp > 0) {
@@ -330,8 +407,7 @@ public class IntervalTree<T> {
       newNode.parent = n;
     }
 
-    newNode.items.add(item);
-    item.treenode = newNode;
+    newNode.addItem(item);
     fixTreeAt(newNode);
     return item.id;
   }
@@ -406,9 +482,9 @@ public class IntervalTree<T> {
 
     TreeNode<T> n = item.treenode;
 
-    if (n.items.size() > 1) {
+    if (n.numItems > 1) {
       // we retain the node since it contains multiple items
-      n.items.remove(item);
+      n.removeItem(item);
       return true;
     }
 
@@ -416,10 +492,7 @@ public class IntervalTree<T> {
       // Copy key/value from predecessor and then delete it instead
       TreeNode<T> pred = maximumNode(n.left);
       n.interval = pred.interval;
-      n.items = pred.items;
-      for (Item<T> it : n.items) {
-        it.treenode = n;
-      }
+      n.moveItemsFrom(pred);
       n = pred;
     }
 
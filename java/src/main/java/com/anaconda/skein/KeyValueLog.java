@@ -0,0 +1,448 @@
+package com.anaconda.skein;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** A write-ahead log of changes to a KeyValueStore, so the store can be
+ * recovered by a later application attempt.
+ *
+ * Every event recorded by the store is appended to the current log segment
+ * (`log.<n>`) in a directory on a FileSystem. Appends are queued in memory
+ * and written by a single writer thread, which flushes everything queued
+ * since its last flush at once (group commit). Callers that need a change to
+ * be durable before replying wait for it with `sync`.
+ *
+ * A revision may hold several events (e.g. `putAll`, or deleting all keys
+ * held by an owner), so the events of each revision are followed by a
+ * commit record. Recovery only applies revisions whose commit record was
+ * written, so a revision is restored either whole or not at all.
+ *
+ * Writes are made durable with `hflush`, which waits for every DataNode in
+ * the pipeline to receive them but not to write them to disk. This survives
+ * the application master failing, which is what later attempts recover
+ * from, but not every DataNode holding the segment losing power at once.
+ *
+ * If a write fails, the log stops and `sync` raises the failure from then
+ * on. Changes after that are still applied to the store, but won't be
+ * recovered by a later attempt.
+ *
+ * Once a segment holds enough events, the writer starts a new segment and a
+ * background thread writes a compacted snapshot of the store
+ * (`snapshot.<n>`, covering all segments before `n`), after which the older
+ * segments and snapshots are deleted. Recovery loads the newest snapshot and
+ * replays the segments after it.
+ **/
+public class KeyValueLog implements KeyValueStore.Listener {
+  private static final Logger LOG = LoggerFactory.getLogger(KeyValueLog.class);
+
+  private static final int DEFAULT_SNAPSHOT_INTERVAL = 10000;
+  private static final String SEGMENT_PREFIX = "log.";
+  private static final String SNAPSHOT_PREFIX = "snapshot.";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final int PUT = 0;
+  private static final int DELETE = 1;
+  private static final int COMMIT = 2;
+
+  private final FileSystem fs;
+  private final Path dir;
+  private final KeyValueStore store;
+  private final int snapshotInterval;
+
+  // Queue of events not yet written, and the writer's progress
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition hasPending = lock.newCondition();
+  private final Condition flushed = lock.newCondition();
+  private List<KeyValueStore.Event> pending = new ArrayList<KeyValueStore.Event>();
+  private long durableRevision = 0;
+  private boolean closed = false;
+  private boolean stopped = false;
+  // Set if the writer failed, after which nothing more is persisted
+  private IOException failure = null;
+
+  // Only accessed by the writer thread once started
+  private Thread writer;
+  private FSDataOutputStream out;
+  private int segment = 0;
+  private int segmentEvents = 0;
+
+  private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(
+      new Utils.CustomThreadFactory("kv-snapshot", true));
+  private volatile boolean snapshotting = false;
+
+  public KeyValueLog(FileSystem fs, Path dir, KeyValueStore store) {
+    this(fs, dir, store, DEFAULT_SNAPSHOT_INTERVAL);
+  }
+
+  public KeyValueLog(FileSystem fs, Path dir, KeyValueStore store,
+                     int snapshotInterval) {
+    if (snapshotInterval <= 0) {
+      throw new IllegalArgumentException("snapshotInterval must be > 0");
+    }
+    this.fs = fs;
+    this.dir = dir;
+    this.store = store;
+    this.snapshotInterval = snapshotInterval;
+  }
+
+  private static int fileIndex(String name, String prefix) {
+    if (!name.startsWith(prefix) || name.endsWith(TMP_SUFFIX)) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(name.substring(prefix.length()));
+    } catch (NumberFormatException exc) {
+      return -1;
+    }
+  }
+
+  private Path segmentPath(int index) {
+    return new Path(dir, SEGMENT_PREFIX + index);
+  }
+
+  private Path snapshotPath(int index) {
+    return new Path(dir, SNAPSHOT_PREFIX + index);
+  }
+
+  /** Restore the store from any state persisted by a previous attempt.
+   *
+   * Must be called before `start`, while the store is still empty. Returns
+   * the recovered revision, or 0 if nothing was persisted.
+   **/
+  public long recover() throws IOException {
+    if (!fs.exists(dir)) {
+      fs.mkdirs(dir);
+      return 0;
+    }
+    TreeMap<Integer, Path> segments = new TreeMap<Integer, Path>();
+    TreeMap<Integer, Path> snapshots = new TreeMap<Integer, Path>();
+    for (FileStatus status : fs.listStatus(dir)) {
+      String name = status.getPath().getName();
+      int index;
+      if ((index = fileIndex(name, SEGMENT_PREFIX)) >= 0) {
+        segments.put(index, status.getPath());
+      } else if ((index = fileIndex(name, SNAPSHOT_PREFIX)) >= 0) {
+        snapshots.put(index, status.getPath());
+      }
+    }
+
+    NavigableMap<String, Msg.KeyValue> values = new TreeMap<String, Msg.KeyValue>();
+    long snapshotRevision = 0;
+    int first = 0;
+    if (!snapshots.isEmpty()) {
+      first = snapshots.lastKey();
+      snapshotRevision = readSnapshot(snapshots.lastEntry().getValue(), values);
+    }
+    long revision = snapshotRevision;
+    for (Map.Entry<Integer, Path> entry : segments.tailMap(first, true).entrySet()) {
+      revision = replay(entry.getValue(), values, snapshotRevision, revision);
+    }
+
+    segment = 1 + Math.max(first, segments.isEmpty() ? 0 : segments.lastKey());
+    store.restore(values.values(), revision);
+    return revision;
+  }
+
+  private long readSnapshot(Path path, NavigableMap<String, Msg.KeyValue> values)
+      throws IOException {
+    FSDataInputStream in = fs.open(path);
+    try {
+      long revision = in.readLong();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Msg.KeyValue kv = Msg.KeyValue.parseDelimitedFrom(in);
+        if (kv == null) {
+          throw new IOException("Snapshot " + path + " is truncated");
+        }
+        values.put(kv.getKey(), kv);
+      }
+      return revision;
+    } finally {
+      in.close();
+    }
+  }
+
+  // Apply all committed revisions in a segment newer than the snapshot. A
+  // segment may end with a partially written revision if an attempt failed
+  // mid-write; such a revision was never acknowledged, so is skipped.
+  private long replay(Path path, NavigableMap<String, Msg.KeyValue> values,
+      long snapshotRevision, long revision) throws IOException {
+    FSDataInputStream in = fs.open(path);
+    try {
+      // The latest event per key in the current revision, null for deletes.
+      // Applied once the revision is committed.
+      Map<String, Msg.KeyValue> uncommitted = new LinkedHashMap<String, Msg.KeyValue>();
+      boolean truncated = false;
+      int type;
+      while ((type = in.read()) != -1) {
+        if (type == COMMIT) {
+          long rev;
+          try {
+            rev = in.readLong();
+          } catch (IOException exc) {
+            truncated = true;
+            break;
+          }
+          if (rev > snapshotRevision) {
+            for (Map.Entry<String, Msg.KeyValue> entry : uncommitted.entrySet()) {
+              if (entry.getValue() == null) {
+                values.remove(entry.getKey());
+              } else {
+                values.put(entry.getKey(), entry.getValue());
+              }
+            }
+            revision = Math.max(revision, rev);
+          }
+          uncommitted.clear();
+          continue;
+        }
+        Msg.KeyValue kv;
+        try {
+          kv = Msg.KeyValue.parseDelimitedFrom(in);
+        } catch (IOException exc) {
+          kv = null;
+        }
+        if (kv == null || (type != PUT && type != DELETE)) {
+          truncated = true;
+          break;
+        }
+        uncommitted.put(kv.getKey(), type == PUT ? kv : null);
+      }
+      if (truncated || !uncommitted.isEmpty()) {
+        LOG.warn("Ignoring incomplete revision at end of {}", path);
+      }
+    } finally {
+      in.close();
+    }
+    return revision;
+  }
+
+  /** Start logging all changes to the store. **/
+  public void start() throws IOException {
+    durableRevision = store.getRevision();
+    out = fs.create(segmentPath(segment), false);
+    store.addListener(this);
+    writer = new Thread("kv-log-writer") {
+      public void run() {
+        writeLoop();
+      }
+    };
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Queue the events of a revision to be written. Called by the store one
+   * revision at a time, so events are queued in revision order. Each revision is
+   * queued whole, so it's never split across batches and a revision is only
+   * durable once all its events are written. **/
+  @Override
+  public void append(List<KeyValueStore.Event> events) {
+    lock.lock();
+    try {
+      if (!closed) {
+        pending.addAll(events);
+        hasPending.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Wait until all events up to `revision` have been written.
+   *
+   * Returns early if the log is closed. Raises an IOException if the log
+   * failed before writing them, or if interrupted while waiting.
+   **/
+  public void sync(long revision) throws IOException {
+    lock.lock();
+    try {
+      while (durableRevision < revision && !stopped) {
+        flushed.await();
+      }
+      if (durableRevision < revision && failure != null) {
+        throw new IOException("Failed writing key-value store log: "
+                              + failure.getMessage(), failure);
+      }
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for key-value store log");
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      while (true) {
+        List<KeyValueStore.Event> batch;
+        lock.lock();
+        try {
+          while (pending.isEmpty() && !closed) {
+            hasPending.awaitUninterruptibly();
+          }
+          if (pending.isEmpty()) {
+            break;
+          }
+          batch = pending;
+          pending = new ArrayList<KeyValueStore.Event>();
+        } finally {
+          lock.unlock();
+        }
+
+        // Batches only hold whole revisions, so each ends at a commit
+        for (int i = 0; i < batch.size(); i++) {
+          KeyValueStore.Event event = batch.get(i);
+          out.write(event.getType() == Msg.WatchResponse.Type.PUT ? PUT : DELETE);
+          event.getKeyValue().writeDelimitedTo(out);
+          if (i == batch.size() - 1
+              || batch.get(i + 1).getRevision() != event.getRevision()) {
+            out.write(COMMIT);
+            out.writeLong(event.getRevision());
+          }
+        }
+        out.hflush();
+        segmentEvents += batch.size();
+
+        lock.lock();
+        try {
+          durableRevision = batch.get(batch.size() - 1).getRevision();
+          flushed.signalAll();
+        } finally {
+          lock.unlock();
+        }
+
+        if (segmentEvents >= snapshotInterval && !snapshotting) {
+          rollSegment();
+        }
+      }
+      out.close();
+    } catch (IOException exc) {
+      LOG.error("Failed writing key-value store log to {}, further changes "
+                + "won't be recovered on restart", dir, exc);
+      lock.lock();
+      try {
+        failure = exc;
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      lock.lock();
+      try {
+        closed = true;
+        stopped = true;
+        pending.clear();
+        flushed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  // Start a new segment, and snapshot the store to cover all older segments.
+  private void rollSegment() throws IOException {
+    out.close();
+    segment++;
+    segmentEvents = 0;
+    out = fs.create(segmentPath(segment), false);
+
+    final int index = segment;
+    snapshotting = true;
+    snapshotExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writeSnapshot(index);
+        } catch (IOException exc) {
+          LOG.warn("Failed writing key-value store snapshot to {}", dir, exc);
+        } finally {
+          snapshotting = false;
+        }
+      }
+    });
+  }
+
+  private void writeSnapshot(int index) throws IOException {
+    // All events in older segments were recorded before the snapshot is
+    // taken. Events in newer segments already covered by the snapshot are
+    // skipped on replay.
+    KeyValueStore.Snapshot snapshot = store.snapshot();
+    List<Msg.KeyValue> values;
+    try {
+      values = snapshot.range("", "");
+    } finally {
+      snapshot.release();
+    }
+
+    Path tmp = new Path(dir, SNAPSHOT_PREFIX + index + TMP_SUFFIX);
+    FSDataOutputStream snapshotOut = fs.create(tmp, true);
+    try {
+      snapshotOut.writeLong(snapshot.getRevision());
+      snapshotOut.writeInt(values.size());
+      for (Msg.KeyValue kv : values) {
+        kv.writeDelimitedTo(snapshotOut);
+      }
+    } finally {
+      snapshotOut.close();
+    }
+    if (!fs.rename(tmp, snapshotPath(index))) {
+      throw new IOException("Failed to rename " + tmp);
+    }
+
+    for (FileStatus status : fs.listStatus(dir)) {
+      String name = status.getPath().getName();
+      int old = Math.max(fileIndex(name, SEGMENT_PREFIX),
+                         fileIndex(name, SNAPSHOT_PREFIX));
+      if (old >= 0 && old < index) {
+        fs.delete(status.getPath(), false);
+      }
+    }
+    LOG.debug("Wrote key-value store snapshot at revision {}", snapshot.getRevision());
+  }
+
+  /** Stop logging, waiting for any queued events and snapshots to be
+   * written. **/
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      hasPending.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      if (writer != null) {
+        writer.join();
+      }
+      // Release any waiters if never started
+      lock.lock();
+      try {
+        stopped = true;
+        flushed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      snapshotExecutor.shutdown();
+      snapshotExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,951 @@
+package com.anaconda.skein;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.TreeMultiset;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** A sorted key-value store supporting concurrent access.
+ *
+ * Entries are stored as immutable messages in a concurrent sorted map. The
+ * same message is returned by every read and sent in every watch event, so
+ * nothing is copied after a value is stored. Owners are interned, so keys
+ * owned by the same container share a single owner message. The keys held
+ * by each owner and each lease are indexed, so they can be deleted together
+ * when the owner exits or the lease expires.
+ *
+ * Access is coordinated by a two-level locking scheme:
+ *
+ * - A store-wide range lock. Operations on individual keys take this lock in
+ *   shared mode, operations that modify arbitrary ranges of keys take it in
+ *   exclusive mode.
+ *
+ * - An array of key stripes. Operations on individual keys lock only the
+ *   stripes their keys hash to, so writes to unrelated keys proceed in
+ *   parallel. Range reads take every stripe in shared mode, which gives them
+ *   a consistent view of the store while still allowing other readers.
+ *
+ * Locks are always acquired in the same order (range lock, then stripes in
+ * increasing index), so any combination of the above is deadlock free.
+ *
+ * Every modification is assigned a store-wide revision, and the most recent
+ * events are kept in a bounded history so watchers can resume from a past
+ * revision. The store's monitor is only held to assign a revision and apply
+ * its changes. The events of each revision are then passed to listeners
+ * (e.g. to notify watchers, or persist them) after the monitor is released,
+ * by whichever writer finds no other publishing underway. Publishing is done
+ * by one thread at a time in revision order, so listeners see every key's
+ * changes in order, while other writers commit new revisions concurrently.
+ *
+ * Readers that need a consistent view of a range can take a `Snapshot`
+ * instead of locking. While any snapshot is open, writers record the value
+ * each key held before they changed it in an undo log, which snapshots use
+ * to reconstruct the store as of their revision without blocking writers.
+ * Entries older than the oldest open snapshot are dropped as snapshots are
+ * released, so the log only covers changes some open snapshot can see.
+ **/
+public class KeyValueStore {
+  // Should be a power of 2, so the stripe index can be computed with a mask.
+  private static final int NUM_STRIPES = 64;
+  private static final int DEFAULT_HISTORY_SIZE = 10000;
+
+  private final ConcurrentSkipListMap<String, Msg.KeyValue> map =
+      new ConcurrentSkipListMap<String, Msg.KeyValue>();
+  private final ReentrantReadWriteLock rangeLock = new ReentrantReadWriteLock();
+  private final ReentrantReadWriteLock[] stripes =
+      new ReentrantReadWriteLock[NUM_STRIPES];
+  // Canonical owner messages. Weak, so owners are dropped once no values
+  // refer to them.
+  private final Interner<Msg.ContainerInstance> owners = Interners.newWeakInterner();
+  // Keys held by each owner and lease, guarded by this. Holders are removed
+  // once they hold no keys.
+  private final Map<Msg.ContainerInstance, Set<String>> ownedKeys =
+      new HashMap<Msg.ContainerInstance, Set<String>>();
+  private final Map<Long, Set<String>> leasedKeys = new HashMap<Long, Set<String>>();
+
+  // Revision state, guarded by this. The history is a ring buffer of the
+  // most recent events, ordered by revision. The current revision is also
+  // volatile, so readers can get it without taking the monitor.
+  private volatile long revision = 0;
+  private long compactRevision = 0;
+  private final Event[] history;
+  private int historyStart = 0;
+  private int historyCount = 0;
+
+  // Undo log, written under the monitor while any snapshot is open. For each
+  // key, the values it held before each change, newest first.
+  private final ConcurrentSkipListMap<String, Undo> undo =
+      new ConcurrentSkipListMap<String, Undo>();
+  // The revisions of all open snapshots, guarded by this
+  private final TreeMultiset<Long> openSnapshots = TreeMultiset.create();
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+  // Events of the revision being recorded, guarded by this
+  private List<Event> recording = new ArrayList<Event>();
+  // Set while `atomically` is applying a group of writes at one revision,
+  // and once the group has started that revision. Guarded by this.
+  private boolean grouped = false;
+  private boolean groupStarted = false;
+  // Revisions committed but not yet passed to listeners, in revision order,
+  // guarded by this
+  private final ArrayDeque<List<Event>> unpublished = new ArrayDeque<List<Event>>();
+  // Held while passing events to listeners
+  private final ReentrantLock publishLock = new ReentrantLock();
+  // All revisions up to this one have been passed to listeners
+  private volatile long publishedRevision = 0;
+
+  // Time spent waiting for each kind of lock, null until metrics are
+  // registered
+  private volatile Metrics.Histogram keysLockWait = null;
+  private volatile Metrics.Histogram rangeLockWait = null;
+  private volatile Metrics.Histogram allLockWait = null;
+
+  public KeyValueStore() {
+    this(DEFAULT_HISTORY_SIZE);
+  }
+
+  /** Read access to the store, either live or from a snapshot. **/
+  public interface Reader {
+    /** The revision of the data being read. **/
+    long getRevision();
+
+    Msg.KeyValue get(String key);
+
+    /** All values in [start, end) in key order, with empty strings marking
+     * open bounds. **/
+    List<Msg.KeyValue> range(String start, String end);
+  }
+
+  private static final class Undo {
+    // Revision of the change
+    private final long revision;
+    // Value before the change, null if the key was absent
+    private final Msg.KeyValue prev;
+    // Cut once no open snapshot needs older entries. Volatile, as snapshots
+    // read it without holding the monitor.
+    private volatile Undo older;
+
+    Undo(long revision, Msg.KeyValue prev, Undo older) {
+      this.revision = revision;
+      this.prev = prev;
+      this.older = older;
+    }
+  }
+
+  public KeyValueStore(int historySize) {
+    if (historySize <= 0) {
+      throw new IllegalArgumentException("historySize must be > 0");
+    }
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      stripes[i] = new ReentrantReadWriteLock();
+    }
+    history = new Event[historySize];
+  }
+
+  /** A single modification of the store. **/
+  public static final class Event {
+    private final Msg.WatchResponse.Type type;
+    private final Msg.KeyValue kv;
+
+    Event(Msg.WatchResponse.Type type, Msg.KeyValue kv) {
+      this.type = type;
+      this.kv = kv;
+    }
+
+    public Msg.WatchResponse.Type getType() { return type; }
+    public Msg.KeyValue getKeyValue() { return kv; }
+    public long getRevision() { return kv.getModRevision(); }
+  }
+
+  /** Receives every event once committed, e.g. to persist it. **/
+  public interface Listener {
+    /** Called with all the events of a single revision, in revision order.
+     * Calls are never concurrent, and are made without holding the store's
+     * monitor, but delay other writers' events so should return quickly. **/
+    void append(List<Event> events);
+  }
+
+  /** Pass the events of all later revisions to `listener`. **/
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /** Record the store's size and lock contention in `metrics`. **/
+  public void registerMetrics(Metrics metrics) {
+    String lockHelp = "Time spent waiting for key-value store locks";
+    keysLockWait = metrics.durationHistogram(
+        "skein_kv_lock_wait_seconds", lockHelp, "lock", "keys");
+    rangeLockWait = metrics.durationHistogram(
+        "skein_kv_lock_wait_seconds", lockHelp, "lock", "range");
+    allLockWait = metrics.durationHistogram(
+        "skein_kv_lock_wait_seconds", lockHelp, "lock", "all");
+    metrics.gauge("skein_kv_keys", "Number of keys in the key-value store",
+        new Metrics.Gauge() {
+          public double getValue() {
+            return map.size();
+          }
+        });
+    metrics.gauge("skein_kv_revision", "Current revision of the key-value store",
+        new Metrics.Gauge() {
+          public double getValue() {
+            return revision;
+          }
+        });
+  }
+
+  private static void observeWait(Metrics.Histogram wait, long startNanos) {
+    if (wait != null) {
+      wait.observeSince(startNanos);
+    }
+  }
+
+  /** Load values recovered from a previous application attempt into an
+   * empty store.
+   *
+   * The history starts out empty, so watchers can't resume from before the
+   * recovered revision.
+   **/
+  public synchronized void restore(Collection<Msg.KeyValue> values, long revision) {
+    for (Msg.KeyValue kv : values) {
+      if (kv.hasOwner()) {
+        kv = kv.toBuilder().setOwner(owners.intern(kv.getOwner())).build();
+      }
+      map.put(kv.getKey(), kv);
+      index(kv);
+    }
+    this.revision = revision;
+    compactRevision = revision;
+    publishedRevision = revision;
+  }
+
+  /** A handle on a set of held locks, released with `release`. **/
+  public abstract static class Locked {
+    public abstract void release();
+  }
+
+  private static int stripeIndex(String key) {
+    int h = key.hashCode();
+    // Spread the high bits, as keys commonly share long prefixes
+    h ^= (h >>> 16);
+    return h & (NUM_STRIPES - 1);
+  }
+
+  /** Lock a single key for reading or writing. **/
+  public Locked lockKey(String key) {
+    return lockKeys(Collections.singletonList(key));
+  }
+
+  /** Lock a collection of keys for reading or writing.
+   *
+   * Writers to disjoint sets of stripes may run concurrently, but are
+   * excluded by any range reader or exclusive lock holder.
+   **/
+  public Locked lockKeys(Collection<String> keys) {
+    final int[] indices = new int[keys.size()];
+    int n = 0;
+    for (String key : keys) {
+      indices[n++] = stripeIndex(key);
+    }
+    Arrays.sort(indices);
+
+    long start = System.nanoTime();
+    final Lock shared = rangeLock.readLock();
+    shared.lock();
+    int last = -1;
+    for (int i : indices) {
+      if (i != last) {
+        stripes[i].writeLock().lock();
+        last = i;
+      }
+    }
+    observeWait(keysLockWait, start);
+    return new Locked() {
+      @Override
+      public void release() {
+        int last = -1;
+        for (int i = indices.length - 1; i >= 0; i--) {
+          if (indices[i] != last) {
+            stripes[indices[i]].writeLock().unlock();
+            last = indices[i];
+          }
+        }
+        shared.unlock();
+      }
+    };
+  }
+
+  /** Lock the whole store for reading.
+   *
+   * Multiple readers may hold this lock at the same time, all writers are
+   * excluded.
+   **/
+  public Locked lockRange() {
+    long start = System.nanoTime();
+    final Lock shared = rangeLock.readLock();
+    shared.lock();
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      stripes[i].readLock().lock();
+    }
+    observeWait(rangeLockWait, start);
+    return new Locked() {
+      @Override
+      public void release() {
+        for (int i = NUM_STRIPES - 1; i >= 0; i--) {
+          stripes[i].readLock().unlock();
+        }
+        shared.unlock();
+      }
+    };
+  }
+
+  /** Lock the whole store for reading or writing.
+   *
+   * This excludes all other readers and writers, and is reentrant.
+   **/
+  public Locked lockAll() {
+    long start = System.nanoTime();
+    final Lock exclusive = rangeLock.writeLock();
+    exclusive.lock();
+    observeWait(allLockWait, start);
+    return new Locked() {
+      @Override
+      public void release() {
+        exclusive.unlock();
+      }
+    };
+  }
+
+  /** Returns true if [start, end) contains only the key `start`. **/
+  public static boolean isSingleKey(String start, String end) {
+    return (end.length() == start.length() + 1
+            && end.charAt(start.length()) == '\u0000'
+            && end.startsWith(start));
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public Msg.KeyValue get(String key) {
+    return map.get(key);
+  }
+
+  private final Reader live = new Reader() {
+    @Override
+    public long getRevision() {
+      return revision;
+    }
+
+    @Override
+    public Msg.KeyValue get(String key) {
+      return map.get(key);
+    }
+
+    @Override
+    public List<Msg.KeyValue> range(String start, String end) {
+      NavigableMap<String, Msg.KeyValue> selection = selectRange(start, end);
+      if (selection == null) {
+        return Collections.emptyList();
+      }
+      return new ArrayList<Msg.KeyValue>(selection.values());
+    }
+  };
+
+  /** The live store as a Reader. Callers must hold locks covering everything
+   * they read for the results to be consistent. **/
+  public Reader live() {
+    return live;
+  }
+
+  /** The revision of the last modification to the store. **/
+  public long getRevision() {
+    return revision;
+  }
+
+  /** A point-in-time view of the store, readable without holding any locks.
+   *
+   * Snapshots are cheap to take, but make every write record undo
+   * information until released, so should be released promptly.
+   **/
+  public final class Snapshot implements Reader {
+    private final long revision;
+    // Guarded by the store
+    private boolean released = false;
+
+    private Snapshot(long revision) {
+      this.revision = revision;
+    }
+
+    @Override
+    public long getRevision() {
+      return revision;
+    }
+
+    /** Release the snapshot. Further calls have no effect. **/
+    public void release() {
+      releaseSnapshot(this);
+    }
+
+    // Roll back the current value for a key to its value at this revision.
+    private Msg.KeyValue valueAt(String key, Msg.KeyValue current) {
+      if (current != null && current.getModRevision() <= revision) {
+        return current;
+      }
+      // All changes after this revision were recorded before being applied
+      Msg.KeyValue out = current;
+      for (Undo u = undo.get(key); u != null && u.revision > revision; u = u.older) {
+        out = u.prev;
+      }
+      return out;
+    }
+
+    @Override
+    public Msg.KeyValue get(String key) {
+      return valueAt(key, map.get(key));
+    }
+
+    @Override
+    public List<Msg.KeyValue> range(String start, String end) {
+      NavigableMap<String, Msg.KeyValue> live = selectRange(map, start, end);
+      if (live == null) {
+        return Collections.emptyList();
+      }
+      List<Msg.KeyValue> out = new ArrayList<Msg.KeyValue>();
+      for (Msg.KeyValue kv : live.values()) {
+        Msg.KeyValue value = valueAt(kv.getKey(), kv);
+        if (value != null) {
+          out.add(value);
+        }
+      }
+
+      // Keys deleted (or deleted and re-added) during the scan above may have
+      // been missed. Their undo entries were added before the deletion, so
+      // are all visible when iterating the undo log afterwards.
+      List<Msg.KeyValue> missed = null;
+      for (Map.Entry<String, Undo> entry : selectRange(undo, start, end).entrySet()) {
+        if (entry.getValue().revision <= revision) {
+          continue;  // Unchanged since the snapshot was taken
+        }
+        Msg.KeyValue value = valueAt(entry.getKey(), null);
+        if (value != null && indexOf(out, entry.getKey()) < 0) {
+          if (missed == null) {
+            missed = new ArrayList<Msg.KeyValue>();
+          }
+          missed.add(value);
+        }
+      }
+      return missed == null ? out : merge(out, missed);
+    }
+  }
+
+  /** Take a snapshot of the store at the current revision. **/
+  public synchronized Snapshot snapshot() {
+    openSnapshots.add(revision);
+    return new Snapshot(revision);
+  }
+
+  private synchronized void releaseSnapshot(Snapshot snapshot) {
+    if (snapshot.released) {
+      return;
+    }
+    snapshot.released = true;
+    long oldest = openSnapshots.firstEntry().getElement();
+    openSnapshots.remove(snapshot.revision);
+    if (openSnapshots.isEmpty()) {
+      undo.clear();
+    } else if (openSnapshots.firstEntry().getElement() > oldest) {
+      pruneUndo(openSnapshots.firstEntry().getElement());
+    }
+  }
+
+  // Drop undo entries no snapshot at or after `oldest` can need. A snapshot
+  // stops at the first entry at or before its revision, so everything past
+  // that entry in each key's list is unreachable.
+  private void pruneUndo(long oldest) {
+    Iterator<Map.Entry<String, Undo>> it = undo.entrySet().iterator();
+    while (it.hasNext()) {
+      Undo u = it.next().getValue();
+      if (u.revision <= oldest) {
+        it.remove();
+        continue;
+      }
+      while (u.older != null && u.older.revision > oldest) {
+        u = u.older;
+      }
+      u.older = null;
+    }
+  }
+
+  private void recordUndo(String key, Msg.KeyValue prev, long rev) {
+    if (!openSnapshots.isEmpty()) {
+      undo.put(key, new Undo(rev, prev, undo.get(key)));
+    }
+  }
+
+  // The number of entries in the undo log, for testing
+  synchronized int undoSize() {
+    int size = 0;
+    for (Undo head : undo.values()) {
+      for (Undo u = head; u != null; u = u.older) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  // Binary search a list of values sorted by key
+  private static int indexOf(List<Msg.KeyValue> values, String key) {
+    int lo = 0;
+    int hi = values.size() - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = values.get(mid).getKey().compareTo(key);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  // Merge two lists of values sorted by key
+  private static List<Msg.KeyValue> merge(List<Msg.KeyValue> a, List<Msg.KeyValue> b) {
+    List<Msg.KeyValue> out = new ArrayList<Msg.KeyValue>(a.size() + b.size());
+    int i = 0;
+    int j = 0;
+    while (i < a.size() && j < b.size()) {
+      if (a.get(i).getKey().compareTo(b.get(j).getKey()) < 0) {
+        out.add(a.get(i++));
+      } else {
+        out.add(b.get(j++));
+      }
+    }
+    out.addAll(a.subList(i, a.size()));
+    out.addAll(b.subList(j, b.size()));
+    return out;
+  }
+
+  /** Store a value at the next revision.
+   *
+   * The revision fields of the builder are filled in from any previous value
+   * for the same key, and its owner is replaced by the interned equivalent.
+   * Returns the stored value.
+   **/
+  public Msg.KeyValue put(Msg.KeyValue.Builder builder) {
+    Msg.KeyValue kv;
+    synchronized (this) {
+      kv = putAt(builder, nextRevision());
+      commit();
+    }
+    publish();
+    return kv;
+  }
+
+  /** Store several values at the next revision, as with `put`.
+   *
+   * Keys must be distinct. Returns the stored values in the same order.
+   **/
+  public List<Msg.KeyValue> putAll(List<Msg.KeyValue.Builder> builders) {
+    List<Msg.KeyValue> out = new ArrayList<Msg.KeyValue>(builders.size());
+    synchronized (this) {
+      long rev = nextRevision();
+      for (Msg.KeyValue.Builder builder : builders) {
+        out.add(putAt(builder, rev));
+      }
+      commit();
+    }
+    publish();
+    return out;
+  }
+
+  private Msg.KeyValue putAt(Msg.KeyValue.Builder builder, long rev) {
+    String key = builder.getKey();
+    if (builder.hasOwner()) {
+      builder.setOwner(owners.intern(builder.getOwner()));
+    }
+    Msg.KeyValue prev = map.get(key);
+    recordUndo(key, prev, rev);
+    Msg.KeyValue kv = builder
+        .setModRevision(rev)
+        .setCreateRevision(prev == null ? rev : prev.getCreateRevision())
+        .setVersion(prev == null ? 1 : prev.getVersion() + 1)
+        .build();
+    map.put(key, kv);
+    if (prev == null || prev.getOwner() != kv.getOwner()
+        || prev.getLease() != kv.getLease()) {
+      unindex(prev);
+      index(kv);
+    }
+    record(new Event(Msg.WatchResponse.Type.PUT, kv));
+    return kv;
+  }
+
+  /** Apply all writes made by `writes` at a single revision.
+   *
+   * Writes through this store from within `writes` don't each start a new
+   * revision, instead they're all made at the next revision, and passed to
+   * listeners together once `writes` returns. Snapshots can't be taken
+   * while `writes` runs, so they see either all of its writes or none.
+   * Reads from within `writes` see the writes made so far.
+   *
+   * Other writers are blocked while `writes` runs, so it should only apply
+   * changes already validated by the caller.
+   **/
+  public void atomically(Runnable writes) {
+    synchronized (this) {
+      if (grouped) {
+        writes.run();
+        return;
+      }
+      grouped = true;
+      try {
+        writes.run();
+      } finally {
+        grouped = false;
+        groupStarted = false;
+        commit();
+      }
+    }
+    publish();
+  }
+
+  /** Delete a key at the next revision.
+   *
+   * Returns the delete event's key-value (only the key and revision are set),
+   * or null if the key wasn't present.
+   **/
+  public Msg.KeyValue delete(String key) {
+    Msg.KeyValue kv;
+    synchronized (this) {
+      Msg.KeyValue prev = map.get(key);
+      if (prev == null) {
+        return null;
+      }
+      long rev = nextRevision();
+      recordUndo(key, prev, rev);
+      map.remove(key);
+      unindex(prev);
+      kv = tombstone(key, rev);
+      record(new Event(Msg.WatchResponse.Type.DELETE, kv));
+      commit();
+    }
+    publish();
+    return kv;
+  }
+
+  /** Delete all keys in a selection from `selectRange` at the next revision.
+   *
+   * Returns the revision of the deletion.
+   **/
+  public long deleteRange(NavigableMap<String, Msg.KeyValue> selection) {
+    long rev;
+    synchronized (this) {
+      rev = nextRevision();
+      for (Map.Entry<String, Msg.KeyValue> entry : selection.entrySet()) {
+        recordUndo(entry.getKey(), entry.getValue(), rev);
+        unindex(entry.getValue());
+        record(new Event(Msg.WatchResponse.Type.DELETE, tombstone(entry.getKey(), rev)));
+      }
+      selection.clear();
+      commit();
+    }
+    publish();
+    return rev;
+  }
+
+  /** Delete all keys owned by `owner` at the next revision.
+   *
+   * Returns the deleted values in key order, or an empty map if the owner
+   * held no keys (in which case the revision is unchanged).
+   **/
+  public NavigableMap<String, Msg.KeyValue> deleteOwned(Msg.ContainerInstance owner) {
+    NavigableMap<String, Msg.KeyValue> deleted;
+    synchronized (this) {
+      deleted = deleteHeld(ownedKeys.remove(owner));
+    }
+    publish();
+    return deleted;
+  }
+
+  /** Delete all keys attached to `lease` at the next revision.
+   *
+   * Returns the deleted values the same as `deleteOwned`.
+   **/
+  public NavigableMap<String, Msg.KeyValue> deleteLeased(long lease) {
+    NavigableMap<String, Msg.KeyValue> deleted;
+    synchronized (this) {
+      deleted = deleteHeld(leasedKeys.remove(lease));
+    }
+    publish();
+    return deleted;
+  }
+
+  /** Delete a set of keys at the next revision.
+   *
+   * Keys that aren't present are ignored. Returns the deleted values the
+   * same as `deleteOwned`.
+   **/
+  public NavigableMap<String, Msg.KeyValue> deleteKeys(Set<String> keys) {
+    NavigableMap<String, Msg.KeyValue> deleted;
+    synchronized (this) {
+      deleted = deleteHeld(keys);
+    }
+    publish();
+    return deleted;
+  }
+
+  private NavigableMap<String, Msg.KeyValue> deleteHeld(Set<String> keys) {
+    NavigableMap<String, Msg.KeyValue> deleted = new TreeMap<String, Msg.KeyValue>();
+    if (keys == null) {
+      return deleted;
+    }
+    for (String key : keys) {
+      Msg.KeyValue prev = map.get(key);
+      if (prev != null) {
+        deleted.put(key, prev);
+      }
+    }
+    if (deleted.isEmpty()) {
+      return deleted;
+    }
+    long rev = nextRevision();
+    for (Map.Entry<String, Msg.KeyValue> entry : deleted.entrySet()) {
+      String key = entry.getKey();
+      recordUndo(key, entry.getValue(), rev);
+      map.remove(key);
+      // The key may also be held by another owner or lease
+      unindex(entry.getValue());
+      record(new Event(Msg.WatchResponse.Type.DELETE, tombstone(key, rev)));
+    }
+    commit();
+    return deleted;
+  }
+
+  /** The number of keys currently held by `owner`. **/
+  public synchronized int numOwnedKeys(Msg.ContainerInstance owner) {
+    Set<String> keys = ownedKeys.get(owner);
+    return keys == null ? 0 : keys.size();
+  }
+
+  /** The number of keys currently attached to `lease`. **/
+  public synchronized int numLeasedKeys(long lease) {
+    Set<String> keys = leasedKeys.get(lease);
+    return keys == null ? 0 : keys.size();
+  }
+
+  private void index(Msg.KeyValue kv) {
+    if (kv.hasOwner()) {
+      addHeld(ownedKeys, kv.getOwner(), kv.getKey());
+    }
+    if (kv.getLease() != 0) {
+      addHeld(leasedKeys, kv.getLease(), kv.getKey());
+    }
+  }
+
+  private void unindex(Msg.KeyValue kv) {
+    if (kv == null) {
+      return;
+    }
+    if (kv.hasOwner()) {
+      removeHeld(ownedKeys, kv.getOwner(), kv.getKey());
+    }
+    if (kv.getLease() != 0) {
+      removeHeld(leasedKeys, kv.getLease(), kv.getKey());
+    }
+  }
+
+  private static <K> void addHeld(Map<K, Set<String>> held, K holder, String key) {
+    Set<String> keys = held.get(holder);
+    if (keys == null) {
+      keys = new HashSet<String>();
+      held.put(holder, keys);
+    }
+    keys.add(key);
+  }
+
+  private static <K> void removeHeld(Map<K, Set<String>> held, K holder, String key) {
+    Set<String> keys = held.get(holder);
+    if (keys != null && keys.remove(key) && keys.isEmpty()) {
+      held.remove(holder);
+    }
+  }
+
+  static Msg.KeyValue tombstone(String key, long revision) {
+    return Msg.KeyValue.newBuilder().setKey(key).setModRevision(revision).build();
+  }
+
+  private void record(Event event) {
+    if (historyCount == history.length) {
+      compactRevision = history[historyStart].getRevision();
+      historyStart = (historyStart + 1) % history.length;
+      historyCount--;
+    }
+    history[(historyStart + historyCount) % history.length] = event;
+    historyCount++;
+    recording.add(event);
+  }
+
+  // The revision for the next write. Every write in a group shares the
+  // revision started by its first write.
+  private long nextRevision() {
+    if (!grouped) {
+      return ++revision;
+    }
+    if (!groupStarted) {
+      groupStarted = true;
+      ++revision;
+    }
+    return revision;
+  }
+
+  // Queue the events of the revision just recorded to be published, unless
+  // more writes to it may follow
+  private void commit() {
+    if (!grouped && !recording.isEmpty()) {
+      unpublished.add(recording);
+      recording = new ArrayList<Event>();
+    }
+  }
+
+  // Pass all committed revisions to the listeners, unless another thread is
+  // already doing so. Whoever holds the publish lock rechecks the queue after
+  // releasing it, so revisions committed meanwhile are never left behind.
+  private void publish() {
+    if (publishLock.isHeldByCurrentThread()) {
+      return;  // Paused, or called from a listener, published on release
+    }
+    if (Thread.holdsLock(this)) {
+      return;  // In a group, published once it completes
+    }
+    while (publishLock.tryLock()) {
+      try {
+        while (true) {
+          List<Event> events;
+          synchronized (this) {
+            events = unpublished.poll();
+          }
+          if (events == null) {
+            break;
+          }
+          for (Listener listener : listeners) {
+            listener.append(events);
+          }
+          publishedRevision = events.get(0).getRevision();
+        }
+      } finally {
+        publishLock.unlock();
+      }
+      synchronized (this) {
+        if (unpublished.isEmpty()) {
+          return;
+        }
+      }
+    }
+  }
+
+  /** The latest revision whose events have all been passed to listeners. **/
+  public long getPublishedRevision() {
+    return publishedRevision;
+  }
+
+  /** Stop events from being passed to listeners until released.
+   *
+   * While held, the published revision doesn't change, so callers can
+   * combine the history up to it with events from listeners afterwards
+   * without missing or repeating any revision. Writers are not blocked.
+   **/
+  public Locked pausePublishing() {
+    publishLock.lock();
+    return new Locked() {
+      @Override
+      public void release() {
+        publishLock.unlock();
+        publish();
+      }
+    };
+  }
+
+  /** The latest revision that is no longer available in the history. **/
+  public synchronized long getCompactRevision() {
+    return compactRevision;
+  }
+
+  /** All events with revision >= startRevision, in revision order.
+   *
+   * Returns null if some of those events have already been dropped from the
+   * history.
+   **/
+  public synchronized List<Event> eventsSince(long startRevision) {
+    if (startRevision <= compactRevision) {
+      return null;
+    }
+    // Binary search for the first event with revision >= startRevision
+    int lo = 0;
+    int hi = historyCount;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (history[(historyStart + mid) % history.length].getRevision() < startRevision) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    List<Event> out = new ArrayList<Event>(historyCount - lo);
+    for (int i = lo; i < historyCount; i++) {
+      out.add(history[(historyStart + i) % history.length]);
+    }
+    return out;
+  }
+
+  /** Select the range [start, end), with empty strings marking open bounds.
+   *
+   * Returns a live view of the store, or null if the range is invalid.
+   **/
+  public NavigableMap<String, Msg.KeyValue> selectRange(String start, String end) {
+    return selectRange(map, start, end);
+  }
+
+  private static <V> NavigableMap<String, V> selectRange(
+        NavigableMap<String, V> map, String start, String end) {
+    return selectRange(map, start, end,
+                       start.isEmpty() || start.equals("\u0000"),
+                       end.isEmpty());
+  }
+
+  public static <V> NavigableMap<String, V> selectRange(
+        NavigableMap<String, V> map,
+        String start, String end,
+        boolean openStart, boolean openEnd) {
+    if (openStart && openEnd) {
+      return map;
+    } else if (openEnd) {
+      return map.tailMap(start, true);
+    } else if (openStart) {
+      return map.headMap(end, false);
+    } else if (start.compareTo(end) <= 0) {
+      return map.subMap(start, true, end, false);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,110 @@
+package com.anaconda.skein;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Time-to-live leases for keys in the key-value store.
+ *
+ * A lease is granted with a time-to-live, and expires unless kept alive
+ * before that time passes. The store deletes the keys attached to a lease
+ * once it expires or is revoked, this class only tracks when that happens.
+ *
+ * Expiry is driven by a `TimingWheel` with a fixed tick, so granting, keeping
+ * alive, and expiring a lease are all O(1), regardless of how many leases
+ * exist. Leases never expire early, but may expire up to a tick late. Times
+ * are all in milliseconds, from any monotonic clock.
+ *
+ * Thread safe.
+ **/
+public class Leases {
+  private final long tickMillis;
+  private final TimingWheel<Lease> wheel;
+  private final Map<Long, Lease> leases = new HashMap<Long, Lease>();
+  // Ids start at a random offset, so that ids held by clients of a previous
+  // application attempt are unlikely to match a new lease.
+  private long nextId = (new SecureRandom().nextLong() >>> 2) + 1;
+
+  private static final class Lease {
+    private final long id;
+    private final long ttl;
+    private TimingWheel.Timeout<Lease> timeout;
+
+    Lease(long id, long ttl) {
+      this.id = id;
+      this.ttl = ttl;
+    }
+  }
+
+  public Leases(long tickMillis, long nowMillis) {
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("tickMillis must be > 0");
+    }
+    this.tickMillis = tickMillis;
+    this.wheel = new TimingWheel<Lease>(nowMillis / tickMillis);
+  }
+
+  public long getTickMillis() {
+    return tickMillis;
+  }
+
+  // The first tick at or after `ttl` from now
+  private long deadline(long ttl, long nowMillis) {
+    return (nowMillis + ttl + tickMillis - 1) / tickMillis;
+  }
+
+  /** Grant a new lease, returning its id. **/
+  public synchronized long grant(long ttl, long nowMillis) {
+    if (ttl <= 0) {
+      throw new IllegalArgumentException("ttl must be > 0");
+    }
+    Lease lease = new Lease(nextId++, ttl);
+    lease.timeout = wheel.schedule(lease, deadline(ttl, nowMillis));
+    leases.put(lease.id, lease);
+    return lease.id;
+  }
+
+  /** Restart a lease's time-to-live. Returns the time-to-live, or 0 if the
+   * lease doesn't exist. **/
+  public synchronized long keepAlive(long id, long nowMillis) {
+    Lease lease = leases.get(id);
+    if (lease == null) {
+      return 0;
+    }
+    wheel.reschedule(lease.timeout, deadline(lease.ttl, nowMillis));
+    return lease.ttl;
+  }
+
+  /** Remove a lease before it expires. Returns true if it existed. **/
+  public synchronized boolean revoke(long id) {
+    Lease lease = leases.remove(id);
+    if (lease == null) {
+      return false;
+    }
+    wheel.cancel(lease.timeout);
+    return true;
+  }
+
+  public synchronized boolean contains(long id) {
+    return leases.containsKey(id);
+  }
+
+  public synchronized int size() {
+    return leases.size();
+  }
+
+  /** Remove all leases that have expired by `nowMillis`, returning their
+   * ids. **/
+  public synchronized List<Long> expire(long nowMillis) {
+    List<Lease> expired = new ArrayList<Lease>();
+    wheel.advance(nowMillis / tickMillis, expired);
+    List<Long> out = new ArrayList<Long>(expired.size());
+    for (Lease lease : expired) {
+      leases.remove(lease.id);
+      out.add(lease.id);
+    }
+    return out;
+  }
+}
@@ -0,0 +1,291 @@
+package com.anaconda.skein;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A lightweight registry of counters, gauges, and histograms, written in
+ * the Prometheus text exposition format.
+ *
+ * Metrics are identified by name and a set of labels, given as alternating
+ * label names and values. Looking up an existing metric returns the same
+ * instance, so hot paths should look metrics up once and keep a reference.
+ * Recording values never blocks.
+ **/
+public class Metrics {
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  // Bounds of the smallest histogram bucket for durations (in nanoseconds)
+  // and counts. Each following bucket doubles the bound.
+  private static final long MIN_DURATION_BOUND = 100000;
+  private static final int NUM_DURATION_BUCKETS = 19;  // 100 us -> 26 s
+  private static final int NUM_COUNT_BUCKETS = 16;     // 1 -> 32768
+
+  private static final String COUNTER = "counter";
+  private static final String GAUGE = "gauge";
+  private static final String HISTOGRAM = "histogram";
+
+  private final ConcurrentMap<String, Family> families =
+      new ConcurrentSkipListMap<String, Family>();
+
+  /** A monotonically increasing count. **/
+  public static final class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    public void inc() {
+      value.incrementAndGet();
+    }
+
+    public void inc(long n) {
+      value.addAndGet(n);
+    }
+
+    public long get() {
+      return value.get();
+    }
+  }
+
+  /** A value computed when metrics are collected. **/
+  public interface Gauge {
+    double getValue();
+  }
+
+  /** A distribution of values, counted in exponentially sized buckets.
+   *
+   * Values are recorded as longs, and divided by `unit` when written, so
+   * durations can be recorded in nanoseconds and reported in seconds.
+   **/
+  public static final class Histogram {
+    private final long minBound;
+    private final double unit;
+    // Non-cumulative counts, the last bucket holds values above all bounds
+    private final AtomicLongArray counts;
+    private final AtomicLong sum = new AtomicLong();
+
+    private Histogram(long minBound, int numBuckets, double unit) {
+      this.minBound = minBound;
+      this.unit = unit;
+      this.counts = new AtomicLongArray(numBuckets + 1);
+    }
+
+    public void observe(long value) {
+      long n = (Math.max(value, 1) - 1) / minBound;
+      int index = Math.min(64 - Long.numberOfLeadingZeros(n), counts.length() - 1);
+      counts.incrementAndGet(index);
+      sum.addAndGet(value);
+    }
+
+    /** Record the nanoseconds elapsed since `startNanos`. **/
+    public void observeSince(long startNanos) {
+      observe(System.nanoTime() - startNanos);
+    }
+
+    private void write(Writer out, String name, String labels) throws IOException {
+      String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+      long cumulative = 0;
+      for (int i = 0; i < counts.length(); i++) {
+        cumulative += counts.get(i);
+        String bound = (i == counts.length() - 1
+                        ? "+Inf"
+                        : formatDouble((minBound << i) / unit));
+        writeSample(out, name + "_bucket", prefix + "le=\"" + bound + "\"}", cumulative);
+      }
+      String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+      writeSample(out, name + "_sum", suffix, formatDouble(sum.get() / unit));
+      writeSample(out, name + "_count", suffix, cumulative);
+    }
+  }
+
+  // All metrics sharing a name, keyed by their formatted labels
+  private static final class Family {
+    private final String help;
+    private final String type;
+    private final ConcurrentMap<String, Object> children =
+        new ConcurrentSkipListMap<String, Object>();
+
+    Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  private Family family(String name, String help, String type) {
+    Family family = families.get(name);
+    if (family == null) {
+      Family created = new Family(help, type);
+      family = families.putIfAbsent(name, created);
+      if (family == null) {
+        family = created;
+      }
+    }
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(
+          "Metric '" + name + "' is already registered as a " + family.type);
+    }
+    return family;
+  }
+
+  // Get an existing metric, or null if none is registered
+  private Object existing(Family family, String labels) {
+    return family.children.get(labels);
+  }
+
+  private Object register(Family family, String labels, Object metric) {
+    Object existing = family.children.putIfAbsent(labels, metric);
+    return existing == null ? metric : existing;
+  }
+
+  /** Get or create a counter. **/
+  public Counter counter(String name, String help, String... labels) {
+    Family family = family(name, help, COUNTER);
+    String key = formatLabels(labels);
+    Object metric = existing(family, key);
+    return (Counter)(metric != null ? metric : register(family, key, new Counter()));
+  }
+
+  /** Register a gauge, replacing any existing gauge with the same labels. **/
+  public void gauge(String name, String help, Gauge gauge, String... labels) {
+    family(name, help, GAUGE).children.put(formatLabels(labels), gauge);
+  }
+
+  /** Get or create a histogram of durations, recorded in nanoseconds and
+   * reported in seconds. **/
+  public Histogram durationHistogram(String name, String help, String... labels) {
+    Family family = family(name, help, HISTOGRAM);
+    String key = formatLabels(labels);
+    Object metric = existing(family, key);
+    return (Histogram)(metric != null
+        ? metric
+        : register(family, key,
+                   new Histogram(MIN_DURATION_BOUND, NUM_DURATION_BUCKETS, 1e9)));
+  }
+
+  /** Get or create a histogram of counts, such as queue depths. **/
+  public Histogram countHistogram(String name, String help, String... labels) {
+    Family family = family(name, help, HISTOGRAM);
+    String key = formatLabels(labels);
+    Object metric = existing(family, key);
+    return (Histogram)(metric != null
+        ? metric
+        : register(family, key, new Histogram(1, NUM_COUNT_BUCKETS, 1)));
+  }
+
+  /** Write all metrics in the Prometheus text format. **/
+  public void write(Writer out) throws IOException {
+    for (Map.Entry<String, Family> entry : families.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      out.write("# HELP " + name + " " + family.help + "\n");
+      out.write("# TYPE " + name + " " + family.type + "\n");
+      for (Map.Entry<String, Object> child : family.children.entrySet()) {
+        String labels = child.getKey();
+        Object metric = child.getValue();
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        if (metric instanceof Counter) {
+          writeSample(out, name, suffix, ((Counter)metric).get());
+        } else if (metric instanceof Gauge) {
+          writeSample(out, name, suffix, formatDouble(((Gauge)metric).getValue()));
+        } else {
+          ((Histogram)metric).write(out, name, labels);
+        }
+      }
+    }
+    out.flush();
+  }
+
+  /** An interceptor recording the number and duration of calls to each
+   * method of a gRPC service, labeled by method and status code. **/
+  public ServerInterceptor serverInterceptor() {
+    return new ServerInterceptor() {
+      @Override
+      public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+          ServerCall<ReqT, RespT> call, Metadata headers,
+          ServerCallHandler<ReqT, RespT> next) {
+        final String method = call.getMethodDescriptor().getFullMethodName();
+        final long start = System.nanoTime();
+        counter("skein_rpc_started_total",
+                "Total number of RPCs started",
+                "method", method).inc();
+        ServerCall<ReqT, RespT> timed =
+            new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+              @Override
+              public void close(Status status, Metadata trailers) {
+                durationHistogram("skein_rpc_duration_seconds",
+                                  "Time from start to completion of RPCs",
+                                  "method", method).observeSince(start);
+                counter("skein_rpc_handled_total",
+                        "Total number of RPCs completed",
+                        "method", method,
+                        "code", status.getCode().name()).inc();
+                super.close(status, trailers);
+              }
+            };
+        return next.startCall(timed, headers);
+      }
+    };
+  }
+
+  private static void writeSample(Writer out, String name, String labels, long value)
+      throws IOException {
+    writeSample(out, name, labels, Long.toString(value));
+  }
+
+  private static void writeSample(Writer out, String name, String labels, String value)
+      throws IOException {
+    out.write(name + labels + " " + value + "\n");
+  }
+
+  private static String formatDouble(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    } else if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long)value);
+    }
+    return Double.toString(value);
+  }
+
+  private static String formatLabels(String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("labels must be name, value pairs");
+    }
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        out.append(',');
+      }
+      out.append(labels[i]).append("=\"");
+      String value = labels[i + 1];
+      for (int j = 0; j < value.length(); j++) {
+        char c = value.charAt(j);
+        switch (c) {
+          case '\\':
+            out.append("\\\\");
+            break;
+          case '"':
+            out.append("\\\"");
+            break;
+          case '\n':
+            out.append("\\n");
+            break;
+          default:
+            out.append(c);
+        }
+      }
+      out.append('"');
+    }
+    return out.toString();
+  }
+}
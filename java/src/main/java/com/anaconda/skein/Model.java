@@ -14,7 +14,6 @@ import org.apache.hadoop.yarn.webapp.util.WebAppUtils;
 import org.apache.log4j.Level;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -260,6 +259,20 @@ public class Model {
   }
 
   public static class Master {
+    public enum GarbageCollector {
+      DEFAULT,
+      SERIAL,
+      PARALLEL,
+      G1
+    }
+
+    public static final double DEFAULT_HEAP_FRACTION = 0.6;
+    // Leave room for the JVM's own off-heap memory
+    public static final double MAX_HEAP_FRACTION = 0.9;
+    // The heap used when an application driver shares the container, unless
+    // a heap fraction is set
+    public static final int DRIVER_HEAP_MEMORY = 128;
+
     private Resource resources;
     private Map<String, LocalResource> localResources;
     private Map<String, String> env;
@@ -269,6 +282,16 @@ public class Model {
     private Level logLevel;
     private Security security;
 
+    // Unset if 0
+    private double heapFraction = 0;
+    private GarbageCollector gc = GarbageCollector.DEFAULT;
+    private int maxDirectMemory;
+
+    private int grpcWorkerThreads;
+    private int grpcExecutorThreads;
+    private boolean grpcNativeTransport;
+    private int grpcFlowControlWindow;
+
     public Master() {
     }
 
@@ -295,6 +318,66 @@ public class Model {
     public Security getSecurity() { return this.security; }
     public boolean hasSecurity() { return this.security != null; }
 
+    public void setHeapFraction(double heapFraction) { this.heapFraction = heapFraction; }
+    public double getHeapFraction() { return heapFraction; }
+
+    public void setGc(GarbageCollector gc) { this.gc = gc; }
+    public GarbageCollector getGc() { return gc; }
+
+    public void setMaxDirectMemory(int maxDirectMemory) { this.maxDirectMemory = maxDirectMemory; }
+    public int getMaxDirectMemory() { return maxDirectMemory; }
+
+    public void setGrpcWorkerThreads(int n) { this.grpcWorkerThreads = n; }
+    public int getGrpcWorkerThreads() { return grpcWorkerThreads; }
+
+    public void setGrpcExecutorThreads(int n) { this.grpcExecutorThreads = n; }
+    public int getGrpcExecutorThreads() { return grpcExecutorThreads; }
+
+    public void setGrpcNativeTransport(boolean b) { this.grpcNativeTransport = b; }
+    public boolean getGrpcNativeTransport() { return grpcNativeTransport; }
+
+    public void setGrpcFlowControlWindow(int n) { this.grpcFlowControlWindow = n; }
+    public int getGrpcFlowControlWindow() { return grpcFlowControlWindow; }
+
+    public GrpcServerOptions getGrpcServerOptions() {
+      return new GrpcServerOptions(grpcWorkerThreads, grpcExecutorThreads,
+                                   grpcNativeTransport, grpcFlowControlWindow);
+    }
+
+    private boolean hasDriver() {
+      return script != null && !script.isEmpty();
+    }
+
+    /** The maximum heap size for the application master JVM, in MiB.
+     *
+     * If a heap fraction is set, this is that fraction of the container's
+     * memory. Otherwise, when an application driver runs alongside the JVM
+     * its memory use is unknown, so the heap is kept at a fixed small size;
+     * without one, the heap is the default fraction of the container.
+     **/
+    public int getHeapMemory() {
+      if (heapFraction == 0 && hasDriver()) {
+        return Math.min(DRIVER_HEAP_MEMORY, resources.getMemory());
+      }
+      double fraction = heapFraction > 0 ? heapFraction : DEFAULT_HEAP_FRACTION;
+      return Math.max(1, (int)(resources.getMemory() * fraction));
+    }
+
+    /** The maximum direct memory size for the application master JVM, in
+     * MiB. If not set, this is half the memory not used by the heap, leaving
+     * the rest for metaspace, thread stacks, and other native memory. With
+     * an application driver and no heap fraction set, it's the same as the
+     * heap (the JVM's own default), leaving the rest for the driver. **/
+    public int getDirectMemory() {
+      if (maxDirectMemory > 0) {
+        return maxDirectMemory;
+      }
+      if (heapFraction == 0 && hasDriver()) {
+        return getHeapMemory();
+      }
+      return Math.max(1, (resources.getMemory() - getHeapMemory()) / 2);
+    }
+
     public void validate() throws IllegalArgumentException {
       throwIfNull(resources, "resources");
       throwIfLessThan(resources.getMemory(), 1, "resources.memory");
@@ -303,6 +386,16 @@ public class Model {
       throwIfNull(env, "env");
       throwIfNull(script, "script");
       throwIfNull(logLevel, "logLevel");
+      if (!(heapFraction >= 0 && heapFraction <= MAX_HEAP_FRACTION)) {
+        throw new IllegalArgumentException(
+            "heapFraction must be 0 (unset) or in (0, " + MAX_HEAP_FRACTION
+            + "], got " + heapFraction);
+      }
+      throwIfNull(gc, "gc");
+      throwIfLessThan(maxDirectMemory, 0, "maxDirectMemory");
+      throwIfLessThan(grpcWorkerThreads, 0, "grpcWorkerThreads");
+      throwIfLessThan(grpcExecutorThreads, 0, "grpcExecutorThreads");
+      throwIfLessThan(grpcFlowControlWindow, 0, "grpcFlowControlWindow");
       if (security != null) {
         security.validate();
       }
@@ -433,7 +526,6 @@ public class Model {
     private long startTime;
     private long finishTime;
     private ContainerRequest req;
-    private Set<String> ownedKeys;
     private String exitMessage;
 
     public Container() {}
@@ -447,7 +539,6 @@ public class Model {
       this.yarnContainerId = null;
       this.startTime = 0;
       this.finishTime = 0;
-      this.ownedKeys = new HashSet<String>();
     }
 
     public String toString() {
@@ -524,16 +615,5 @@ public class Model {
       this.req = null;
       return out;
     }
-
-    public void addOwnedKey(String key) {
-      ownedKeys.add(key);
-    }
-
-    public void removeOwnedKey(String key) {
-      ownedKeys.remove(key);
-    }
-
-    public Set<String> getOwnedKeys() { return ownedKeys; }
-    public void clearOwnedKeys() { ownedKeys.clear(); }
   }
 }
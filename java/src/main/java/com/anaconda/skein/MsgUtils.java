@@ -537,7 +537,14 @@ public class MsgUtils {
         .setResources(writeResources(master.getResources()))
         .putAllEnv(master.getEnv())
         .setScript(master.getScript())
-        .setLogLevel(writeLogLevel(master.getLogLevel()));
+        .setLogLevel(writeLogLevel(master.getLogLevel()))
+        .setHeapFraction(master.getHeapFraction())
+        .setGc(Msg.Master.GarbageCollector.valueOf(master.getGc().toString()))
+        .setMaxDirectMemory(master.getMaxDirectMemory())
+        .setGrpcWorkerThreads(master.getGrpcWorkerThreads())
+        .setGrpcExecutorThreads(master.getGrpcExecutorThreads())
+        .setGrpcNativeTransport(master.getGrpcNativeTransport())
+        .setGrpcFlowControlWindow(master.getGrpcFlowControlWindow());
 
     for (Map.Entry<String, LocalResource> entry : master.getLocalResources().entrySet()) {
       builder.putFiles(entry.getKey(), writeFile(entry.getValue()));
@@ -573,6 +580,14 @@ public class MsgUtils {
       out.setSecurity(readSecurity(master.getSecurity()));
     }
     out.setLogLevel(readLogLevel(master.getLogLevel()));
+    // Unset (0) if the default sizing should be used
+    out.setHeapFraction(master.getHeapFraction());
+    out.setGc(Model.Master.GarbageCollector.valueOf(master.getGc().toString()));
+    out.setMaxDirectMemory(master.getMaxDirectMemory());
+    out.setGrpcWorkerThreads(master.getGrpcWorkerThreads());
+    out.setGrpcExecutorThreads(master.getGrpcExecutorThreads());
+    out.setGrpcNativeTransport(master.getGrpcNativeTransport());
+    out.setGrpcFlowControlWindow(master.getGrpcFlowControlWindow());
     return out;
   }
 
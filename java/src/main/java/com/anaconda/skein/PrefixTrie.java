@@ -0,0 +1,166 @@
+package com.anaconda.skein;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** A character trie of items keyed by prefix.
+ *
+ * Finding all items whose prefix matches a key walks only the key's
+ * characters, so the cost of a lookup doesn't depend on the number of items
+ * stored. Items are `IntervalTree.Item`s covering [prefix, nextKey(prefix)),
+ * so they can be visited interchangeably with items from an `IntervalTree`.
+ **/
+public class PrefixTrie<T> {
+  private final Node<T> root = new Node<T>("", null);
+  private int size = 0;
+
+  private static final class Node<V> {
+    private final String prefix;
+    private final Node<V> parent;
+    // Children sorted by their character, stored in [0:numChildren]
+    private char[] chars = new char[0];
+    private Node<V>[] children = newNodeArray(0);
+    private int numChildren = 0;
+    private final List<IntervalTree.Item<V>> items =
+        new ArrayList<IntervalTree.Item<V>>(1);
+
+    Node(String prefix, Node<V> parent) {
+      this.prefix = prefix;
+      this.parent = parent;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V>[] newNodeArray(int size) {
+      return (Node<V>[]) new Node<?>[size];
+    }
+
+    Node<V> child(char c) {
+      int i = Arrays.binarySearch(chars, 0, numChildren, c);
+      return i >= 0 ? children[i] : null;
+    }
+
+    Node<V> addChild(char c) {
+      int i = Arrays.binarySearch(chars, 0, numChildren, c);
+      if (i >= 0) {
+        return children[i];
+      }
+      i = -(i + 1);
+      if (numChildren == chars.length) {
+        int capacity = Math.max(2, 2 * numChildren);
+        chars = Arrays.copyOf(chars, capacity);
+        children = Arrays.copyOf(children, capacity);
+      }
+      System.arraycopy(chars, i, chars, i + 1, numChildren - i);
+      System.arraycopy(children, i, children, i + 1, numChildren - i);
+      Node<V> child = new Node<V>(prefix + c, this);
+      chars[i] = c;
+      children[i] = child;
+      numChildren++;
+      return child;
+    }
+
+    void removeChild(char c) {
+      int i = Arrays.binarySearch(chars, 0, numChildren, c);
+      if (i >= 0) {
+        numChildren--;
+        System.arraycopy(chars, i + 1, chars, i, numChildren - i);
+        System.arraycopy(children, i + 1, children, i, numChildren - i);
+        children[numChildren] = null;
+      }
+    }
+
+    boolean isEmpty() {
+      return numChildren == 0 && items.isEmpty();
+    }
+
+    void visitItems(IntervalTree.Visitor<V> visitor) {
+      for (int i = 0; i < items.size(); i++) {
+        visitor.visit(items.get(i));
+      }
+    }
+
+    // Visit all items in this subtree whose range intersects
+    // [begin, end] (note inclusive end, null for unbounded).
+    void query(String begin, String end, IntervalTree.Visitor<V> visitor) {
+      // All prefixes in this subtree start with `prefix`, so their ranges
+      // lie within [prefix, nextKey(prefix)).
+      if (end != null && prefix.compareTo(end) > 0) {
+        return;
+      }
+      if (!begin.startsWith(prefix) && prefix.compareTo(begin) < 0) {
+        return;
+      }
+      visitItems(visitor);
+      for (int i = 0; i < numChildren; i++) {
+        children[i].query(begin, end, visitor);
+      }
+    }
+  }
+
+  /** Returns true if [start, end) is exactly the set of keys prefixed by
+   * `start`, i.e. `end` is `start` with its last character incremented. **/
+  public static boolean isPrefixRange(String start, String end) {
+    int n = start.length();
+    return (n > 0
+            && end != null
+            && end.length() == n
+            && end.charAt(n - 1) == start.charAt(n - 1) + 1
+            && end.regionMatches(0, start, 0, n - 1));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Add an item, keyed by the beginning of its interval. **/
+  public void add(IntervalTree.Item<T> item) {
+    String prefix = item.getIntervalBegin();
+    Node<T> node = root;
+    for (int i = 0; i < prefix.length(); i++) {
+      node = node.addChild(prefix.charAt(i));
+    }
+    node.items.add(item);
+    size++;
+  }
+
+  public boolean remove(IntervalTree.Item<T> item) {
+    String prefix = item.getIntervalBegin();
+    Node<T> node = root;
+    for (int i = 0; i < prefix.length() && node != null; i++) {
+      node = node.child(prefix.charAt(i));
+    }
+    if (node == null || !node.items.remove(item)) {
+      return false;
+    }
+    size--;
+    // Prune any now empty nodes
+    while (node.parent != null && node.isEmpty()) {
+      node.parent.removeChild(node.prefix.charAt(node.prefix.length() - 1));
+      node = node.parent;
+    }
+    return true;
+  }
+
+  /** Visit all items whose prefix is a prefix of `key`. **/
+  public void forEachPrefixOf(String key, IntervalTree.Visitor<T> visitor) {
+    Node<T> node = root;
+    node.visitItems(visitor);
+    for (int i = 0; i < key.length(); i++) {
+      node = node.child(key.charAt(i));
+      if (node == null) {
+        return;
+      }
+      node.visitItems(visitor);
+    }
+  }
+
+  /** Visit all items whose range intersects [begin, end] (note inclusive end,
+   * empty or null for unbounded). **/
+  public void forEachOverlapping(String begin, String end,
+                                 IntervalTree.Visitor<T> visitor) {
+    root.query(begin == null ? "" : begin,
+               (end != null && end.isEmpty()) ? null : end,
+               visitor);
+  }
+}
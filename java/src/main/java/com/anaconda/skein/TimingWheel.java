@@ -0,0 +1,178 @@
+package com.anaconda.skein;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A hierarchical timing wheel, for tracking large numbers of timeouts.
+ *
+ * Time is measured in integer ticks. The lowest level has a slot for each of
+ * the next 64 ticks, and each level above has 64 slots each spanning a full
+ * rotation of the level below. Timeouts are added to the lowest level that
+ * covers their deadline, and are moved down a level each time the level below
+ * wraps around, until they expire from the lowest level (the same scheme used
+ * by the Linux kernel's timer wheel).
+ *
+ * Scheduling and canceling a timeout are O(1). Advancing by a tick is O(1)
+ * plus the number of timeouts expired or moved down, and a timeout is moved
+ * at most once per level, so the cost doesn't grow with the number of
+ * timeouts outstanding. Deadlines further out than the top level covers
+ * (2^24 ticks) are held at the top level until they come into range.
+ *
+ * Not thread safe.
+ **/
+public class TimingWheel<T> {
+  private static final int BITS = 6;
+  private static final int SIZE = 1 << BITS;
+  private static final int MASK = SIZE - 1;
+  private static final int LEVELS = 4;
+  private static final long MAX_DELTA = (1L << (BITS * LEVELS)) - 1;
+
+  // Each slot is a circular doubly linked list with a sentinel head, indexed
+  // by level * SIZE + index.
+  private final List<Timeout<T>> slots = new ArrayList<Timeout<T>>(LEVELS * SIZE);
+  // The next tick to be processed. All timeouts due before it have expired.
+  private long next;
+  private int size = 0;
+
+  /** A scheduled timeout, which may be canceled or rescheduled. **/
+  public static final class Timeout<T> {
+    private final T value;
+    private long deadline;
+    private Timeout<T> prev;
+    private Timeout<T> next;
+
+    private Timeout(T value, long deadline) {
+      this.value = value;
+      this.deadline = deadline;
+    }
+
+    public T getValue() { return value; }
+    public long getDeadline() { return deadline; }
+    public boolean isScheduled() { return next != null; }
+
+    private void unlink() {
+      prev.next = next;
+      next.prev = prev;
+      prev = null;
+      next = null;
+    }
+  }
+
+  /** Create an empty wheel, with time starting at `tick`. **/
+  public TimingWheel(long tick) {
+    for (int i = 0; i < LEVELS * SIZE; i++) {
+      Timeout<T> head = new Timeout<T>(null, 0);
+      head.prev = head;
+      head.next = head;
+      slots.add(head);
+    }
+    next = tick + 1;
+  }
+
+  /** The number of timeouts scheduled. **/
+  public int size() {
+    return size;
+  }
+
+  /** The current tick. **/
+  public long getTick() {
+    return next - 1;
+  }
+
+  /** Schedule a timeout for `value` to expire at tick `deadline`. Deadlines
+   * that have already passed expire on the next tick. **/
+  public Timeout<T> schedule(T value, long deadline) {
+    Timeout<T> timeout = new Timeout<T>(value, deadline);
+    insert(timeout);
+    size++;
+    return timeout;
+  }
+
+  /** Move a timeout to expire at tick `deadline` instead, scheduling it
+   * again if it was canceled or already expired. **/
+  public void reschedule(Timeout<T> timeout, long deadline) {
+    cancel(timeout);
+    timeout.deadline = deadline;
+    insert(timeout);
+    size++;
+  }
+
+  /** Cancel a timeout. Returns true if it was still scheduled. **/
+  public boolean cancel(Timeout<T> timeout) {
+    if (!timeout.isScheduled()) {
+      return false;
+    }
+    timeout.unlink();
+    size--;
+    return true;
+  }
+
+  /** Advance time to `tick`, adding the values of any expired timeouts to
+   * `expired` in the order they expired. **/
+  public void advance(long tick, List<T> expired) {
+    while (next <= tick) {
+      int index = (int) (next & MASK);
+      if (index == 0) {
+        // The lowest level wrapped around, move the next slot of each level
+        // above down, stopping at the first level that didn't also wrap.
+        for (int level = 1; level < LEVELS; level++) {
+          int i = (int) ((next >>> (BITS * level)) & MASK);
+          cascade(level * SIZE + i);
+          if (i != 0) {
+            break;
+          }
+        }
+      }
+      Timeout<T> head = slots.get(index);
+      while (head.next != head) {
+        Timeout<T> timeout = head.next;
+        timeout.unlink();
+        if (timeout.deadline > next) {
+          // Beyond the range of the wheel when scheduled, not yet due
+          insert(timeout);
+        } else {
+          size--;
+          expired.add(timeout.value);
+        }
+      }
+      next++;
+    }
+  }
+
+  private void cascade(int slot) {
+    Timeout<T> head = slots.get(slot);
+    if (head.next == head) {
+      return;
+    }
+    // Detach the whole list first, as timeouts may be reinserted into the
+    // same level
+    Timeout<T> timeout = head.next;
+    head.prev.next = null;
+    head.prev = head;
+    head.next = head;
+    while (timeout != null) {
+      Timeout<T> following = timeout.next;
+      insert(timeout);
+      timeout = following;
+    }
+  }
+
+  private void insert(Timeout<T> timeout) {
+    long expires = Math.max(timeout.deadline, next);
+    long delta = expires - next;
+    if (delta > MAX_DELTA) {
+      delta = MAX_DELTA;
+      expires = next + MAX_DELTA;
+    }
+    int level = 0;
+    while (delta >= (1L << (BITS * (level + 1)))) {
+      level++;
+    }
+    int index = (int) ((expires >>> (BITS * level)) & MASK);
+    Timeout<T> head = slots.get(level * SIZE + index);
+    timeout.prev = head.prev;
+    timeout.next = head;
+    head.prev.next = timeout;
+    head.prev = timeout;
+  }
+}
@@ -0,0 +1,56 @@
+package com.anaconda.skein;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** An index of key ranges, used to find the watchers interested in a key.
+ *
+ * Prefix ranges (as created by `prefix=` filters in the Python client) are
+ * stored in a `PrefixTrie`, so matching them costs only a walk over the
+ * key's characters. All other ranges are stored in an `IntervalTree`. Both
+ * share a single id space, and visitors see items from both.
+ **/
+public class WatchIndex<T> {
+  private final IntervalTree<T> tree = new IntervalTree<T>();
+  private final PrefixTrie<T> trie = new PrefixTrie<T>();
+  private final Map<Integer, IntervalTree.Item<T>> prefixItems =
+      new HashMap<Integer, IntervalTree.Item<T>>();
+  private int currentId = 0;
+
+  public int size() {
+    return tree.size() + trie.size();
+  }
+
+  public int add(String begin, String end, T value) {
+    IntervalTree.Item<T> item =
+        new IntervalTree.Item<T>(begin, end, value, currentId++);
+    if (PrefixTrie.isPrefixRange(item.getIntervalBegin(), item.getIntervalEnd())) {
+      trie.add(item);
+      prefixItems.put(item.getId(), item);
+    } else {
+      tree.add(item);
+    }
+    return item.getId();
+  }
+
+  public boolean remove(int id) {
+    IntervalTree.Item<T> item = prefixItems.remove(id);
+    if (item != null) {
+      return trie.remove(item);
+    }
+    return tree.remove(id);
+  }
+
+  // Visit all ranges containing the key.
+  public void forEachOverlapping(String key, IntervalTree.Visitor<T> visitor) {
+    trie.forEachPrefixOf(key, visitor);
+    tree.forEachOverlapping(key, visitor);
+  }
+
+  // Visit all ranges intersecting with [begin, end] (note inclusive end).
+  public void forEachOverlapping(String begin, String end,
+                                 IntervalTree.Visitor<T> visitor) {
+    trie.forEachOverlapping(begin, end, visitor);
+    tree.forEachOverlapping(begin, end, visitor);
+  }
+}
@@ -76,8 +76,9 @@ public class WebUI {
                AtomicDouble totalMemory,
                AtomicInteger totalVcores,
                long startTimeMillis,
-               Map<String, Msg.KeyValue.Builder> keyValueStore,
+               KeyValueStore keyValueStore,
                List<ServiceContext> services,
+               Metrics metrics,
                Set<String> users,
                Configuration conf,
                boolean testing) throws Exception {
@@ -118,6 +119,7 @@ public class WebUI {
     context.addServlet(
         new ServletHolder(new TemplateServlet(uiModel, "kv.mustache.html")),
         "/kv");
+    context.addServlet(new ServletHolder(new MetricsServlet(metrics)), "/metrics");
     context.addServlet(
         new ServletHolder(new DynamicProxyServlet(prefixToTarget, readLock)),
         PROXY_PREFIX + "/*");
@@ -323,11 +325,13 @@ public class WebUI {
     int port = Integer.parseInt(args[0]);
 
     // Create a dummy key-value store
-    Map<String, Msg.KeyValue.Builder> kv = new TreeMap<String, Msg.KeyValue.Builder>();
-    kv.put("Key 1", Msg.KeyValue.newBuilder().setValue(ByteString.copyFromUtf8("Val 1")));
-    kv.put("Key 2", Msg.KeyValue.newBuilder().setValue(ByteString.copyFromUtf8("Val 2")));
-    kv.put("Key 3", Msg.KeyValue.newBuilder()
-                       .setValue(ByteString.copyFrom(new byte[] {(byte) 255})));
+    KeyValueStore kv = new KeyValueStore();
+    kv.put(Msg.KeyValue.newBuilder().setKey("Key 1")
+              .setValue(ByteString.copyFromUtf8("Val 1")));
+    kv.put(Msg.KeyValue.newBuilder().setKey("Key 2")
+              .setValue(ByteString.copyFromUtf8("Val 2")));
+    kv.put(Msg.KeyValue.newBuilder().setKey("Key 3")
+              .setValue(ByteString.copyFrom(new byte[] {(byte) 255})));
     // Create a dummy services map
     String url = "https://dummyurl.html";
     List<ServiceContext> services = Lists.newArrayList();
@@ -382,6 +386,7 @@ public class WebUI {
                               now - (60 * 60 * 2 + 120) * 1000,
                               kv,
                               services,
+                              new Metrics(),
                               null,
                               new YarnConfiguration(),
                               true);
@@ -451,7 +456,7 @@ public class WebUI {
     private final AtomicInteger totalVcores;
     private final long startTimeMillis;
     private final List<ServiceContext> services;
-    private final Map<String, Msg.KeyValue.Builder> keyValueStore;
+    private final KeyValueStore keyValueStore;
     public final String protocol;
 
     public UIModel(String appId,
@@ -463,7 +468,7 @@ public class WebUI {
                    AtomicDouble totalMemory,
                    AtomicInteger totalVcores,
                    long startTimeMillis,
-                   Map<String, Msg.KeyValue.Builder> keyValueStore,
+                   KeyValueStore keyValueStore,
                    List<ServiceContext> services,
                    String protocol) {
       this.appId = appId;
@@ -502,18 +507,22 @@ public class WebUI {
     }
 
     public List<Map.Entry<String, String>> kv() {
-      synchronized (keyValueStore) {
-        List<Map.Entry<String, String>> out =
-            Lists.newArrayListWithCapacity(keyValueStore.size());
-        for (Map.Entry<String, Msg.KeyValue.Builder> entry : keyValueStore.entrySet()) {
-          ByteString value = entry.getValue().getValue();
-          out.add(Maps.immutableEntry(entry.getKey(),
-                                      value.isValidUtf8()
-                                      ? value.toStringUtf8()
-                                      : "<binary value>"));
-        }
-        return out;
+      List<Msg.KeyValue> values;
+      KeyValueStore.Snapshot snapshot = keyValueStore.snapshot();
+      try {
+        values = snapshot.range("", "");
+      } finally {
+        snapshot.release();
       }
+      List<Map.Entry<String, String>> out = Lists.newArrayListWithCapacity(values.size());
+      for (Msg.KeyValue kv : values) {
+        ByteString value = kv.getValue();
+        out.add(Maps.immutableEntry(kv.getKey(),
+                                    value.isValidUtf8()
+                                    ? value.toStringUtf8()
+                                    : "<binary value>"));
+      }
+      return out;
     }
 
     public List<Map.Entry<String, String>> pages() {
@@ -548,6 +557,22 @@ public class WebUI {
     }
   }
 
+  private static class MetricsServlet extends HttpServlet {
+    private final Metrics metrics;
+
+    public MetricsServlet(Metrics metrics) {
+      this.metrics = metrics;
+    }
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+      response.setContentType(Metrics.CONTENT_TYPE);
+      response.setStatus(HttpServletResponse.SC_OK);
+      metrics.write(response.getWriter());
+    }
+  }
+
   private static class AccessFilter implements Filter {
     Set<String> users;
 
@@ -0,0 +1,409 @@
+package com.anaconda.skein;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.GrpcSslContexts;
+import io.grpc.netty.NettyChannelBuilder;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.protocolrecords.AllocateResponse;
+import org.apache.hadoop.yarn.api.protocolrecords.RegisterApplicationMasterResponse;
+import org.apache.hadoop.yarn.api.records.ApplicationAccessType;
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerExitStatus;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.ContainerState;
+import org.apache.hadoop.yarn.api.records.ContainerStatus;
+import org.apache.hadoop.yarn.api.records.FinalApplicationStatus;
+import org.apache.hadoop.yarn.api.records.NMToken;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.api.records.SerializedException;
+import org.apache.hadoop.yarn.client.api.AMRMClient.ContainerRequest;
+import org.apache.hadoop.yarn.client.api.AMRMClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** Runs an ApplicationMaster in-process, without a YARN cluster.
+ *
+ * The resource manager is replaced by an in-memory stand-in that grants
+ * every container request on the next heartbeat, on the requested node if
+ * any, otherwise spreading containers over a fixed number of fake nodes.
+ * Container launches succeed after an optional delay, without starting any
+ * processes. Everything else - the gRPC server, key-value store, watches,
+ * service tracking, and web UI - is the real implementation, so the harness
+ * can be used to load test the application master on a single machine.
+ *
+ * The application directory is a temporary local directory, and the gRPC
+ * server uses a self-signed certificate that clients from `newChannel` also
+ * present. Restarts are simulated with `nextAttempt`.
+ **/
+public class ApplicationMasterHarness {
+  private static final ApplicationId APP_ID = ApplicationId.newInstance(0, 1);
+
+  private final Model.ApplicationSpec spec;
+  private final ApplicationAttemptId attemptId;
+  private final FakeResourceManager rm;
+  private int numNodes = 10;
+  private long launchDelayMillis = 0;
+
+  private File appDir;
+  private SelfSignedCertificate cert;
+  private HarnessMaster master;
+  private Thread masterThread;
+  private final List<ContainerLaunchContext> launched =
+      Collections.synchronizedList(new ArrayList<ContainerLaunchContext>());
+  private volatile int exitCode = -1;
+
+  public ApplicationMasterHarness(Msg.ApplicationSpec spec) {
+    this(MsgUtils.readApplicationSpec(spec), 1, null,
+         Collections.<Container>emptyList());
+  }
+
+  private ApplicationMasterHarness(Model.ApplicationSpec spec, int attempt, File appDir,
+                                   List<Container> previous) {
+    this.spec = spec;
+    this.attemptId = ApplicationAttemptId.newInstance(APP_ID, attempt);
+    this.appDir = appDir;
+    this.rm = new FakeResourceManager(previous);
+  }
+
+  /** A harness for the next attempt of the same application, to be started
+   * after this one terminated without finishing the application. It shares
+   * this attempt's application directory, and its resource manager reports
+   * containers still live here as kept from previous attempts. **/
+  public ApplicationMasterHarness nextAttempt() {
+    ApplicationMasterHarness next = new ApplicationMasterHarness(
+        spec, attemptId.getAttemptId() + 1, appDir, rm.getLiveContainers());
+    next.numNodes = numNodes;
+    next.launchDelayMillis = launchDelayMillis;
+    return next;
+  }
+
+  /** The application directory, available once started. **/
+  public File getAppDir() { return appDir; }
+
+  /** A specification with a single service of `instances` containers. **/
+  public static Msg.ApplicationSpec simpleSpec(String service, int instances) {
+    return Msg.ApplicationSpec.newBuilder()
+        .setName("harness")
+        .setQueue("default")
+        .setMaxAttempts(1)
+        .setMaster(Msg.Master.newBuilder()
+            .setResources(Msg.Resources.newBuilder().setMemory(512).setVcores(1)))
+        .putServices(service, Msg.Service.newBuilder()
+            .setInstances(instances)
+            .setResources(Msg.Resources.newBuilder().setMemory(128).setVcores(1))
+            .setScript("sleep infinity")
+            .build())
+        .build();
+  }
+
+  /** The number of nodes containers are spread across. **/
+  public void setNumNodes(int numNodes) { this.numNodes = numNodes; }
+  public int getNumNodes() { return numNodes; }
+
+  /** How long each batch of container launches on a node takes. **/
+  public void setLaunchDelayMillis(long millis) { this.launchDelayMillis = millis; }
+  public long getLaunchDelayMillis() { return launchDelayMillis; }
+
+  public FakeResourceManager getResourceManager() { return rm; }
+
+  public Metrics getMetrics() { return master.getMetrics(); }
+
+  /** The launch contexts of all containers started so far. **/
+  public List<ContainerLaunchContext> getLaunchContexts() {
+    synchronized (launched) {
+      return new ArrayList<ContainerLaunchContext>(launched);
+    }
+  }
+
+  /** Start the application master, returning once it has registered. **/
+  public void start() throws Exception {
+    if (appDir == null) {
+      appDir = Files.createTempDirectory("skein-harness").toFile();
+    }
+    cert = new SelfSignedCertificate("localhost");
+    master = new HarnessMaster();
+    master.init(new Path(appDir.toURI()), APP_ID,
+                ContainerId.newContainerId(attemptId, 1), "localhost");
+    masterThread = new Thread("application-master") {
+      public void run() {
+        exitCode = master.run();
+      }
+    };
+    masterThread.setDaemon(true);
+    masterThread.start();
+    if (!rm.awaitRegistered(30, TimeUnit.SECONDS)) {
+      throw new TimeoutException("Application master failed to register");
+    }
+  }
+
+  /** The address of the application master's gRPC server. **/
+  public String getAddress() {
+    return "localhost:" + rm.getPort();
+  }
+
+  /** Create a channel to the application master, authenticated with the
+   * harness's certificate. **/
+  public ManagedChannel newChannel() throws IOException {
+    SslContext sslContext = GrpcSslContexts.forClient()
+        .keyManager(cert.certificate(), cert.privateKey())
+        .trustManager(cert.certificate())
+        .build();
+    return NettyChannelBuilder.forAddress("localhost", rm.getPort())
+        .sslContext(sslContext)
+        .build();
+  }
+
+  /** Wait for the application master to finish after a shutdown request,
+   * then cleanup. Returns the exit code. **/
+  public int awaitTermination(long timeout, TimeUnit unit) throws Exception {
+    masterThread.join(unit.toMillis(timeout));
+    if (masterThread.isAlive()) {
+      throw new TimeoutException("Application master failed to shutdown");
+    }
+    master.runOnExit();
+    cert.delete();
+    return exitCode;
+  }
+
+  private class HarnessMaster extends ApplicationMaster {
+    @Override
+    Model.ApplicationSpec readApplicationSpec() {
+      return spec;
+    }
+
+    @Override
+    AMRMClient<ContainerRequest> createRMClient() {
+      return rm;
+    }
+
+    @Override
+    ContainerLauncher createContainerLauncher() {
+      return new FakeLauncher(getMetrics());
+    }
+
+    @Override
+    Resource getAppMasterResources() {
+      return spec.getMaster().getResources();
+    }
+
+    @Override
+    SslContext newServerSslContext() throws IOException {
+      return GrpcSslContexts
+          .forServer(cert.certificate(), cert.privateKey())
+          .trustManager(cert.certificate())
+          .clientAuth(ClientAuth.REQUIRE)
+          .build();
+    }
+
+    @Override
+    void registerShutdownHook() {
+      // Cleanup is done by awaitTermination instead
+    }
+  }
+
+  private class FakeLauncher extends ContainerLauncher {
+    FakeLauncher(Metrics metrics) {
+      super(new Configuration(), 25, metrics);
+    }
+
+    @Override
+    Map<ContainerId, SerializedException> startContainers(
+        NodeId node, List<Container> containers, List<ContainerLaunchContext> contexts) {
+      if (launchDelayMillis > 0) {
+        try {
+          Thread.sleep(launchDelayMillis);
+        } catch (InterruptedException exc) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      launched.addAll(contexts);
+      return Collections.emptyMap();
+    }
+  }
+
+  /** A resource manager that grants all requests on the next heartbeat. **/
+  public class FakeResourceManager extends AMRMClient<ContainerRequest> {
+    private final CountDownLatch registered = new CountDownLatch(1);
+    private volatile int port;
+    private volatile FinalApplicationStatus finalStatus;
+
+    private final List<Container> previous;
+
+    // Guarded by this
+    private final Set<ContainerRequest> pending = new LinkedHashSet<ContainerRequest>();
+    private final Map<ContainerId, Container> live = new LinkedHashMap<ContainerId, Container>();
+    private final List<ContainerStatus> completed = new ArrayList<ContainerStatus>();
+    private long nextContainerId = 2;
+    private int nextNode = 0;
+    private int responseId = 0;
+    private int numHeartbeats = 0;
+    private boolean granting = true;
+
+    FakeResourceManager(List<Container> previous) {
+      super(FakeResourceManager.class.getName());
+      this.previous = previous;
+      for (Container container : previous) {
+        live.put(container.getId(), container);
+      }
+    }
+
+    boolean awaitRegistered(long timeout, TimeUnit unit) throws InterruptedException {
+      return registered.await(timeout, unit);
+    }
+
+    public int getPort() { return port; }
+
+    /** The status the application unregistered with, or null. **/
+    public FinalApplicationStatus getFinalStatus() { return finalStatus; }
+
+    /** The number of allocated containers not yet completed. **/
+    public synchronized int getNumLive() { return live.size(); }
+
+    /** The allocated containers not yet completed, in allocation order. **/
+    public synchronized List<Container> getLiveContainers() {
+      return new ArrayList<Container>(live.values());
+    }
+
+    /** The number of container requests not yet granted. **/
+    public synchronized int getNumPending() { return pending.size(); }
+
+    /** The container requests not yet granted, in request order. **/
+    public synchronized List<ContainerRequest> getPendingRequests() {
+      return new ArrayList<ContainerRequest>(pending);
+    }
+
+    /** Whether requests are granted on each heartbeat. While false they are
+     * left pending, so the requests made by the application master can be
+     * inspected. **/
+    public synchronized void setGranting(boolean granting) { this.granting = granting; }
+
+    /** The number of allocate heartbeats received so far. **/
+    public synchronized int getNumHeartbeats() { return numHeartbeats; }
+
+    /** Complete a container as if its process exited, reported to the
+     * application master on its next heartbeat. **/
+    public synchronized void completeContainer(ContainerId id, int exitStatus) {
+      if (live.remove(id) != null) {
+        completed.add(ContainerStatus.newInstance(
+            id, ContainerState.COMPLETE, "", exitStatus));
+      }
+    }
+
+    @Override
+    public RegisterApplicationMasterResponse registerApplicationMaster(
+        String host, int port, String trackingUrl) {
+      this.port = port;
+      registered.countDown();
+      return RegisterApplicationMasterResponse.newInstance(
+          Resource.newInstance(Integer.MAX_VALUE, Integer.MAX_VALUE),
+          Resource.newInstance(Integer.MAX_VALUE, Integer.MAX_VALUE),
+          new HashMap<ApplicationAccessType, String>(),
+          null,
+          previous,
+          "default",
+          Collections.<NMToken>emptyList());
+    }
+
+    @Override
+    public synchronized AllocateResponse allocate(float progress) {
+      numHeartbeats++;
+      List<Container> allocated = new ArrayList<Container>();
+      if (granting) {
+        for (ContainerRequest req : pending) {
+          allocated.add(grant(req));
+        }
+        pending.clear();
+      }
+      List<ContainerStatus> done = new ArrayList<ContainerStatus>(completed);
+      completed.clear();
+      return AllocateResponse.newInstance(
+          responseId++, done, allocated, Collections.<NodeReport>emptyList(),
+          getAvailableResources(), null, numNodes, null,
+          Collections.<NMToken>emptyList());
+    }
+
+    private Container grant(ContainerRequest req) {
+      ContainerId id = ContainerId.newContainerId(attemptId, nextContainerId++);
+      String host;
+      if (req.getNodes() != null && !req.getNodes().isEmpty()) {
+        host = req.getNodes().get(0);
+      } else {
+        host = "node-" + nextNode;
+        nextNode = (nextNode + 1) % numNodes;
+      }
+      Container container = Container.newInstance(
+          id, NodeId.newInstance(host, 8041), host + ":8042",
+          req.getCapability(), req.getPriority(), null);
+      live.put(id, container);
+      return container;
+    }
+
+    @Override
+    public void unregisterApplicationMaster(FinalApplicationStatus status,
+                                            String message, String trackingUrl) {
+      finalStatus = status;
+    }
+
+    @Override
+    public synchronized void addContainerRequest(ContainerRequest req) {
+      pending.add(req);
+    }
+
+    @Override
+    public synchronized void removeContainerRequest(ContainerRequest req) {
+      pending.remove(req);
+    }
+
+    @Override
+    public synchronized void releaseAssignedContainer(ContainerId id) {
+      if (live.remove(id) != null) {
+        completed.add(ContainerStatus.newInstance(
+            id, ContainerState.COMPLETE, "Container released by application",
+            ContainerExitStatus.ABORTED));
+      }
+    }
+
+    @Override
+    public Resource getAvailableResources() {
+      return Resource.newInstance(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int getClusterNodeCount() {
+      return numNodes;
+    }
+
+    @Override
+    public List<? extends Collection<ContainerRequest>> getMatchingRequests(
+        Priority priority, String resourceName, Resource capability) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void updateBlacklist(List<String> additions, List<String> removals) {}
+  }
+}
@@ -0,0 +1,467 @@
+package com.anaconda.skein;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Drives a mix of requests at an application master at a fixed rate, and
+ * reports latency percentiles for each kind of request.
+ *
+ * Requests are issued on schedule whether or not earlier ones have
+ * completed, and latency is measured from when each request was due, so a
+ * stalled server shows up in the tail latencies instead of slowing the load.
+ *
+ * Run against an in-process application master with:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.anaconda.skein.LoadGenerator \
+ *     -Dexec.args="--rate 1000 --duration 30 --instances 100"
+ **/
+public class LoadGenerator {
+  public enum Op {
+    /** Put a random key. **/
+    PUT_KEY,
+    /** Create a watch on a random key, timed until the watch is created. **/
+    WATCH,
+    /** Scale the service up by one container. **/
+    SCALE,
+    /** Kill a container started by an earlier SCALE. **/
+    KILL
+  }
+
+  // Watch streams shared by all WATCH requests
+  private static final int NUM_WATCH_STREAMS = 4;
+
+  private final AppMasterGrpc.AppMasterStub stub;
+  private final String service;
+  private final Map<Op, Integer> mix = new EnumMap<Op, Integer>(Op.class);
+  private int numKeys = 10000;
+  private int valueSize = 100;
+  private int maxWatches = 1000;
+
+  private final Map<Op, Latencies> latencies = new EnumMap<Op, Latencies>(Op.class);
+  private final AtomicLong numEvents = new AtomicLong(0);
+  private final Queue<Integer> scaled = new ConcurrentLinkedQueue<Integer>();
+  private ByteString value;
+  private WatchStream[] watchStreams;
+
+  public LoadGenerator(ManagedChannel channel, String service) {
+    this.stub = AppMasterGrpc.newStub(channel);
+    this.service = service;
+    mix.put(Op.PUT_KEY, 70);
+    mix.put(Op.WATCH, 10);
+    mix.put(Op.SCALE, 10);
+    mix.put(Op.KILL, 10);
+    for (Op op : Op.values()) {
+      latencies.put(op, new Latencies());
+    }
+  }
+
+  /** The relative frequency of a kind of request, 0 to disable it. **/
+  public void setWeight(Op op, int weight) { mix.put(op, weight); }
+  public int getWeight(Op op) { return mix.get(op); }
+
+  /** The number of distinct keys put and watched. **/
+  public void setNumKeys(int numKeys) { this.numKeys = numKeys; }
+  public int getNumKeys() { return numKeys; }
+
+  public void setValueSize(int valueSize) { this.valueSize = valueSize; }
+  public int getValueSize() { return valueSize; }
+
+  /** The number of watches kept open, the oldest are canceled beyond this. **/
+  public void setMaxWatches(int maxWatches) { this.maxWatches = maxWatches; }
+  public int getMaxWatches() { return maxWatches; }
+
+  public Latencies getLatencies(Op op) { return latencies.get(op); }
+
+  /** The number of watch events received. **/
+  public long getNumEvents() { return numEvents.get(); }
+
+  /** Issue `rate` requests per second for `durationMillis`, then wait for
+   * outstanding requests to complete. **/
+  public void run(double rate, long durationMillis) throws InterruptedException {
+    value = ByteString.copyFrom(new byte[valueSize]);
+    watchStreams = new WatchStream[NUM_WATCH_STREAMS];
+    for (int i = 0; i < watchStreams.length; i++) {
+      watchStreams[i] = new WatchStream();
+    }
+
+    final Op[] ops = weightedOps();
+    final long periodNanos = (long) (1e9 / rate);
+    final long total = TimeUnit.MILLISECONDS.toNanos(durationMillis) / periodNanos;
+    final long startNanos = System.nanoTime();
+    final AtomicLong issued = new AtomicLong(0);
+
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new Utils.CustomThreadFactory("load-generator", true));
+    scheduler.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        // Catch up on any requests that came due since the last tick
+        long due = Math.min(total, (System.nanoTime() - startNanos) / periodNanos + 1);
+        Random random = ThreadLocalRandom.current();
+        for (long i = issued.get(); i < due; i++) {
+          issue(ops[random.nextInt(ops.length)], startNanos + i * periodNanos);
+        }
+        issued.set(due);
+      }
+    }, 0, Math.max(periodNanos, TimeUnit.MILLISECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+
+    Thread.sleep(durationMillis);
+    while (issued.get() < total) {
+      Thread.sleep(10);
+    }
+    scheduler.shutdownNow();
+    for (Op op : Op.values()) {
+      latencies.get(op).awaitCompleted(issuedCount(op), 30, TimeUnit.SECONDS);
+    }
+    for (WatchStream stream : watchStreams) {
+      stream.close();
+    }
+  }
+
+  /** Discard the latencies recorded so far, e.g. after a warmup run. **/
+  public void reset() {
+    for (Op op : Op.values()) {
+      latencies.put(op, new Latencies());
+    }
+    numEvents.set(0);
+  }
+
+  private long issuedCount(Op op) {
+    return latencies.get(op).issued.get();
+  }
+
+  private Op[] weightedOps() {
+    int size = 0;
+    for (int weight : mix.values()) {
+      size += weight;
+    }
+    if (size <= 0) {
+      throw new IllegalArgumentException("At least one request weight must be positive");
+    }
+    Op[] ops = new Op[size];
+    int i = 0;
+    for (Map.Entry<Op, Integer> entry : mix.entrySet()) {
+      for (int j = 0; j < entry.getValue(); j++) {
+        ops[i++] = entry.getKey();
+      }
+    }
+    return ops;
+  }
+
+  private String randomKey() {
+    return String.format("load/%08d", ThreadLocalRandom.current().nextInt(numKeys));
+  }
+
+  private void issue(Op op, long dueNanos) {
+    Latencies lat = latencies.get(op);
+    lat.issued.incrementAndGet();
+    switch (op) {
+      case PUT_KEY:
+        stub.putKey(Msg.PutKeyRequest.newBuilder()
+                        .setKey(randomKey())
+                        .setValue(value)
+                        .build(),
+                    new Timed<Msg.PutKeyResponse>(lat, dueNanos));
+        break;
+      case WATCH:
+        watchStreams[ThreadLocalRandom.current().nextInt(watchStreams.length)]
+            .create(randomKey(), dueNanos);
+        break;
+      case SCALE:
+        StreamObserver<Msg.ContainersResponse> observer =
+            new Timed<Msg.ContainersResponse>(lat, dueNanos) {
+              @Override
+              public void onNext(Msg.ContainersResponse resp) {
+                for (Msg.Container c : resp.getContainersList()) {
+                  scaled.add(c.getInstance());
+                }
+              }
+            };
+        stub.scale(Msg.ScaleRequest.newBuilder()
+                       .setServiceName(service)
+                       .setDelta(1)
+                       .build(),
+                   observer);
+        break;
+      case KILL:
+        Integer instance = scaled.poll();
+        if (instance == null) {
+          // Nothing to kill yet
+          lat.skip();
+          break;
+        }
+        stub.killContainer(Msg.ContainerInstance.newBuilder()
+                               .setServiceName(service)
+                               .setInstance(instance)
+                               .build(),
+                           new Timed<Msg.Empty>(lat, dueNanos));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown op " + op);
+    }
+  }
+
+  /** Records the latency of a unary request on completion. **/
+  private static class Timed<T> implements StreamObserver<T> {
+    private final Latencies lat;
+    private final long dueNanos;
+
+    Timed(Latencies lat, long dueNanos) {
+      this.lat = lat;
+      this.dueNanos = dueNanos;
+    }
+
+    public void onNext(T resp) {}
+
+    public void onError(Throwable t) {
+      lat.error();
+    }
+
+    public void onCompleted() {
+      lat.record(System.nanoTime() - dueNanos);
+    }
+  }
+
+  /** A watch stream, shared by many watches. Responses to create requests
+   * arrive in the order the requests were sent. **/
+  private class WatchStream implements StreamObserver<Msg.WatchResponse> {
+    private final StreamObserver<Msg.WatchRequest> requests;
+    // Guarded by this
+    private final Queue<Long> creating = new ArrayDeque<Long>();
+    private final Queue<Integer> open = new ArrayDeque<Integer>();
+
+    WatchStream() {
+      requests = stub.watch(this);
+    }
+
+    synchronized void create(String key, long dueNanos) {
+      creating.add(dueNanos);
+      requests.onNext(Msg.WatchRequest.newBuilder()
+          .setCreate(Msg.WatchCreateRequest.newBuilder()
+              .setStart(key)
+              .setEnd(key + "\u0000"))
+          .build());
+    }
+
+    synchronized void close() {
+      requests.onCompleted();
+    }
+
+    public synchronized void onNext(Msg.WatchResponse resp) {
+      switch (resp.getType()) {
+        case CREATE:
+          latencies.get(Op.WATCH).record(System.nanoTime() - creating.remove());
+          open.add(resp.getWatchId());
+          if (open.size() > maxWatches / NUM_WATCH_STREAMS) {
+            requests.onNext(Msg.WatchRequest.newBuilder()
+                .setCancel(Msg.WatchCancelRequest.newBuilder()
+                    .setWatchId(open.remove()))
+                .build());
+          }
+          break;
+        case PUT:
+        case DELETE:
+          numEvents.addAndGet(resp.getEventCount());
+          break;
+        default:
+          break;
+      }
+    }
+
+    public synchronized void onError(Throwable t) {
+      while (creating.poll() != null) {
+        latencies.get(Op.WATCH).error();
+      }
+    }
+
+    public void onCompleted() {}
+  }
+
+  /** Latencies of completed requests, in nanoseconds. **/
+  public static class Latencies {
+    private final AtomicLong issued = new AtomicLong(0);
+    // Guarded by this
+    private long[] values = new long[1024];
+    private int count = 0;
+    private int errors = 0;
+    private int skipped = 0;
+
+    synchronized void record(long nanos) {
+      if (count == values.length) {
+        values = Arrays.copyOf(values, count * 2);
+      }
+      values[count++] = nanos;
+      notifyAll();
+    }
+
+    synchronized void error() {
+      errors += 1;
+      notifyAll();
+    }
+
+    synchronized void skip() {
+      skipped += 1;
+      notifyAll();
+    }
+
+    synchronized void awaitCompleted(long total, long timeout, TimeUnit unit)
+        throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (count + errors + skipped < total) {
+        long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (left <= 0) {
+          return;
+        }
+        wait(left);
+      }
+    }
+
+    public synchronized int getCount() { return count; }
+    public synchronized int getErrors() { return errors; }
+    public synchronized int getSkipped() { return skipped; }
+
+    /** The latency at quantile `q` in (0, 1], or 0 if none were recorded. **/
+    public synchronized long percentile(double q) {
+      if (count == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(values, count);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(q * count) - 1;
+      return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.3f", nanos / 1e6);
+  }
+
+  /** Print a table of request counts and latency percentiles. **/
+  public void report(StringBuilder out) {
+    out.append(String.format("%-8s %9s %7s %9s %9s %9s %9s%n",
+        "op", "count", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+    for (Op op : Op.values()) {
+      Latencies lat = latencies.get(op);
+      if (lat.getCount() + lat.getErrors() == 0) {
+        continue;
+      }
+      out.append(String.format("%-8s %9d %7d %9s %9s %9s %9s%n",
+          op.toString().toLowerCase(), lat.getCount(), lat.getErrors(),
+          millis(lat.percentile(0.5)), millis(lat.percentile(0.99)),
+          millis(lat.percentile(0.999)), millis(lat.percentile(1.0))));
+    }
+    out.append(String.format("watch events received: %d%n", getNumEvents()));
+  }
+
+  private static void usage() {
+    System.err.println(
+        "Usage: LoadGenerator [--rate N] [--duration SECONDS] [--warmup SECONDS]\n"
+        + "                     [--instances N] [--nodes N] [--keys N]\n"
+        + "                     [--value-size BYTES] [--max-watches N]\n"
+        + "                     [--launch-delay MS]\n"
+        + "                     [--mix put=70,watch=10,scale=10,kill=10]");
+    System.exit(1);
+  }
+
+  /** Load test an in-process application master. **/
+  public static void main(String[] args) throws Exception {
+    double rate = 1000;
+    long duration = 30;
+    long warmup = 5;
+    int instances = 10;
+    int nodes = 10;
+    long launchDelay = 0;
+    String mix = null;
+    int numKeys = 10000;
+    int valueSize = 100;
+    int maxWatches = 1000;
+
+    if (args.length % 2 != 0) {
+      usage();
+    }
+    for (int i = 0; i < args.length; i += 2) {
+      String val = args[i + 1];
+      String flag = args[i];
+      if (flag.equals("--rate")) {
+        rate = Double.parseDouble(val);
+      } else if (flag.equals("--duration")) {
+        duration = Long.parseLong(val);
+      } else if (flag.equals("--warmup")) {
+        warmup = Long.parseLong(val);
+      } else if (flag.equals("--instances")) {
+        instances = Integer.parseInt(val);
+      } else if (flag.equals("--nodes")) {
+        nodes = Integer.parseInt(val);
+      } else if (flag.equals("--launch-delay")) {
+        launchDelay = Long.parseLong(val);
+      } else if (flag.equals("--keys")) {
+        numKeys = Integer.parseInt(val);
+      } else if (flag.equals("--value-size")) {
+        valueSize = Integer.parseInt(val);
+      } else if (flag.equals("--max-watches")) {
+        maxWatches = Integer.parseInt(val);
+      } else if (flag.equals("--mix")) {
+        mix = val;
+      } else {
+        usage();
+      }
+    }
+
+    ApplicationMasterHarness harness = new ApplicationMasterHarness(
+        ApplicationMasterHarness.simpleSpec("worker", instances));
+    harness.setNumNodes(nodes);
+    harness.setLaunchDelayMillis(launchDelay);
+    harness.start();
+    ManagedChannel channel = harness.newChannel();
+    try {
+      LoadGenerator gen = new LoadGenerator(channel, "worker");
+      gen.setNumKeys(numKeys);
+      gen.setValueSize(valueSize);
+      gen.setMaxWatches(maxWatches);
+      if (mix != null) {
+        for (Op op : Op.values()) {
+          gen.setWeight(op, 0);
+        }
+        for (String part : mix.split(",")) {
+          String[] kv = part.split("=");
+          String name = kv[0].equals("put") ? "put_key" : kv[0];
+          gen.setWeight(Op.valueOf(name.toUpperCase()), Integer.parseInt(kv[1]));
+        }
+      }
+      if (warmup > 0) {
+        System.out.printf("Warming up for %d s%n", warmup);
+        gen.run(rate, TimeUnit.SECONDS.toMillis(warmup));
+        gen.reset();
+      }
+      System.out.printf("Running %.0f requests/s for %d s against %s%n",
+                        rate, duration, harness.getAddress());
+      gen.run(rate, TimeUnit.SECONDS.toMillis(duration));
+      StringBuilder out = new StringBuilder();
+      gen.report(out);
+      System.out.print(out);
+    } finally {
+      AppMasterGrpc.newBlockingStub(channel).shutdown(
+          Msg.ShutdownRequest.newBuilder()
+              .setFinalStatus(Msg.FinalStatus.Type.SUCCEEDED)
+              .build());
+      channel.shutdown();
+      harness.awaitTermination(30, TimeUnit.SECONDS);
+    }
+    System.exit(0);
+  }
+}
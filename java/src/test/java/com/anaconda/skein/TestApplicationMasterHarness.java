@@ -0,0 +1,810 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.FinalApplicationStatus;
+import org.apache.hadoop.yarn.client.api.AMRMClient.ContainerRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TestApplicationMasterHarness {
+  ApplicationMasterHarness harness;
+  ManagedChannel channel;
+  AppMasterGrpc.AppMasterBlockingStub stub;
+
+  @Before
+  public void setUp() throws Exception {
+    harness = new ApplicationMasterHarness(ApplicationMasterHarness.simpleSpec("worker", 3));
+    harness.start();
+    channel = harness.newChannel();
+    stub = AppMasterGrpc.newBlockingStub(channel);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    stub.shutdown(Msg.ShutdownRequest.newBuilder()
+        .setFinalStatus(Msg.FinalStatus.Type.SUCCEEDED)
+        .build());
+    channel.shutdown();
+    assertEquals(0, harness.awaitTermination(30, TimeUnit.SECONDS));
+    assertEquals(FinalApplicationStatus.SUCCEEDED,
+                 harness.getResourceManager().getFinalStatus());
+  }
+
+  // Restart with a second service of `instances` containers, the same size
+  // as a worker
+  private void restartWithOther(int instances) throws Exception {
+    tearDown();
+    Msg.ApplicationSpec spec = ApplicationMasterHarness.simpleSpec("worker", 3);
+    harness = new ApplicationMasterHarness(spec.toBuilder()
+        .putServices("other", spec.getServicesOrThrow("worker").toBuilder()
+            .setInstances(instances)
+            .build())
+        .build());
+    harness.start();
+    channel = harness.newChannel();
+    stub = AppMasterGrpc.newBlockingStub(channel);
+  }
+
+  private void scale(String service, int count) {
+    stub.scale(Msg.ScaleRequest.newBuilder().setServiceName(service).setCount(count).build());
+  }
+
+  private int numRunning() {
+    return stub.getContainers(Msg.ContainersRequest.newBuilder()
+        .addStates(Msg.Container.State.RUNNING)
+        .build()).getContainersCount();
+  }
+
+  private void awaitRunning(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (numRunning() != count) {
+      assertTrue("Timed out waiting for containers",
+                 System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+    }
+  }
+
+  @Test
+  public void testContainersStart() throws Exception {
+    awaitRunning(3);
+    assertEquals(3, harness.getResourceManager().getNumLive());
+
+    stub.scale(Msg.ScaleRequest.newBuilder().setServiceName("worker").setCount(1).build());
+    awaitRunning(1);
+    assertEquals(1, harness.getResourceManager().getNumLive());
+  }
+
+  @Test
+  public void testOwnedKeysReleased() throws Exception {
+    awaitRunning(3);
+    Msg.ContainerInstance owner = Msg.ContainerInstance.newBuilder()
+        .setServiceName("worker")
+        .setInstance(0)
+        .build();
+    for (int i = 0; i < 100; i++) {
+      stub.putKey(Msg.PutKeyRequest.newBuilder()
+          .setKey(String.format("key-%03d", i))
+          .setValue(ByteString.copyFromUtf8("value"))
+          .setOwner(i % 2 == 0 ? owner : owner.toBuilder().setInstance(1).build())
+          .build());
+    }
+
+    final BlockingQueue<Msg.WatchResponse> responses =
+        new LinkedBlockingQueue<Msg.WatchResponse>();
+    StreamObserver<Msg.WatchRequest> watch = AppMasterGrpc.newStub(channel).watch(
+        new StreamObserver<Msg.WatchResponse>() {
+          public void onNext(Msg.WatchResponse msg) {
+            responses.add(msg);
+          }
+
+          public void onError(Throwable exc) {}
+
+          public void onCompleted() {}
+        });
+    watch.onNext(Msg.WatchRequest.newBuilder()
+        .setCreate(Msg.WatchCreateRequest.newBuilder()
+            .setStart("key-")
+            .setEnd("key.")
+            .setEventType(Msg.WatchCreateRequest.Type.DELETE))
+        .build());
+    assertEquals(Msg.WatchResponse.Type.CREATE,
+                 responses.poll(10, TimeUnit.SECONDS).getType());
+
+    // All the container's keys are deleted in a single event
+    stub.killContainer(owner);
+    Msg.WatchResponse deleted = responses.poll(10, TimeUnit.SECONDS);
+    assertNotNull(deleted);
+    assertEquals(Msg.WatchResponse.Type.DELETE, deleted.getType());
+    assertEquals(50, deleted.getEventCount());
+    assertEquals("key-000", deleted.getEvent(0).getKey());
+    assertEquals(deleted.getEvent(0).getModRevision(),
+                 deleted.getEvent(49).getModRevision());
+    assertEquals(50, stub.getRange(Msg.GetRangeRequest.newBuilder()
+        .setStart("key-")
+        .setEnd("key.")
+        .build()).getCount());
+    watch.onCompleted();
+  }
+
+  private Msg.KeyValue getKey(String key) {
+    Msg.GetRangeResponse resp = stub.getRange(Msg.GetRangeRequest.newBuilder()
+        .setStart(key)
+        .setEnd(key + "\u0000")
+        .build());
+    return resp.getCount() == 0 ? null : resp.getResult(0);
+  }
+
+  private void putLeased(String key, long lease) {
+    stub.putKey(Msg.PutKeyRequest.newBuilder()
+        .setKey(key)
+        .setValue(ByteString.copyFromUtf8("value"))
+        .setLease(lease)
+        .build());
+  }
+
+  @Test
+  public void testLeases() throws Exception {
+    long revoked = stub.leaseGrant(
+        Msg.LeaseGrantRequest.newBuilder().setTtlMs(60000).build()).getId();
+    long expiring = stub.leaseGrant(
+        Msg.LeaseGrantRequest.newBuilder().setTtlMs(300).build()).getId();
+    putLeased("revoked", revoked);
+    putLeased("expiring", expiring);
+    assertEquals(revoked, getKey("revoked").getLease());
+
+    // Keep the short lease alive past its ttl
+    final BlockingQueue<Msg.LeaseKeepAliveResponse> responses =
+        new LinkedBlockingQueue<Msg.LeaseKeepAliveResponse>();
+    StreamObserver<Msg.LeaseKeepAliveRequest> keepAlive =
+        AppMasterGrpc.newStub(channel).leaseKeepAlive(
+            new StreamObserver<Msg.LeaseKeepAliveResponse>() {
+              public void onNext(Msg.LeaseKeepAliveResponse msg) {
+                responses.add(msg);
+              }
+
+              public void onError(Throwable exc) {}
+
+              public void onCompleted() {}
+            });
+    for (int i = 0; i < 5; i++) {
+      keepAlive.onNext(Msg.LeaseKeepAliveRequest.newBuilder().setId(expiring).build());
+      assertEquals(300, responses.poll(10, TimeUnit.SECONDS).getTtlMs());
+      Thread.sleep(100);
+    }
+    assertNotNull(getKey("expiring"));
+
+    // Revoking deletes the lease's keys
+    long revision = stub.leaseRevoke(
+        Msg.LeaseRevokeRequest.newBuilder().setId(revoked).build()).getRevision();
+    assertNull(getKey("revoked"));
+    assertTrue(revision > getKey("expiring").getModRevision());
+
+    // Once no longer kept alive, the lease expires
+    long deadline = System.currentTimeMillis() + 10000;
+    while (getKey("expiring") != null) {
+      assertTrue("Timed out waiting for lease to expire",
+                 System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+    }
+    keepAlive.onNext(Msg.LeaseKeepAliveRequest.newBuilder().setId(expiring).build());
+    assertEquals(0, responses.poll(10, TimeUnit.SECONDS).getTtlMs());
+    keepAlive.onCompleted();
+
+    // Expired leases can't be used
+    try {
+      putLeased("expiring", expiring);
+      fail("Put with an expired lease should fail");
+    } catch (StatusRuntimeException exc) {
+      assertEquals(Status.Code.FAILED_PRECONDITION, exc.getStatus().getCode());
+    }
+  }
+
+  private static Msg.PutKeyRequest putRequest(String key, String value) {
+    return Msg.PutKeyRequest.newBuilder()
+        .setKey(key)
+        .setValue(ByteString.copyFromUtf8(value))
+        .build();
+  }
+
+  @Test
+  public void testPutKeys() throws Exception {
+    final BlockingQueue<Msg.WatchResponse> responses =
+        new LinkedBlockingQueue<Msg.WatchResponse>();
+    StreamObserver<Msg.WatchRequest> watch = AppMasterGrpc.newStub(channel).watch(
+        new StreamObserver<Msg.WatchResponse>() {
+          public void onNext(Msg.WatchResponse msg) {
+            responses.add(msg);
+          }
+
+          public void onError(Throwable exc) {}
+
+          public void onCompleted() {}
+        });
+    watch.onNext(Msg.WatchRequest.newBuilder()
+        .setCreate(Msg.WatchCreateRequest.newBuilder()
+            .setStart("addr/")
+            .setEnd("addr0")
+            .setEventType(Msg.WatchCreateRequest.Type.PUT))
+        .build());
+    assertEquals(Msg.WatchResponse.Type.CREATE,
+                 responses.poll(10, TimeUnit.SECONDS).getType());
+
+    stub.putKey(putRequest("addr/3", "old"));
+    assertEquals(1, responses.poll(10, TimeUnit.SECONDS).getEventCount());
+
+    Msg.PutKeysRequest.Builder req = Msg.PutKeysRequest.newBuilder();
+    for (int i = 0; i < 10; i++) {
+      req.addPutKey(putRequest("addr/" + i, "host-" + i).toBuilder().setReturnPrevious(true));
+    }
+    req.addPutKey(putRequest("other", "x"));
+    Msg.PutKeysResponse resp = stub.putKeys(req.build());
+    assertEquals(11, resp.getResultCount());
+    assertEquals("old", resp.getResult(3).getPrevious().getValue().toStringUtf8());
+    assertEquals(resp.getRevision(), getKey("addr/9").getModRevision());
+    assertEquals(resp.getRevision(), getKey("other").getModRevision());
+
+    // One message for all puts in the watched range
+    Msg.WatchResponse event = responses.poll(10, TimeUnit.SECONDS);
+    assertEquals(10, event.getEventCount());
+    assertEquals("addr/0", event.getEvent(0).getKey());
+    watch.onCompleted();
+
+    // Puts are all validated before any are applied
+    req = Msg.PutKeysRequest.newBuilder()
+        .addPutKey(putRequest("valid", "x"))
+        .addPutKey(putRequest("invalid", "x").toBuilder()
+            .setOwner(Msg.ContainerInstance.newBuilder()
+                .setServiceName("missing")
+                .setInstance(0)));
+    try {
+      stub.putKeys(req.build());
+      fail("PutKeys with an invalid owner should fail");
+    } catch (StatusRuntimeException exc) {
+      assertEquals(Status.Code.INVALID_ARGUMENT, exc.getStatus().getCode());
+    }
+    assertNull(getKey("valid"));
+
+    // Each key may only be put once
+    try {
+      stub.putKeys(Msg.PutKeysRequest.newBuilder()
+          .addPutKey(putRequest("dup", "x"))
+          .addPutKey(putRequest("dup", "y"))
+          .build());
+      fail("PutKeys with duplicate keys should fail");
+    } catch (StatusRuntimeException exc) {
+      assertEquals(Status.Code.INVALID_ARGUMENT, exc.getStatus().getCode());
+    }
+  }
+
+  @Test
+  public void testCompareAndSwap() throws Exception {
+    // Create only if absent
+    Msg.CompareAndSwapRequest create = Msg.CompareAndSwapRequest.newBuilder()
+        .setPutKey(putRequest("leader", "a"))
+        .setModRevision(0)
+        .build();
+    Msg.CompareAndSwapResponse resp = stub.compareAndSwap(create);
+    assertTrue(resp.getSucceeded());
+    assertFalse(resp.hasPrevious());
+    assertEquals(resp.getRevision(), getKey("leader").getModRevision());
+
+    resp = stub.compareAndSwap(create);
+    assertFalse(resp.getSucceeded());
+    assertEquals("a", resp.getPrevious().getValue().toStringUtf8());
+
+    // Swap on value
+    Msg.CompareAndSwapRequest swap = Msg.CompareAndSwapRequest.newBuilder()
+        .setPutKey(putRequest("leader", "b"))
+        .setValue(ByteString.copyFromUtf8("a"))
+        .build();
+    assertTrue(stub.compareAndSwap(swap).getSucceeded());
+    assertEquals("b", getKey("leader").getValue().toStringUtf8());
+    assertFalse(stub.compareAndSwap(swap).getSucceeded());
+
+    // Swap on revision
+    long revision = getKey("leader").getModRevision();
+    resp = stub.compareAndSwap(Msg.CompareAndSwapRequest.newBuilder()
+        .setPutKey(putRequest("leader", "c"))
+        .setModRevision(revision)
+        .build());
+    assertTrue(resp.getSucceeded());
+    assertEquals(revision, resp.getPrevious().getModRevision());
+    assertEquals("c", getKey("leader").getValue().toStringUtf8());
+
+    try {
+      stub.compareAndSwap(Msg.CompareAndSwapRequest.newBuilder()
+          .setPutKey(putRequest("leader", "d"))
+          .build());
+      fail("CompareAndSwap without an expected value should fail");
+    } catch (StatusRuntimeException exc) {
+      assertEquals(Status.Code.INVALID_ARGUMENT, exc.getStatus().getCode());
+    }
+  }
+
+  @Test
+  public void testLoadGenerator() throws Exception {
+    awaitRunning(3);
+
+    LoadGenerator gen = new LoadGenerator(channel, "worker");
+    gen.setNumKeys(10);
+    gen.run(500, 1000);
+
+    int completed = 0;
+    for (LoadGenerator.Op op : LoadGenerator.Op.values()) {
+      LoadGenerator.Latencies lat = gen.getLatencies(op);
+      assertEquals(0, lat.getErrors());
+      completed += lat.getCount() + lat.getSkipped();
+    }
+    assertEquals(500, completed);
+    assertTrue(gen.getLatencies(LoadGenerator.Op.PUT_KEY).getCount() > 0);
+    assertTrue(gen.getNumEvents() > 0);
+
+    StringBuilder report = new StringBuilder();
+    gen.report(report);
+    assertTrue(report.toString().contains("put_key"));
+
+    // Server-side metrics were recorded for the same requests
+    StringWriter metrics = new StringWriter();
+    harness.getMetrics().write(metrics);
+    assertTrue(metrics.toString().contains("method=\"skein.AppMaster/PutKey\""));
+  }
+
+  /** A watch stream on its own channel, whose responses are only read as
+   * requested. While the test doesn't read, the transport's flow control
+   * window fills and events back up in the server's queue. **/
+  private static final class WatchClient
+      implements ClientResponseObserver<Msg.WatchRequest, Msg.WatchResponse> {
+    final BlockingQueue<Msg.WatchResponse> responses =
+        new LinkedBlockingQueue<Msg.WatchResponse>();
+    final CountDownLatch closed = new CountDownLatch(1);
+    volatile Throwable error;
+    private final ManagedChannel channel;
+    private ClientCallStreamObserver<Msg.WatchRequest> call;
+
+    WatchClient(ManagedChannel channel) {
+      this.channel = channel;
+      AppMasterGrpc.newStub(channel).watch(this);
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<Msg.WatchRequest> call) {
+      this.call = call;
+      call.disableAutoInboundFlowControl();
+    }
+
+    @Override
+    public void onNext(Msg.WatchResponse msg) {
+      responses.add(msg);
+    }
+
+    @Override
+    public void onError(Throwable exc) {
+      error = exc;
+      closed.countDown();
+    }
+
+    @Override
+    public void onCompleted() {
+      closed.countDown();
+    }
+
+    // Create a watch, returning its id
+    int create(Msg.WatchCreateRequest.Builder create) throws InterruptedException {
+      call.onNext(Msg.WatchRequest.newBuilder().setCreate(create).build());
+      Msg.WatchResponse msg = next();
+      assertEquals(Msg.WatchResponse.Type.CREATE, msg.getType());
+      return msg.getWatchId();
+    }
+
+    // Read the next response
+    Msg.WatchResponse next() throws InterruptedException {
+      call.request(1);
+      Msg.WatchResponse msg = responses.poll(10, TimeUnit.SECONDS);
+      assertNotNull("Timed out waiting for a watch response", msg);
+      return msg;
+    }
+
+    // Read everything until the stream closes
+    void drain() throws InterruptedException {
+      call.request(Integer.MAX_VALUE);
+      assertTrue(closed.await(10, TimeUnit.SECONDS));
+    }
+
+    void close() {
+      call.onCompleted();
+      channel.shutdownNow();
+    }
+  }
+
+  private static Msg.WatchCreateRequest.Builder watchRange(String start, String end) {
+    return Msg.WatchCreateRequest.newBuilder()
+        .setStart(start)
+        .setEnd(end)
+        .setEventType(Msg.WatchCreateRequest.Type.PUT);
+  }
+
+  // Values large enough to fill the transport's flow control window quickly
+  private static Msg.PutKeyRequest bigPut(String key, int i) {
+    char[] padding = new char[16 * 1024];
+    Arrays.fill(padding, 'x');
+    return putRequest(key, String.format("%05d", i) + new String(padding));
+  }
+
+  private static int bigPutIndex(Msg.KeyValue kv) {
+    return Integer.parseInt(kv.getValue().substring(0, 5).toStringUtf8());
+  }
+
+  @Test
+  public void testWatchOverflowPolicies() throws Exception {
+    WatchClient coalesce = new WatchClient(harness.newChannel());
+    WatchClient resync = new WatchClient(harness.newChannel());
+    WatchClient cancel = new WatchClient(harness.newChannel());
+    coalesce.create(watchRange("big/", "big0")
+        .setOverflowPolicy(Msg.WatchCreateRequest.OverflowPolicy.COALESCE));
+    int resyncId = resync.create(watchRange("big/", "big0")
+        .setOverflowPolicy(Msg.WatchCreateRequest.OverflowPolicy.RESYNC));
+    cancel.create(watchRange("big/", "big0")
+        .setOverflowPolicy(Msg.WatchCreateRequest.OverflowPolicy.CANCEL));
+
+    // None of the clients read, but writers are never blocked by them
+    int numPuts = 1500;
+    int numKeys = 10;
+    for (int i = 0; i < numPuts; i++) {
+      stub.putKey(bigPut("big/" + (i % numKeys), i));
+    }
+
+    // Coalesced events keep the latest value for every key
+    Map<String, Integer> latest = new HashMap<String, Integer>();
+    int numEvents = 0;
+    while (latest.size() < numKeys || !latest.containsValue(numPuts - 1)
+           || !latest.containsValue(numPuts - numKeys)) {
+      Msg.WatchResponse msg = coalesce.next();
+      assertEquals(Msg.WatchResponse.Type.PUT, msg.getType());
+      for (Msg.KeyValue kv : msg.getEventList()) {
+        latest.put(kv.getKey(), bigPutIndex(kv));
+        numEvents++;
+      }
+    }
+    assertTrue(numEvents < numPuts);
+    for (int i = 0; i < numKeys; i++) {
+      assertEquals(numPuts - numKeys + i, (int) latest.get("big/" + i));
+    }
+
+    // Resynced watches are canceled with the revision to resume after
+    long lastRevision = 0;
+    Msg.WatchResponse msg = resync.next();
+    while (msg.getType() == Msg.WatchResponse.Type.PUT) {
+      for (Msg.KeyValue kv : msg.getEventList()) {
+        lastRevision = kv.getModRevision();
+      }
+      msg = resync.next();
+    }
+    assertEquals(Msg.WatchResponse.Type.CANCEL, msg.getType());
+    assertEquals(resyncId, msg.getWatchId());
+    long resume = msg.getCompactRevision();
+    assertTrue(resume > 0 && resume >= lastRevision);
+    // Resume on a single key, keeping the replayed message small
+    resync.create(watchRange("big/0", "big/1").setStartRevision(resume + 1));
+    long replayed = resync.next().getEvent(0).getModRevision();
+    assertTrue(replayed > resume && replayed <= resume + numKeys);
+
+    // Canceled streams fail as a whole
+    cancel.drain();
+    assertEquals(Status.Code.RESOURCE_EXHAUSTED, Status.fromThrowable(cancel.error).getCode());
+
+    coalesce.close();
+    resync.close();
+    cancel.close();
+  }
+
+  @Test
+  public void testWatchBatching() throws Exception {
+    WatchClient client = new WatchClient(harness.newChannel());
+    int windowId = client.create(watchRange("window/", "window0")
+        .setBatchWindowMs(1000));
+    int maxId = client.create(watchRange("max/", "max0")
+        .setBatchWindowMs(60000)
+        .setBatchMaxEvents(3));
+    int latestId = client.create(watchRange("latest/", "latest0")
+        .setBatchWindowMs(1000)
+        .setBatchLatestOnly(true));
+
+    // Events within the window are sent together, in order
+    for (int i = 0; i < 5; i++) {
+      stub.putKey(putRequest("window/" + i, "value"));
+    }
+    Msg.WatchResponse msg = client.next();
+    assertEquals(windowId, msg.getWatchId());
+    assertEquals(5, msg.getEventCount());
+    for (int i = 0; i < 5; i++) {
+      assertEquals("window/" + i, msg.getEvent(i).getKey());
+    }
+
+    // Full batches are sent without waiting for the window
+    for (int i = 0; i < 7; i++) {
+      stub.putKey(putRequest("max/" + i, "value"));
+    }
+    for (int i = 0; i < 2; i++) {
+      msg = client.next();
+      assertEquals(maxId, msg.getWatchId());
+      assertEquals(3, msg.getEventCount());
+      assertEquals("max/" + (3 * i), msg.getEvent(0).getKey());
+    }
+
+    // Only the latest event per key is kept
+    stub.putKey(putRequest("latest/a", "1"));
+    stub.putKey(putRequest("latest/b", "2"));
+    stub.putKey(putRequest("latest/a", "3"));
+    msg = client.next();
+    assertEquals(latestId, msg.getWatchId());
+    assertEquals(2, msg.getEventCount());
+    assertEquals("latest/a", msg.getEvent(0).getKey());
+    assertEquals("3", msg.getEvent(0).getValue().toStringUtf8());
+    assertEquals("latest/b", msg.getEvent(1).getKey());
+
+    // The last partial batch is still waiting on its window
+    client.call.request(1);
+    assertNull(client.responses.poll(200, TimeUnit.MILLISECONDS));
+
+    client.close();
+  }
+
+  @Test
+  public void testGetRangeStream() throws Exception {
+    for (int i = 0; i < 25; i++) {
+      stub.putKey(putRequest(String.format("range/%02d", i), "value"));
+    }
+
+    // Chunked by limit, from a snapshot taken when the call started
+    Iterator<Msg.GetRangeResponse> chunks = stub.getRangeStream(
+        Msg.GetRangeRequest.newBuilder()
+            .setStart("range/")
+            .setEnd("range0")
+            .setLimit(10)
+            .build());
+    Msg.GetRangeResponse first = chunks.next();
+    stub.putKey(putRequest("range/99", "value"));
+    int[] sizes = {10, 10, 5};
+    int index = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      Msg.GetRangeResponse chunk = i == 0 ? first : chunks.next();
+      assertEquals(25, chunk.getCount());
+      assertEquals(first.getRevision(), chunk.getRevision());
+      assertEquals(sizes[i], chunk.getResultCount());
+      for (Msg.KeyValue kv : chunk.getResultList()) {
+        assertEquals(String.format("range/%02d", index++), kv.getKey());
+      }
+    }
+    assertFalse(chunks.hasNext());
+
+    // Chunked by size, keeping each response well below the message limit
+    char[] padding = new char[400 * 1024];
+    Arrays.fill(padding, 'x');
+    for (int i = 0; i < 5; i++) {
+      stub.putKey(putRequest("huge/" + i, new String(padding)));
+    }
+    chunks = stub.getRangeStream(
+        Msg.GetRangeRequest.newBuilder()
+            .setStart("huge/")
+            .setEnd("huge0")
+            .build());
+    assertEquals(3, chunks.next().getResultCount());
+    assertEquals(2, chunks.next().getResultCount());
+    assertFalse(chunks.hasNext());
+  }
+
+  @Test
+  public void testHeartbeatBackoff() throws Exception {
+    awaitRunning(3);
+    ApplicationMasterHarness.FakeResourceManager rm = harness.getResourceManager();
+
+    // Quiet heartbeats back off from the minimum interval
+    Thread.sleep(1500);
+    int before = rm.getNumHeartbeats();
+    Thread.sleep(1500);
+    assertTrue(rm.getNumHeartbeats() - before <= 2);
+
+    // New requests are sent without waiting out the idle interval
+    long start = System.currentTimeMillis();
+    stub.scale(Msg.ScaleRequest.newBuilder().setServiceName("worker").setCount(4).build());
+    awaitRunning(4);
+    assertTrue(System.currentTimeMillis() - start < 2000);
+  }
+
+  @Test
+  public void testScaleRequestsDelta() throws Exception {
+    awaitRunning(3);
+    ApplicationMasterHarness.FakeResourceManager rm = harness.getResourceManager();
+    rm.setGranting(false);
+
+    // Scaling up requests only the new containers
+    stub.scale(Msg.ScaleRequest.newBuilder().setServiceName("worker").setCount(53).build());
+    assertEquals(50, rm.getNumPending());
+
+    // Scaling down cancels outstanding requests before stopping containers
+    stub.scale(Msg.ScaleRequest.newBuilder().setServiceName("worker").setCount(13).build());
+    assertEquals(10, rm.getNumPending());
+    assertEquals(3, numRunning());
+
+    rm.setGranting(true);
+    awaitRunning(13);
+    assertEquals(0, rm.getNumPending());
+  }
+
+  @Test
+  public void testServicePriorities() throws Exception {
+    restartWithOther(1);
+    awaitRunning(4);
+    ApplicationMasterHarness.FakeResourceManager rm = harness.getResourceManager();
+    rm.setGranting(false);
+
+    // Every request for a service shares its priority, however many batches
+    scale("worker", 5);
+    scale("other", 3);
+    scale("worker", 7);
+    Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    for (ContainerRequest req : rm.getPendingRequests()) {
+      int priority = req.getPriority().getPriority();
+      counts.put(priority, counts.containsKey(priority) ? counts.get(priority) + 1 : 1);
+    }
+    assertEquals(2, counts.size());
+    assertTrue(counts.containsValue(4));
+    assertTrue(counts.containsValue(2));
+
+    rm.setGranting(true);
+    awaitRunning(10);
+  }
+
+  private Msg.Container getContainer(String service, int instance) {
+    for (Msg.Container container : stub.getContainers(Msg.ContainersRequest.newBuilder()
+        .addServices(service)
+        .build()).getContainersList()) {
+      if (container.getInstance() == instance) {
+        return container;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testReleasedNodePreferred() throws Exception {
+    restartWithOther(1);
+    awaitRunning(4);
+    ApplicationMasterHarness.FakeResourceManager rm = harness.getResourceManager();
+    rm.setGranting(false);
+    scale("other", 2);
+    assertEquals(1, rm.getPendingRequests().size());
+    assertNull(rm.getPendingRequests().get(0).getNodes());
+
+    // Killing a worker moves the pending request onto its node
+    String address = getContainer("worker", 0).getYarnNodeHttpAddress();
+    String host = address.substring(0, address.indexOf(':'));
+    stub.killContainer(Msg.ContainerInstance.newBuilder()
+        .setServiceName("worker")
+        .setInstance(0)
+        .build());
+    assertEquals(1, rm.getPendingRequests().size());
+    ContainerRequest req = rm.getPendingRequests().get(0);
+    assertEquals(Arrays.asList(host), req.getNodes());
+    assertTrue(req.getRelaxLocality());
+
+    rm.setGranting(true);
+    awaitRunning(4);
+    assertEquals(address, getContainer("other", 1).getYarnNodeHttpAddress());
+  }
+
+  @Test
+  public void testLaunchContexts() throws Exception {
+    awaitRunning(3);
+    List<ContainerLaunchContext> contexts = harness.getLaunchContexts();
+    assertEquals(3, contexts.size());
+
+    // Contexts share everything but their environment
+    Set<String> ids = new HashSet<String>();
+    for (ContainerLaunchContext ctx : contexts) {
+      assertEquals(Arrays.asList("sleep infinity"), ctx.getCommands());
+      assertEquals(contexts.get(0).getTokens(), ctx.getTokens());
+      assertEquals(contexts.get(0).getLocalResources(), ctx.getLocalResources());
+      ids.add(ctx.getEnvironment().get("SKEIN_CONTAINER_ID"));
+    }
+    assertEquals(new HashSet<String>(Arrays.asList("worker_0", "worker_1", "worker_2")), ids);
+  }
+
+  private Set<String> yarnContainerIds() {
+    Set<String> ids = new HashSet<String>();
+    for (Msg.Container container : stub.getContainers(Msg.ContainersRequest.newBuilder()
+        .addStates(Msg.Container.State.RUNNING)
+        .build()).getContainersList()) {
+      ids.add(container.getYarnContainerId());
+    }
+    return ids;
+  }
+
+  private void awaitHeartbeats(int count) throws InterruptedException {
+    ApplicationMasterHarness.FakeResourceManager rm = harness.getResourceManager();
+    int target = rm.getNumHeartbeats() + count;
+    long deadline = System.currentTimeMillis() + 10000;
+    while (rm.getNumHeartbeats() < target) {
+      assertTrue("Timed out waiting for heartbeats",
+                 System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+    }
+  }
+
+  @Test
+  public void testRestartAdoptsContainers() throws Exception {
+    tearDown();
+    harness = new ApplicationMasterHarness(ApplicationMasterHarness.simpleSpec("worker", 3)
+        .toBuilder()
+        .setMaxAttempts(2)
+        .build());
+    harness.start();
+    channel = harness.newChannel();
+    stub = AppMasterGrpc.newBlockingStub(channel);
+    awaitRunning(3);
+    Set<String> ids = yarnContainerIds();
+    // Service state is persisted once per allocation cycle
+    awaitHeartbeats(2);
+
+    // Fail the first attempt, leaving its containers running
+    stub.shutdown(Msg.ShutdownRequest.newBuilder()
+        .setFinalStatus(Msg.FinalStatus.Type.FAILED)
+        .build());
+    channel.shutdown();
+    assertEquals(0, harness.awaitTermination(30, TimeUnit.SECONDS));
+    assertNull(harness.getResourceManager().getFinalStatus());
+    ApplicationMasterHarness first = harness;
+
+    // The next attempt adopts them, rather than requesting new ones
+    harness = first.nextAttempt();
+    harness.start();
+    channel = harness.newChannel();
+    stub = AppMasterGrpc.newBlockingStub(channel);
+    awaitRunning(3);
+    awaitHeartbeats(2);
+    assertEquals(ids, yarnContainerIds());
+    assertEquals(0, harness.getResourceManager().getNumPending());
+    assertTrue(harness.getLaunchContexts().isEmpty());
+
+    // Adopted containers find the new address through the file named in
+    // their environment
+    Map<String, String> env = first.getLaunchContexts().get(0).getEnvironment();
+    Path addressFile = Paths.get(new URI(env.get("SKEIN_APPMASTER_ADDRESS_FILE")));
+    assertEquals(harness.getAddress(),
+                 new String(Files.readAllBytes(addressFile), StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,77 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestConditions {
+  KeyValueStore kv;
+
+  private static Msg.ContainerInstance owner(String service, int instance) {
+    return Msg.ContainerInstance.newBuilder()
+        .setServiceName(service)
+        .setInstance(instance)
+        .build();
+  }
+
+  private static Msg.Condition valueCond(String key, Msg.Condition.Operator op, String value) {
+    return Msg.Condition.newBuilder()
+        .setKey(key)
+        .setOperator(op)
+        .setField(Msg.Condition.Field.VALUE)
+        .setValue(ByteString.copyFromUtf8(value))
+        .build();
+  }
+
+  private static Msg.Condition ownerCond(String key, Msg.Condition.Operator op,
+                                         Msg.ContainerInstance owner) {
+    Msg.Condition.Builder builder = Msg.Condition.newBuilder()
+        .setKey(key)
+        .setOperator(op)
+        .setField(Msg.Condition.Field.OWNER);
+    if (owner != null) {
+      builder.setOwner(owner);
+    }
+    return builder.build();
+  }
+
+  private boolean evaluate(Msg.Condition cond) {
+    return Conditions.evaluate(kv.live(), cond);
+  }
+
+  @Before
+  public void setUp() {
+    kv = new KeyValueStore();
+    kv.put(Msg.KeyValue.newBuilder()
+        .setKey("a")
+        .setValue(ByteString.copyFromUtf8("b"))
+        .setOwner(owner("service", 1)));
+  }
+
+  @Test
+  public void testValue() {
+    assertTrue(evaluate(valueCond("a", Msg.Condition.Operator.EQUAL, "b")));
+    assertTrue(evaluate(valueCond("a", Msg.Condition.Operator.NOT_EQUAL, "c")));
+    assertTrue(evaluate(valueCond("a", Msg.Condition.Operator.LESS, "c")));
+    assertTrue(evaluate(valueCond("a", Msg.Condition.Operator.GREATER_EQUAL, "b")));
+    assertFalse(evaluate(valueCond("a", Msg.Condition.Operator.GREATER, "b")));
+
+    // Missing keys only compare unequal to a value
+    assertTrue(evaluate(valueCond("missing", Msg.Condition.Operator.NOT_EQUAL, "b")));
+    assertFalse(evaluate(valueCond("missing", Msg.Condition.Operator.EQUAL, "b")));
+    assertFalse(evaluate(valueCond("missing", Msg.Condition.Operator.LESS, "b")));
+  }
+
+  @Test
+  public void testOwner() {
+    assertTrue(evaluate(ownerCond("a", Msg.Condition.Operator.EQUAL, owner("service", 1))));
+    assertTrue(evaluate(ownerCond("a", Msg.Condition.Operator.LESS, owner("service", 2))));
+    assertTrue(evaluate(ownerCond("a", Msg.Condition.Operator.GREATER, owner("other", 2))));
+    assertTrue(evaluate(ownerCond("a", Msg.Condition.Operator.NOT_EQUAL, null)));
+    assertFalse(evaluate(ownerCond("a", Msg.Condition.Operator.LESS_EQUAL, null)));
+  }
+}
@@ -0,0 +1,205 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.api.records.SerializedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class TestContainerLauncher {
+  private static final ApplicationAttemptId ATTEMPT_ID =
+      ApplicationAttemptId.newInstance(ApplicationId.newInstance(0, 1), 1);
+
+  FakeLauncher launcher;
+  long nextId = 1;
+
+  // Records each RPC, blocking them until `release` is counted down
+  private static final class FakeLauncher extends ContainerLauncher {
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<List<ContainerId>> batches = new ArrayList<List<ContainerId>>();
+    final Map<NodeId, Integer> inFlight = new HashMap<NodeId, Integer>();
+    final Map<ContainerId, SerializedException> failures =
+        new HashMap<ContainerId, SerializedException>();
+    int maxInFlight = 0;
+    volatile boolean throwing = false;
+
+    FakeLauncher() {
+      super(new Configuration(), 4, new Metrics());
+    }
+
+    @Override
+    Map<ContainerId, SerializedException> startContainers(
+        NodeId node, List<Container> containers, List<ContainerLaunchContext> contexts)
+        throws IOException {
+      List<ContainerId> ids = new ArrayList<ContainerId>();
+      for (Container container : containers) {
+        ids.add(container.getId());
+      }
+      synchronized (this) {
+        batches.add(ids);
+        int count = inFlight.containsKey(node) ? inFlight.get(node) + 1 : 1;
+        inFlight.put(node, count);
+        maxInFlight = Math.max(maxInFlight, count);
+      }
+      try {
+        release.await();
+      } catch (InterruptedException exc) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+        inFlight.put(node, inFlight.get(node) - 1);
+      }
+      if (throwing) {
+        throw new IOException("Failed to connect");
+      }
+      return failures;
+    }
+
+    synchronized int numBatches() {
+      return batches.size();
+    }
+  }
+
+  // Records the error of each failed start
+  private static final class Failures implements ContainerLauncher.Callback {
+    final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<Throwable>();
+
+    @Override
+    public void onStartFailed(Throwable exc) {
+      errors.add(exc);
+    }
+  }
+
+  @Before
+  public void setUp() {
+    launcher = new FakeLauncher();
+  }
+
+  @After
+  public void tearDown() {
+    launcher.stop();
+  }
+
+  private Container newContainer(String host) {
+    ContainerId id = ContainerId.newContainerId(ATTEMPT_ID, nextId++);
+    return Container.newInstance(
+        id, NodeId.newInstance(host, 8041), host + ":8042",
+        Resource.newInstance(128, 1), Priority.newInstance(0), null);
+  }
+
+  private void awaitBatches(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (launcher.numBatches() < count) {
+      assertTrue("Timed out waiting for launches",
+                 System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private void awaitCompleted(long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (launcher.getNumStarted() + launcher.getNumFailed() < count) {
+      assertTrue("Timed out waiting for launches",
+                 System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private List<Integer> batchSizes() {
+    List<Integer> out = new ArrayList<Integer>();
+    synchronized (launcher) {
+      for (List<ContainerId> batch : launcher.batches) {
+        out.add(batch.size());
+      }
+    }
+    return out;
+  }
+
+  @Test
+  public void testBatchedPerNode() throws Exception {
+    Failures callback = new Failures();
+    launcher.launch(newContainer("node-0"), null, callback);
+    launcher.launch(newContainer("node-1"), null, callback);
+    awaitBatches(2);
+
+    // Launches queued behind a running RPC are sent together in the next
+    for (int i = 0; i < 250; i++) {
+      launcher.launch(newContainer("node-0"), null, callback);
+    }
+    launcher.release.countDown();
+    awaitCompleted(252);
+
+    assertEquals(252, launcher.getNumStarted());
+    assertEquals(0, launcher.getNumFailed());
+    assertEquals(1, launcher.maxInFlight);
+    List<Integer> sizes = batchSizes();
+    Collections.sort(sizes);
+    assertEquals(Arrays.asList(1, 1, 50, 100, 100), sizes);
+    assertTrue(callback.errors.isEmpty());
+  }
+
+  @Test
+  public void testStartFailures() throws Exception {
+    Failures callback = new Failures();
+    Container failing = newContainer("node-0");
+    launcher.failures.put(failing.getId(),
+        SerializedException.newInstance(new IOException("Container failed")));
+    launcher.release.countDown();
+
+    // Only the containers the RPC reports are failed
+    launcher.launch(failing, null, callback);
+    launcher.launch(newContainer("node-0"), null, callback);
+    awaitCompleted(2);
+    assertEquals(1, launcher.getNumStarted());
+    assertEquals(1, launcher.getNumFailed());
+    assertEquals("Container failed",
+                 callback.errors.poll(10, TimeUnit.SECONDS).getMessage());
+
+    // An RPC error fails its whole batch
+    launcher.throwing = true;
+    launcher.launch(newContainer("node-1"), null, callback);
+    awaitCompleted(3);
+    assertEquals(2, launcher.getNumFailed());
+    assertEquals("Failed to connect",
+                 callback.errors.poll(10, TimeUnit.SECONDS).getMessage());
+  }
+
+  @Test
+  public void testLaunchAfterStop() throws Exception {
+    Failures callback = new Failures();
+    launcher.stop();
+
+    // Late launches fail, rather than being queued forever
+    for (int i = 0; i < 2; i++) {
+      launcher.launch(newContainer("node-0"), null, callback);
+      assertTrue(callback.errors.poll(10, TimeUnit.SECONDS)
+                 instanceof RejectedExecutionException);
+    }
+    assertEquals(2, launcher.getNumFailed());
+    assertEquals(0, launcher.numBatches());
+  }
+}
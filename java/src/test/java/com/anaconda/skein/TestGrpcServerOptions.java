@@ -0,0 +1,50 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class TestGrpcServerOptions {
+  @Test
+  public void testExecutorThreads() {
+    assertEquals(10, new GrpcServerOptions(0, 0, false, 0).getExecutorThreads());
+    assertEquals(2, new GrpcServerOptions(0, 1, false, 0).getExecutorThreads());
+    assertEquals(16, new GrpcServerOptions(0, 16, false, 0).getExecutorThreads());
+  }
+
+  @Test
+  public void testExecutorGrows() throws InterruptedException {
+    int threads = 6;
+    ThreadPoolExecutor executor =
+        new GrpcServerOptions(0, threads, false, 0).newExecutor();
+    final CountDownLatch started = new CountDownLatch(threads);
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      // Block every thread, each task only starts if the pool grows to run it
+      for (int i = 0; i < threads; i++) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            started.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException exc) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+      }
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      assertEquals(threads, executor.getPoolSize());
+      assertTrue(executor.allowsCoreThreadTimeOut());
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+}
@@ -9,6 +9,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 @RunWith(Suite.class)
 @Suite.SuiteClasses({TestIntervalTree.TestQuery.class,
                      TestIntervalTree.TestRemove.class,
@@ -99,6 +103,27 @@ public class TestIntervalTree {
       assertEquals(2, it.query("f").size());
       assertEquals(1, it.query("g").size());
     }
+
+    @Test
+    public void testForEachOverlapping() {
+      final Set<Integer> seen = new HashSet<Integer>();
+      IntervalTree.Visitor<Integer> visitor = new IntervalTree.Visitor<Integer>() {
+        public void visit(IntervalTree.Item<Integer> item) {
+          assertTrue(seen.add(item.getValue()));
+        }
+      };
+
+      it.forEachOverlapping("b", visitor);
+      assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2, 3, 4, 5)), seen);
+
+      seen.clear();
+      it.forEachOverlapping("gg", "h", visitor);
+      assertEquals(new HashSet<Integer>(Arrays.asList(7, 8)), seen);
+
+      seen.clear();
+      new IntervalTree<Integer>().forEachOverlapping("a", visitor);
+      assertTrue(seen.isEmpty());
+    }
   }
 
   public static class TestRemove {
@@ -151,6 +176,34 @@ public class TestIntervalTree {
       assertEquals(1, it.query(null, "b").size());
       assertFalse(it.remove(ac2));
     }
+
+    @Test
+    public void testRemoveManyFromNode() {
+      IntervalTree<Integer> it = new IntervalTree<Integer>();
+
+      int[] ids = new int[5];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = it.add("a", "c", i);
+      }
+      assertEquals(5, it.query("b").size());
+
+      // Remove from the middle, front, and back of the node
+      assertTrue(it.remove(ids[2]));
+      assertTrue(it.remove(ids[0]));
+      assertTrue(it.remove(ids[4]));
+      assertFalse(it.remove(ids[2]));
+
+      Set<Integer> values = new HashSet<Integer>();
+      for (IntervalTree.Item<Integer> item : it.query("b")) {
+        values.add(item.getValue());
+      }
+      assertEquals(new HashSet<Integer>(Arrays.asList(1, 3)), values);
+
+      assertTrue(it.remove(ids[3]));
+      assertTrue(it.remove(ids[1]));
+      assertEquals(0, it.size());
+      assertEquals(0, it.query("b").size());
+    }
   }
 
   public static class TestMisc {
@@ -163,5 +216,18 @@ public class TestIntervalTree {
       assertEquals(IntervalTree.nullStringCompare("b", "a"), 1);
       assertEquals(IntervalTree.nullStringCompare("a", "b"), -1);
     }
+
+    @Test
+    public void testIntervalContains() {
+      IntervalTree.Interval bounded = new IntervalTree.Interval("b", "d");
+      assertFalse(bounded.contains("a"));
+      assertTrue(bounded.contains("b"));
+      assertTrue(bounded.contains("c"));
+      assertFalse(bounded.contains("d"));
+
+      IntervalTree.Interval open = new IntervalTree.Interval("", "");
+      assertTrue(open.contains(""));
+      assertTrue(open.contains("z"));
+    }
   }
 }
@@ -0,0 +1,292 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestKeyValueLog {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  FileSystem fs;
+  Path dir;
+
+  private static Msg.KeyValue.Builder keyValue(String key, String value) {
+    return Msg.KeyValue.newBuilder()
+        .setKey(key)
+        .setValue(ByteString.copyFromUtf8(value));
+  }
+
+  /** A local filesystem whose log writes can be paused, or made to fail. **/
+  private static class FaultyFileSystem extends FilterFileSystem {
+    // Flushes block while paused
+    volatile CountDownLatch paused = new CountDownLatch(0);
+    // Counted down on each flush
+    volatile CountDownLatch flushing = new CountDownLatch(0);
+    // Flushes fail while set
+    volatile boolean failing = false;
+
+    FaultyFileSystem(FileSystem fs) {
+      super(fs);
+    }
+
+    @Override
+    public FSDataOutputStream create(Path f, FsPermission permission,
+        boolean overwrite, int bufferSize, short replication, long blockSize,
+        Progressable progress) throws IOException {
+      final FSDataOutputStream out = super.create(
+          f, permission, overwrite, bufferSize, replication, blockSize, progress);
+      return new FSDataOutputStream(new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          flushing.countDown();
+          try {
+            paused.await();
+          } catch (InterruptedException exc) {
+            throw new IOException(exc);
+          }
+          if (failing) {
+            throw new IOException("Injected failure");
+          }
+          out.hflush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          out.close();
+        }
+      }, null);
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    fs = FileSystem.getLocal(new Configuration());
+    dir = new Path(folder.getRoot().getAbsolutePath(), "kv");
+  }
+
+  private KeyValueLog startAttempt(KeyValueStore store, int snapshotInterval)
+      throws IOException {
+    KeyValueLog log = new KeyValueLog(fs, dir, store, snapshotInterval);
+    log.recover();
+    log.start();
+    return log;
+  }
+
+  @Test
+  public void testRecover() throws IOException {
+    KeyValueStore first = new KeyValueStore();
+    KeyValueLog log = startAttempt(first, 1000);
+    first.put(keyValue("a", "1"));
+    first.put(keyValue("b", "2"));
+    first.put(keyValue("c", "3"));
+    first.put(keyValue("a", "4"));
+    first.delete("b");
+    log.sync(first.getRevision());
+    log.close();
+
+    KeyValueStore second = new KeyValueStore();
+    log = startAttempt(second, 1000);
+    assertEquals(5, second.getRevision());
+    assertEquals(2, second.size());
+    assertEquals("4", second.get("a").getValue().toStringUtf8());
+    assertEquals(2, second.get("a").getVersion());
+    assertNull(second.get("b"));
+    // History from previous attempts isn't available
+    assertNull(second.eventsSince(5));
+
+    // Changes in later attempts are recovered as well
+    second.deleteRange(second.selectRange("c", ""));
+    second.put(keyValue("d", "5"));
+    log.close();
+
+    KeyValueStore third = new KeyValueStore();
+    startAttempt(third, 1000).close();
+    assertEquals(7, third.getRevision());
+    assertEquals("ad", keys(third));
+  }
+
+  @Test
+  public void testRecoverFromSnapshots() throws IOException {
+    KeyValueStore first = new KeyValueStore();
+    KeyValueLog log = startAttempt(first, 2);
+    for (int i = 0; i < 50; i++) {
+      first.put(keyValue("key" + (i % 10), "value" + i));
+      if (i % 7 == 0) {
+        log.sync(first.getRevision());
+      }
+    }
+    first.delete("key0");
+    log.close();
+
+    KeyValueStore second = new KeyValueStore();
+    startAttempt(second, 2).close();
+    assertEquals(51, second.getRevision());
+    assertEquals(9, second.size());
+    assertEquals("value49", second.get("key9").getValue().toStringUtf8());
+    assertEquals(5, second.get("key9").getVersion());
+  }
+
+  @Test
+  public void testMultiKeyRevisionDurable() throws Exception {
+    FaultyFileSystem pausable = new FaultyFileSystem(fs);
+    final KeyValueStore first = new KeyValueStore();
+    final KeyValueLog log = new KeyValueLog(pausable, dir, first, 1000);
+    log.recover();
+    log.start();
+
+    // Hold the writer in the middle of flushing the first revision, so the
+    // next revision is queued while a batch is in flight
+    pausable.paused = new CountDownLatch(1);
+    pausable.flushing = new CountDownLatch(1);
+    first.put(keyValue("a", "1"));
+    assertTrue(pausable.flushing.await(10, TimeUnit.SECONDS));
+    first.putAll(Arrays.asList(keyValue("x", "1"), keyValue("y", "1"), keyValue("z", "1")));
+
+    final CountDownLatch synced = new CountDownLatch(1);
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          log.sync(first.getRevision());
+          synced.countDown();
+        } catch (IOException exc) {
+          // Leave the latch up, failing the test
+        }
+      }
+    };
+    waiter.start();
+    assertFalse(synced.await(100, TimeUnit.MILLISECONDS));
+
+    pausable.paused.countDown();
+    assertTrue(synced.await(10, TimeUnit.SECONDS));
+    log.close();
+
+    KeyValueStore second = new KeyValueStore();
+    startAttempt(second, 1000).close();
+    assertEquals(2, second.getRevision());
+    assertEquals("axyz", keys(second));
+  }
+
+  @Test
+  public void testPartialRevisionSkipped() throws IOException {
+    KeyValueStore first = new KeyValueStore();
+    KeyValueLog log = startAttempt(first, 1000);
+    first.put(keyValue("a", "1"));
+    log.close();
+    // The next attempt writes only the multi-key revision to its segment
+    KeyValueStore second = new KeyValueStore();
+    log = startAttempt(second, 1000);
+    second.putAll(Arrays.asList(keyValue("x", "1"), keyValue("y", "1"), keyValue("z", "1")));
+    log.close();
+    File segment = new File(dir.toUri().getPath(), "log.1");
+    byte[] written = Files.readAllBytes(segment.toPath());
+
+    // Cut the segment within the first event, between events, and within or
+    // before the commit record
+    int[] cuts = {1, written.length / 2, written.length - 1, written.length - 9};
+    for (int cut : cuts) {
+      Files.write(segment.toPath(), Arrays.copyOf(written, cut));
+      new File(dir.toUri().getPath(), ".log.1.crc").delete();
+
+      KeyValueStore third = new KeyValueStore();
+      KeyValueLog recovered = new KeyValueLog(fs, dir, third, 1000);
+      recovered.recover();
+      recovered.close();
+      assertEquals(1, third.getRevision());
+      assertEquals("a", keys(third));
+    }
+  }
+
+  @Test
+  public void testSyncReportsFailure() throws IOException {
+    FaultyFileSystem faulty = new FaultyFileSystem(fs);
+    KeyValueStore store = new KeyValueStore();
+    KeyValueLog log = new KeyValueLog(faulty, dir, store, 1000);
+    log.recover();
+    log.start();
+
+    store.put(keyValue("a", "1"));
+    log.sync(store.getRevision());
+    long durable = store.getRevision();
+
+    faulty.failing = true;
+    store.put(keyValue("b", "2"));
+    try {
+      log.sync(store.getRevision());
+      fail("sync should report the failed write");
+    } catch (IOException exc) {
+      assertEquals("Injected failure", exc.getCause().getMessage());
+    }
+    // Later changes fail as well, but those already written don't
+    store.put(keyValue("c", "3"));
+    try {
+      log.sync(store.getRevision());
+      fail("sync should report the failed write");
+    } catch (IOException exc) {
+      // expected
+    }
+    log.sync(durable);
+    log.close();
+  }
+
+  @Test
+  public void testSyncInterrupted() throws IOException {
+    KeyValueStore store = new KeyValueStore();
+    KeyValueLog log = new KeyValueLog(fs, dir, store, 1000);
+    log.recover();
+    log.start();
+
+    // A revision that's never written, so sync blocks until interrupted
+    Thread.currentThread().interrupt();
+    try {
+      log.sync(store.getRevision() + 1);
+      fail("sync should fail when interrupted");
+    } catch (InterruptedIOException exc) {
+      assertTrue(Thread.interrupted());
+    }
+    log.close();
+  }
+
+  private static String keys(KeyValueStore store) {
+    StringBuilder out = new StringBuilder();
+    for (Msg.KeyValue kv : store.live().range("", "")) {
+      out.append(kv.getKey());
+    }
+    return out.toString();
+  }
+}
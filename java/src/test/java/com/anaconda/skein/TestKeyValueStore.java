@@ -0,0 +1,581 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestKeyValueStore {
+  KeyValueStore kv;
+
+  private static Msg.KeyValue.Builder keyValue(String key, String value) {
+    return Msg.KeyValue.newBuilder()
+        .setKey(key)
+        .setValue(ByteString.copyFromUtf8(value));
+  }
+
+  @Before
+  public void setUp() {
+    kv = new KeyValueStore();
+    for (String key : Arrays.asList("a", "b", "bb", "c", "d")) {
+      kv.put(keyValue(key, key));
+    }
+  }
+
+  @Test
+  public void testIsSingleKey() {
+    assertTrue(KeyValueStore.isSingleKey("a", "a\u0000"));
+    assertTrue(KeyValueStore.isSingleKey("", "\u0000"));
+    assertFalse(KeyValueStore.isSingleKey("a", "b"));
+    assertFalse(KeyValueStore.isSingleKey("a", "b\u0000"));
+    assertFalse(KeyValueStore.isSingleKey("a", ""));
+    assertFalse(KeyValueStore.isSingleKey("", ""));
+  }
+
+  @Test
+  public void testSelectRange() {
+    assertEquals(5, kv.selectRange("", "").size());
+    assertEquals(5, kv.selectRange("\u0000", "").size());
+    assertEquals(4, kv.selectRange("b", "").size());
+    assertEquals(2, kv.selectRange("", "bb").size());
+    assertEquals(2, kv.selectRange("b", "c").size());
+    assertEquals(1, kv.selectRange("b", "b\u0000").size());
+    assertEquals(0, kv.selectRange("b", "b").size());
+    assertNull(kv.selectRange("c", "b"));
+  }
+
+  @Test
+  public void testDeleteThroughView() {
+    kv.selectRange("b", "c").clear();
+    assertEquals(3, kv.size());
+    assertNull(kv.get("b"));
+    assertNull(kv.get("bb"));
+  }
+
+  private boolean blocksWriter(KeyValueStore.Locked held, final String key)
+      throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread writer = new Thread() {
+      public void run() {
+        KeyValueStore.Locked locked = kv.lockKey(key);
+        try {
+          kv.put(keyValue(key, "new"));
+        } finally {
+          locked.release();
+        }
+        done.countDown();
+      }
+    };
+    writer.start();
+    boolean blocked = !done.await(100, TimeUnit.MILLISECONDS);
+    held.release();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    writer.join();
+    return blocked;
+  }
+
+  private static Msg.ContainerInstance owner(String service, int instance) {
+    return Msg.ContainerInstance.newBuilder()
+        .setServiceName(service)
+        .setInstance(instance)
+        .build();
+  }
+
+  @Test
+  public void testOwnersInterned() {
+    Msg.KeyValue x = kv.put(keyValue("x", "x").setOwner(owner("service", 1)));
+    Msg.KeyValue y = kv.put(keyValue("y", "y").setOwner(owner("service", 1)));
+    assertSame(x.getOwner(), y.getOwner());
+    assertEquals(owner("service", 1), kv.get("y").getOwner());
+
+    // Restored values share owners with new ones
+    KeyValueStore restored = new KeyValueStore();
+    restored.restore(Arrays.asList(
+        keyValue("x", "x").setOwner(owner("service", 1)).build(),
+        keyValue("y", "y").setOwner(owner("service", 1)).build()), 2);
+    assertSame(restored.get("x").getOwner(), restored.get("y").getOwner());
+    Msg.KeyValue z = restored.put(keyValue("z", "z").setOwner(owner("service", 1)));
+    assertSame(restored.get("x").getOwner(), z.getOwner());
+  }
+
+  @Test
+  public void testPutAll() {
+    long rev = kv.getRevision();
+    List<Msg.KeyValue> stored = kv.putAll(Arrays.asList(
+        keyValue("a", "a2"), keyValue("new", "new")));
+    assertEquals(rev + 1, kv.getRevision());
+    assertEquals("a", stored.get(0).getKey());
+    assertEquals(rev + 1, stored.get(0).getModRevision());
+    assertEquals(2, stored.get(0).getVersion());
+    assertEquals(rev + 1, stored.get(1).getCreateRevision());
+    assertSame(stored.get(1), kv.get("new"));
+    assertEquals(2, kv.eventsSince(rev + 1).size());
+  }
+
+  @Test
+  public void testListenerRevisions() {
+    final List<List<KeyValueStore.Event>> appended = new ArrayList<List<KeyValueStore.Event>>();
+    kv.addListener(new KeyValueStore.Listener() {
+      public void append(List<KeyValueStore.Event> events) {
+        appended.add(events);
+      }
+    });
+    kv.put(keyValue("x", "x").setOwner(owner("service", 1)));
+    kv.put(keyValue("y", "y").setOwner(owner("service", 1)));
+    kv.deleteRange(kv.selectRange("a", "c"));
+    kv.deleteOwned(owner("service", 1));
+    kv.putAll(Arrays.asList(keyValue("p", "p"), keyValue("q", "q")));
+    kv.delete("p");
+
+    // Each revision is published whole, in a single call
+    int[] sizes = {1, 1, 3, 2, 2, 1};
+    assertEquals(sizes.length, appended.size());
+    for (int i = 0; i < sizes.length; i++) {
+      List<KeyValueStore.Event> events = appended.get(i);
+      assertEquals(sizes[i], events.size());
+      for (KeyValueStore.Event event : events) {
+        assertEquals(events.get(0).getRevision(), event.getRevision());
+      }
+    }
+  }
+
+  @Test
+  public void testListenerOrderConcurrent() throws InterruptedException {
+    final List<Long> revisions = new ArrayList<Long>();
+    kv.addListener(new KeyValueStore.Listener() {
+      public void append(List<KeyValueStore.Event> events) {
+        // Calls are never concurrent, so no locking is needed here
+        revisions.add(events.get(0).getRevision());
+      }
+    });
+    final long start = kv.getRevision();
+    final int perThread = 500;
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final String key = "key" + (i % 2);
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < perThread; j++) {
+            kv.put(keyValue(key, String.valueOf(j)));
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // Every revision is published exactly once, in order
+    long end = start + threads.length * perThread;
+    assertEquals(end, kv.getPublishedRevision());
+    assertEquals(threads.length * perThread, revisions.size());
+    for (int i = 0; i < revisions.size(); i++) {
+      assertEquals(start + i + 1, (long) revisions.get(i));
+    }
+  }
+
+  @Test
+  public void testPausePublishing() {
+    final List<Long> revisions = new ArrayList<Long>();
+    kv.addListener(new KeyValueStore.Listener() {
+      public void append(List<KeyValueStore.Event> events) {
+        revisions.add(events.get(0).getRevision());
+      }
+    });
+    long start = kv.getRevision();
+
+    // Writers commit while paused, but aren't published until released
+    KeyValueStore.Locked paused = kv.pausePublishing();
+    kv.put(keyValue("x", "x"));
+    kv.delete("a");
+    assertEquals(start + 2, kv.getRevision());
+    assertEquals(start, kv.getPublishedRevision());
+    assertTrue(revisions.isEmpty());
+    paused.release();
+
+    assertEquals(start + 2, kv.getPublishedRevision());
+    assertEquals(Arrays.asList(start + 1, start + 2), revisions);
+  }
+
+  @Test
+  public void testDeleteOwned() {
+    Msg.ContainerInstance a = owner("service", 1);
+    Msg.ContainerInstance b = owner("service", 2);
+    kv.put(keyValue("a1", "x").setOwner(a));
+    kv.put(keyValue("a2", "x").setOwner(a));
+    kv.put(keyValue("a3", "x").setOwner(a));
+    kv.put(keyValue("b1", "x").setOwner(b));
+    kv.put(keyValue("none", "x"));
+    // Ownership follows the latest value
+    kv.put(keyValue("a2", "y").setOwner(b));
+    kv.put(keyValue("a3", "y"));
+    kv.delete("b1");
+    kv.put(keyValue("c1", "x").setOwner(a));
+    kv.deleteRange(kv.selectRange("c", "d"));
+    assertEquals(1, kv.numOwnedKeys(a));
+    assertEquals(1, kv.numOwnedKeys(b));
+
+    long rev = kv.getRevision();
+    NavigableMap<String, Msg.KeyValue> deleted = kv.deleteOwned(a);
+    assertEquals(Arrays.asList("a1"), new ArrayList<String>(deleted.keySet()));
+    assertEquals("x", deleted.get("a1").getValue().toStringUtf8());
+    assertEquals(rev + 1, kv.getRevision());
+    assertNull(kv.get("a1"));
+    assertEquals(0, kv.numOwnedKeys(a));
+
+    // All keys are deleted in a single revision
+    kv.put(keyValue("b3", "x").setOwner(b));
+    kv.put(keyValue("b4", "x").setOwner(b));
+    deleted = kv.deleteOwned(b);
+    assertEquals(Arrays.asList("a2", "b3", "b4"),
+                 new ArrayList<String>(deleted.keySet()));
+    List<KeyValueStore.Event> events = kv.eventsSince(kv.getRevision());
+    assertEquals(3, events.size());
+    for (KeyValueStore.Event event : events) {
+      assertEquals(Msg.WatchResponse.Type.DELETE, event.getType());
+    }
+    assertNull(kv.get("b3"));
+    assertEquals("y", kv.get("a3").getValue().toStringUtf8());
+    assertEquals("x", kv.get("none").getValue().toStringUtf8());
+
+    // Nothing left to delete
+    rev = kv.getRevision();
+    assertTrue(kv.deleteOwned(b).isEmpty());
+    assertEquals(rev, kv.getRevision());
+  }
+
+  @Test
+  public void testDeleteKeys() {
+    long rev = kv.getRevision();
+    kv.put(keyValue("x", "x").setOwner(owner("service", 1)));
+    NavigableMap<String, Msg.KeyValue> deleted =
+        kv.deleteKeys(new HashSet<String>(Arrays.asList("a", "x", "missing")));
+    assertEquals("ax", keys(new ArrayList<Msg.KeyValue>(deleted.values())));
+    // All deleted at a single revision, and removed from the owner index
+    assertEquals(rev + 2, kv.getRevision());
+    assertEquals(2, kv.eventsSince(rev + 2).size());
+    assertEquals(0, kv.numOwnedKeys(owner("service", 1)));
+    assertNull(kv.get("a"));
+
+    // Deleting only missing keys doesn't change the revision
+    assertTrue(kv.deleteKeys(Collections.singleton("missing")).isEmpty());
+    assertEquals(rev + 2, kv.getRevision());
+  }
+
+  @Test
+  public void testDeleteLeased() {
+    Msg.ContainerInstance a = owner("service", 1);
+    kv.put(keyValue("x", "x").setLease(1));
+    kv.put(keyValue("y", "y").setLease(1).setOwner(a));
+    kv.put(keyValue("z", "z").setLease(2));
+    // Moved to another lease
+    kv.put(keyValue("z", "z").setLease(1));
+    assertEquals(3, kv.numLeasedKeys(1));
+    assertEquals(0, kv.numLeasedKeys(2));
+
+    NavigableMap<String, Msg.KeyValue> deleted = kv.deleteLeased(1);
+    assertEquals(Arrays.asList("x", "y", "z"), new ArrayList<String>(deleted.keySet()));
+    assertEquals(0, kv.numLeasedKeys(1));
+    // Keys held by both an owner and a lease are released from both
+    assertEquals(0, kv.numOwnedKeys(a));
+    assertTrue(kv.deleteOwned(a).isEmpty());
+  }
+
+  @Test
+  public void testLocking() throws InterruptedException {
+    // Writers to the same key are serialized
+    assertTrue(blocksWriter(kv.lockKey("a"), "a"));
+    // Range readers and exclusive locks block all writers
+    assertTrue(blocksWriter(kv.lockRange(), "a"));
+    assertTrue(blocksWriter(kv.lockAll(), "a"));
+
+    // Range readers don't block each other
+    KeyValueStore.Locked first = kv.lockRange();
+    KeyValueStore.Locked second = kv.lockRange();
+    second.release();
+    first.release();
+
+    // Writers with duplicate keys only lock each stripe once
+    KeyValueStore.Locked locked = kv.lockKeys(Arrays.asList("a", "b", "a"));
+    locked.release();
+    assertFalse(blocksWriter(kv.lockKey("a"), "unrelated-key"));
+  }
+
+  @Test
+  public void testRevisions() {
+    assertEquals(5, kv.getRevision());
+
+    Msg.KeyValue first = kv.get("a");
+    assertEquals(1, first.getCreateRevision());
+    assertEquals(1, first.getModRevision());
+    assertEquals(1, first.getVersion());
+
+    Msg.KeyValue second = kv.put(keyValue("a", "new"));
+    assertEquals(6, kv.getRevision());
+    assertEquals(1, second.getCreateRevision());
+    assertEquals(6, second.getModRevision());
+    assertEquals(2, second.getVersion());
+
+    Msg.KeyValue deleted = kv.delete("a");
+    assertEquals("a", deleted.getKey());
+    assertEquals(7, deleted.getModRevision());
+    assertNull(kv.delete("a"));
+    assertEquals(7, kv.getRevision());
+
+    // Recreated keys start over
+    Msg.KeyValue third = kv.put(keyValue("a", "again"));
+    assertEquals(8, third.getCreateRevision());
+    assertEquals(1, third.getVersion());
+
+    // Range deletes share a single revision
+    assertEquals(9, kv.deleteRange(kv.selectRange("b", "c")));
+    assertEquals(3, kv.size());
+  }
+
+  @Test
+  public void testEventsSince() {
+    kv.delete("a");
+    kv.deleteRange(kv.selectRange("b", "c"));
+
+    List<KeyValueStore.Event> events = kv.eventsSince(5);
+    assertEquals(4, events.size());
+    assertEquals(Msg.WatchResponse.Type.PUT, events.get(0).getType());
+    assertEquals("d", events.get(0).getKeyValue().getKey());
+    assertEquals(Msg.WatchResponse.Type.DELETE, events.get(1).getType());
+    assertEquals(6, events.get(1).getRevision());
+    assertEquals(7, events.get(2).getRevision());
+    assertEquals(7, events.get(3).getRevision());
+
+    assertEquals(8, kv.eventsSince(1).size());
+    assertEquals(0, kv.eventsSince(8).size());
+  }
+
+  @Test
+  public void testHistoryCompaction() {
+    KeyValueStore small = new KeyValueStore(3);
+    for (int i = 0; i < 5; i++) {
+      small.put(keyValue("key", "value" + i));
+    }
+    assertEquals(2, small.getCompactRevision());
+    assertNull(small.eventsSince(1));
+    assertNull(small.eventsSince(2));
+    assertEquals(3, small.eventsSince(3).size());
+    assertEquals(1, small.eventsSince(5).size());
+
+    // A partially evicted range delete can't be replayed
+    for (String key : Arrays.asList("a", "b", "c")) {
+      small.put(keyValue(key, key));
+    }
+    assertEquals(9, small.deleteRange(small.selectRange("", "")));
+    assertEquals(9, small.getCompactRevision());
+    assertNull(small.eventsSince(9));
+    assertEquals(0, small.eventsSince(10).size());
+  }
+
+  private static String keys(List<Msg.KeyValue> values) {
+    StringBuilder out = new StringBuilder();
+    for (Msg.KeyValue value : values) {
+      out.append(value.getKey());
+    }
+    return out.toString();
+  }
+
+  @Test
+  public void testSnapshot() {
+    KeyValueStore.Snapshot snapshot = kv.snapshot();
+    assertEquals(5, snapshot.getRevision());
+
+    kv.put(keyValue("a", "new"));
+    kv.put(keyValue("a", "newer"));
+    kv.put(keyValue("aa", "new"));
+    kv.delete("b");
+    kv.deleteRange(kv.selectRange("c", ""));
+
+    // The snapshot sees the store as of when it was taken
+    assertEquals("a", snapshot.get("a").getValue().toStringUtf8());
+    assertNull(snapshot.get("aa"));
+    assertEquals("b", snapshot.get("b").getValue().toStringUtf8());
+    assertEquals("abbbcd", keys(snapshot.range("", "")));
+    assertEquals("bbbc", keys(snapshot.range("b", "d")));
+    assertEquals("a", snapshot.range("a", "b").get(0).getValue().toStringUtf8());
+
+    // The live store sees all changes
+    assertEquals("aaabb", keys(kv.live().range("", "")));
+
+    // Snapshots taken later see later changes
+    KeyValueStore.Snapshot later = kv.snapshot();
+    kv.put(keyValue("b", "again"));
+    assertNull(later.get("b"));
+    assertEquals("aaabb", keys(later.range("", "")));
+    assertEquals("abbbcd", keys(snapshot.range("", "")));
+    later.release();
+    snapshot.release();
+
+    // Without open snapshots, the undo log isn't needed
+    KeyValueStore.Snapshot last = kv.snapshot();
+    assertEquals("aaabbb", keys(last.range("", "")));
+    last.release();
+  }
+
+  @Test
+  public void testSnapshotUndoPruned() {
+    KeyValueStore.Snapshot first = kv.snapshot();
+    kv.put(keyValue("a", "1"));
+    kv.put(keyValue("b", "1"));
+    KeyValueStore.Snapshot second = kv.snapshot();
+    kv.put(keyValue("a", "2"));
+    kv.delete("c");
+    KeyValueStore.Snapshot third = kv.snapshot();
+    kv.put(keyValue("a", "3"));
+    assertEquals(5, kv.undoSize());
+
+    // Releasing a newer snapshot keeps entries the oldest one needs
+    second.release();
+    assertEquals(5, kv.undoSize());
+    assertEquals("a", first.get("a").getValue().toStringUtf8());
+
+    // Releasing the oldest drops entries from before the next oldest
+    first.release();
+    assertEquals(1, kv.undoSize());
+    assertEquals("2", third.get("a").getValue().toStringUtf8());
+    assertNull(third.get("c"));
+    assertEquals("abbbd", keys(third.range("", "")));
+
+    // Overlapping snapshots keep the log bounded by the changes since the
+    // oldest, rather than since the first snapshot was taken
+    KeyValueStore.Snapshot older = third;
+    for (int i = 0; i < 100; i++) {
+      KeyValueStore.Snapshot newer = kv.snapshot();
+      kv.put(keyValue("a", "value" + i));
+      older.release();
+      older = newer;
+      assertEquals(1, kv.undoSize());
+    }
+    assertEquals("value98", older.get("a").getValue().toStringUtf8());
+    older.release();
+    assertEquals(0, kv.undoSize());
+  }
+
+  @Test
+  public void testSnapshotReleaseTwice() {
+    kv.put(keyValue("a", "1"));
+    KeyValueStore.Snapshot first = kv.snapshot();
+    KeyValueStore.Snapshot second = kv.snapshot();
+    kv.put(keyValue("a", "2"));
+
+    // Releasing one snapshot twice doesn't release another at the same revision
+    first.release();
+    first.release();
+    assertEquals(1, kv.undoSize());
+    assertEquals("1", second.get("a").getValue().toStringUtf8());
+
+    second.release();
+    second.release();
+    assertEquals(0, kv.undoSize());
+  }
+
+  @Test
+  public void testAtomically() {
+    final List<List<KeyValueStore.Event>> appended = new ArrayList<List<KeyValueStore.Event>>();
+    kv.addListener(new KeyValueStore.Listener() {
+      public void append(List<KeyValueStore.Event> events) {
+        appended.add(events);
+      }
+    });
+    final long rev = kv.getRevision();
+    KeyValueStore.Snapshot snapshot = kv.snapshot();
+    kv.atomically(new Runnable() {
+      public void run() {
+        kv.put(keyValue("a", "1"));
+        kv.put(keyValue("a", "2"));
+        kv.putAll(Arrays.asList(keyValue("aa", "aa"), keyValue("ab", "ab")));
+        kv.delete("b");
+        kv.deleteRange(kv.selectRange("c", ""));
+        // Later writes see earlier ones, but nothing is published yet
+        assertEquals(3, kv.get("a").getVersion());
+        assertTrue(appended.isEmpty());
+      }
+    });
+
+    // All writes share one revision, published in a single call
+    assertEquals(rev + 1, kv.getRevision());
+    assertEquals(rev + 1, kv.get("a").getModRevision());
+    assertEquals(rev + 1, kv.get("ab").getCreateRevision());
+    assertEquals(1, appended.size());
+    assertEquals(7, appended.get(0).size());
+    for (KeyValueStore.Event event : appended.get(0)) {
+      assertEquals(rev + 1, event.getRevision());
+    }
+
+    // Snapshots from before see none of the writes
+    assertEquals("a", snapshot.get("a").getValue().toStringUtf8());
+    assertEquals("abbbcd", keys(snapshot.range("", "")));
+    snapshot.release();
+    assertEquals("2", kv.get("a").getValue().toStringUtf8());
+    assertEquals("aaaabbb", keys(kv.live().range("", "")));
+
+    // A group without writes doesn't start a revision
+    kv.atomically(new Runnable() {
+      public void run() {
+        kv.get("a");
+      }
+    });
+    assertEquals(rev + 1, kv.getRevision());
+    assertEquals(1, appended.size());
+  }
+
+  @Test
+  public void testAtomicallyConcurrentSnapshots() throws InterruptedException {
+    kv.putAll(Arrays.asList(keyValue("a", "init"), keyValue("b", "init")));
+    final int count = 500;
+    Thread writer = new Thread() {
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          final String value = String.valueOf(i);
+          kv.atomically(new Runnable() {
+            public void run() {
+              kv.put(keyValue("a", value));
+              kv.put(keyValue("b", value));
+            }
+          });
+        }
+      }
+    };
+    writer.start();
+
+    // Snapshots taken while transactions run see each one whole, or not at all
+    long deadline = System.currentTimeMillis() + 10000;
+    boolean done = false;
+    while (!done) {
+      done = !writer.isAlive();
+      KeyValueStore.Snapshot snapshot = kv.snapshot();
+      try {
+        Msg.KeyValue a = snapshot.get("a");
+        Msg.KeyValue b = snapshot.get("b");
+        assertEquals(a.getValue(), b.getValue());
+        assertEquals(a.getModRevision(), b.getModRevision());
+      } finally {
+        snapshot.release();
+      }
+      assertTrue("Timed out waiting for writer", System.currentTimeMillis() < deadline);
+    }
+    writer.join();
+    assertEquals(String.valueOf(count - 1), kv.get("b").getValue().toStringUtf8());
+  }
+}
@@ -0,0 +1,87 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class TestMetrics {
+  Metrics metrics;
+
+  @Before
+  public void setUp() {
+    metrics = new Metrics();
+  }
+
+  private String written() throws IOException {
+    StringWriter out = new StringWriter();
+    metrics.write(out);
+    return out.toString();
+  }
+
+  @Test
+  public void testCounter() throws IOException {
+    Metrics.Counter counter = metrics.counter("requests_total", "Requests", "method", "get");
+    counter.inc();
+    counter.inc(2);
+    assertSame(counter, metrics.counter("requests_total", "Requests", "method", "get"));
+    metrics.counter("requests_total", "Requests", "method", "put").inc();
+    metrics.counter("requests_total", "Requests", "method", "a\"b\\c\n").inc();
+
+    assertEquals("# HELP requests_total Requests\n"
+                 + "# TYPE requests_total counter\n"
+                 + "requests_total{method=\"a\\\"b\\\\c\\n\"} 1\n"
+                 + "requests_total{method=\"get\"} 3\n"
+                 + "requests_total{method=\"put\"} 1\n",
+                 written());
+  }
+
+  @Test
+  public void testGauge() throws IOException {
+    metrics.gauge("queue_size", "Queue size", new Metrics.Gauge() {
+      public double getValue() {
+        return 1.5;
+      }
+    });
+    assertEquals("# HELP queue_size Queue size\n"
+                 + "# TYPE queue_size gauge\n"
+                 + "queue_size 1.5\n",
+                 written());
+  }
+
+  @Test
+  public void testHistogram() throws IOException {
+    Metrics.Histogram depth = metrics.countHistogram("depth", "Depth");
+    for (long value : new long[] {0, 1, 2, 3, 4, 5, 100000}) {
+      depth.observe(value);
+    }
+    String out = written();
+    assertTrue(out.contains("depth_bucket{le=\"1\"} 2\n"));
+    assertTrue(out.contains("depth_bucket{le=\"2\"} 3\n"));
+    assertTrue(out.contains("depth_bucket{le=\"4\"} 5\n"));
+    assertTrue(out.contains("depth_bucket{le=\"8\"} 6\n"));
+    assertTrue(out.contains("depth_bucket{le=\"32768\"} 6\n"));
+    assertTrue(out.contains("depth_bucket{le=\"+Inf\"} 7\n"));
+    assertTrue(out.contains("depth_sum 100015\n"));
+    assertTrue(out.contains("depth_count 7\n"));
+
+    Metrics.Histogram latency = metrics.durationHistogram("latency_seconds", "Latency",
+                                                          "op", "put");
+    latency.observe(150000);
+    out = written();
+    assertTrue(out.contains("latency_seconds_bucket{op=\"put\",le=\"1.0E-4\"} 0\n"));
+    assertTrue(out.contains("latency_seconds_bucket{op=\"put\",le=\"2.0E-4\"} 1\n"));
+    assertTrue(out.contains("latency_seconds_sum{op=\"put\"} 1.5E-4\n"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTypeMismatch() {
+    metrics.counter("metric", "Help");
+    metrics.countHistogram("metric", "Help");
+  }
+}
@@ -0,0 +1,136 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class TestTimingWheel {
+  // Advance one tick at a time, returning the tick each value expired on
+  private static Map<Integer, Long> run(TimingWheel<Integer> wheel, long until) {
+    Map<Integer, Long> out = new HashMap<Integer, Long>();
+    List<Integer> expired = new ArrayList<Integer>();
+    for (long tick = wheel.getTick() + 1; tick <= until; tick++) {
+      wheel.advance(tick, expired);
+      for (int value : expired) {
+        out.put(value, tick);
+      }
+      expired.clear();
+    }
+    return out;
+  }
+
+  @Test
+  public void testExpire() {
+    TimingWheel<Integer> wheel = new TimingWheel<Integer>(100);
+    wheel.schedule(1, 101);
+    wheel.schedule(2, 163);
+    wheel.schedule(3, 164);
+    wheel.schedule(4, 100 + 64 * 64 + 5);
+    wheel.schedule(5, 50);  // Already passed
+    assertEquals(5, wheel.size());
+
+    Map<Integer, Long> expired = run(wheel, 100 + 64 * 64 + 5);
+    assertEquals((Long) 101L, expired.get(1));
+    assertEquals((Long) 163L, expired.get(2));
+    assertEquals((Long) 164L, expired.get(3));
+    assertEquals((Long) (100L + 64 * 64 + 5), expired.get(4));
+    assertEquals((Long) 101L, expired.get(5));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testAdvanceMany() {
+    TimingWheel<Integer> wheel = new TimingWheel<Integer>(0);
+    wheel.schedule(1, 10);
+    wheel.schedule(2, 5000);
+    wheel.schedule(3, 3);
+    List<Integer> expired = new ArrayList<Integer>();
+    wheel.advance(4000, expired);
+    assertEquals(Arrays.asList(3, 1), expired);
+    assertEquals(4000, wheel.getTick());
+    wheel.advance(5000, expired);
+    assertEquals(Arrays.asList(3, 1, 2), expired);
+  }
+
+  @Test
+  public void testCancelAndReschedule() {
+    TimingWheel<Integer> wheel = new TimingWheel<Integer>(0);
+    TimingWheel.Timeout<Integer> a = wheel.schedule(1, 10);
+    TimingWheel.Timeout<Integer> b = wheel.schedule(2, 10);
+    assertTrue(wheel.cancel(a));
+    assertFalse(wheel.cancel(a));
+    assertFalse(a.isScheduled());
+    wheel.reschedule(b, 20000);
+    assertEquals(1, wheel.size());
+
+    Map<Integer, Long> expired = run(wheel, 30000);
+    assertFalse(expired.containsKey(1));
+    assertEquals((Long) 20000L, expired.get(2));
+
+    // Expired timeouts can be scheduled again
+    wheel.reschedule(b, 30010);
+    assertEquals((Long) 30010L, run(wheel, 30100).get(2));
+  }
+
+  @Test
+  public void testBeyondRange() {
+    long far = (1L << 24) + 1000;
+    TimingWheel<Integer> wheel = new TimingWheel<Integer>(0);
+    wheel.schedule(1, far);
+    List<Integer> expired = new ArrayList<Integer>();
+    wheel.advance(far - 1, expired);
+    assertTrue(expired.isEmpty());
+    wheel.advance(far, expired);
+    assertEquals(Collections.singletonList(1), expired);
+  }
+
+  @Test
+  public void testRandomized() {
+    Random rand = new Random(42);
+    long start = 1234567;
+    TimingWheel<Integer> wheel = new TimingWheel<Integer>(start);
+    long[] deadlines = new long[2000];
+    for (int i = 0; i < deadlines.length; i++) {
+      // Spread deadlines over the first three levels
+      int bits = 1 + rand.nextInt(17);
+      deadlines[i] = start + 1 + rand.nextInt(1 << bits);
+      wheel.schedule(i, deadlines[i]);
+    }
+    Map<Integer, Long> expired = run(wheel, start + (1 << 17) + 1);
+    assertEquals(deadlines.length, expired.size());
+    for (int i = 0; i < deadlines.length; i++) {
+      assertEquals((Long) deadlines[i], expired.get(i));
+    }
+  }
+
+  @Test
+  public void testLeases() {
+    Leases leases = new Leases(10, 1000);
+    long a = leases.grant(100, 1000);
+    long b = leases.grant(100, 1000);
+    assertTrue(a != b);
+    assertEquals(2, leases.size());
+
+    // Never expire early
+    assertTrue(leases.expire(1099).isEmpty());
+    assertEquals(100, leases.keepAlive(a, 1099));
+    assertEquals(Collections.singletonList(b), leases.expire(1100));
+    assertFalse(leases.contains(b));
+    assertEquals(0, leases.keepAlive(b, 1100));
+
+    assertTrue(leases.revoke(a));
+    assertFalse(leases.revoke(a));
+    assertTrue(leases.expire(2000).isEmpty());
+    assertEquals(0, leases.size());
+  }
+}
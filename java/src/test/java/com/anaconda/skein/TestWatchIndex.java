@@ -0,0 +1,117 @@
+package com.anaconda.skein;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class TestWatchIndex {
+  WatchIndex<String> index;
+  Set<String> seen;
+  IntervalTree.Visitor<String> visitor;
+
+  @Before
+  public void setUp() {
+    index = new WatchIndex<String>();
+    seen = new HashSet<String>();
+    visitor = new IntervalTree.Visitor<String>() {
+      public void visit(IntervalTree.Item<String> item) {
+        assertTrue(seen.add(item.getValue()));
+      }
+    };
+  }
+
+  private Set<String> overlapping(String key) {
+    seen.clear();
+    index.forEachOverlapping(key, visitor);
+    return new HashSet<String>(seen);
+  }
+
+  private Set<String> overlapping(String begin, String end) {
+    seen.clear();
+    index.forEachOverlapping(begin, end, visitor);
+    return new HashSet<String>(seen);
+  }
+
+  private static Set<String> setOf(String... values) {
+    return new HashSet<String>(Arrays.asList(values));
+  }
+
+  @Test
+  public void testIsPrefixRange() {
+    assertTrue(PrefixTrie.isPrefixRange("a", "b"));
+    assertTrue(PrefixTrie.isPrefixRange("foo/", "foo0"));
+    assertFalse(PrefixTrie.isPrefixRange("", ""));
+    assertFalse(PrefixTrie.isPrefixRange("a", ""));
+    assertFalse(PrefixTrie.isPrefixRange("a", null));
+    assertFalse(PrefixTrie.isPrefixRange("a", "c"));
+    assertFalse(PrefixTrie.isPrefixRange("ab", "bb"));
+    assertFalse(PrefixTrie.isPrefixRange("a", "a\u0000"));
+  }
+
+  @Test
+  public void testForEachOverlappingKey() {
+    index.add("foo", "fop", "prefix-foo");
+    index.add("foo/", "foo0", "prefix-foo/");
+    index.add("foo/bar", "foo/bas", "prefix-foo/bar");
+    index.add("fa", "fz", "range-fa-fz");
+    index.add("", "", "all");
+    assertEquals(5, index.size());
+
+    assertEquals(setOf("prefix-foo", "prefix-foo/", "prefix-foo/bar",
+                       "range-fa-fz", "all"),
+                 overlapping("foo/bar/baz"));
+    assertEquals(setOf("prefix-foo", "range-fa-fz", "all"),
+                 overlapping("foo"));
+    assertEquals(setOf("range-fa-fz", "all"), overlapping("fo"));
+    assertEquals(setOf("all"), overlapping("zzz"));
+  }
+
+  @Test
+  public void testForEachOverlappingRange() {
+    index.add("a", "b", "prefix-a");
+    index.add("b/", "b0", "prefix-b/");
+    index.add("b/c", "b/d", "prefix-b/c");
+    index.add("d", "e", "prefix-d");
+    index.add("bz", "c", "range-bz-c");
+
+    assertEquals(setOf("prefix-a"), overlapping("", "a"));
+    assertEquals(setOf("prefix-a"), overlapping("aaa", "ab"));
+    assertEquals(setOf("prefix-b/", "prefix-b/c"), overlapping("b/c/x", "b/c/y"));
+    assertEquals(setOf("prefix-b/"), overlapping("b/a", "b/b"));
+    assertEquals(setOf("prefix-b/", "prefix-b/c", "range-bz-c"),
+                 overlapping("b", "bz"));
+    assertEquals(setOf("range-bz-c", "prefix-d"), overlapping("b1", null));
+    assertEquals(5, overlapping("", "").size());
+  }
+
+  @Test
+  public void testRemove() {
+    int foo1 = index.add("foo", "fop", "foo-1");
+    int foo2 = index.add("foo", "fop", "foo-2");
+    int foobar = index.add("foobar", "foobas", "foobar");
+    int range = index.add("a", "z", "range");
+    assertEquals(4, index.size());
+
+    assertTrue(index.remove(foo1));
+    assertFalse(index.remove(foo1));
+    assertEquals(setOf("foo-2", "foobar", "range"), overlapping("foobar"));
+
+    assertTrue(index.remove(foobar));
+    assertTrue(index.remove(range));
+    assertEquals(setOf("foo-2"), overlapping("foobar"));
+
+    assertTrue(index.remove(foo2));
+    assertEquals(0, index.size());
+    assertEquals(setOf(), overlapping("foobar"));
+
+    // Ids aren't reused
+    assertFalse(foo1 == index.add("foo", "fop", "foo-3"));
+  }
+}
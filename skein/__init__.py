@@ -4,7 +4,8 @@ from .exceptions import (SkeinError, ConnectionError, DriverNotRunningError,
                          ApplicationNotRunningError, DriverError,
                          ApplicationError)
 from .model import (Security, ApplicationSpec, Service, File, Resources, DelegationTokenProvider,
-                    FileType, FileVisibility, ACLs, Master, LogLevel)
+                    FileType, FileVisibility, ACLs, Master, LogLevel,
+                    GarbageCollector)
 
 from ._version import get_versions
 __version__ = get_versions()['version']
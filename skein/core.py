@@ -48,6 +48,11 @@ class Properties(Mapping):
     appmaster_address : str or None
         The address of the current application's appmaster. None if not running
         in a container.
+    appmaster_address_file : str or None
+        The path of a file in the application directory holding the current
+        address of the application's appmaster. Unlike ``appmaster_address``,
+        this is kept up to date if the appmaster is restarted while the
+        container keeps running. None if not running in a container.
     config_dir : str
         The path to the configuration directory.
     container_id : str or None
@@ -67,6 +72,7 @@ class Properties(Mapping):
                                     os.path.join(os.path.expanduser('~'), '.skein'))
         application_id = os.environ.get('SKEIN_APPLICATION_ID')
         appmaster_address = os.environ.get('SKEIN_APPMASTER_ADDRESS')
+        appmaster_address_file = os.environ.get('SKEIN_APPMASTER_ADDRESS_FILE')
         container_id = os.environ.get('SKEIN_CONTAINER_ID')
         yarn_container_id = os.environ.get('CONTAINER_ID')
         try:
@@ -91,6 +97,7 @@ class Properties(Mapping):
 
         mapping = dict(application_id=application_id,
                        appmaster_address=appmaster_address,
+                       appmaster_address_file=appmaster_address_file,
                        config_dir=config_dir,
                        container_id=container_id,
                        container_resources=container_resources,
@@ -318,7 +325,11 @@ class Client(_ClientBase):
     java_options : str or list of str, optional
         Additional Java options to forward to the driver. Can also be
         configured by setting the environment variable
-        ``SKEIN_DRIVER_JAVA_OPTIONS``.
+        ``SKEIN_DRIVER_JAVA_OPTIONS``. The driver's gRPC server can be tuned
+        with the system properties ``skein.grpc.worker.threads``,
+        ``skein.grpc.executor.threads``, ``skein.grpc.native.transport`` and
+        ``skein.grpc.flow.control.window``, as in the ``grpc_*`` fields of
+        ``Master``.
 
     Examples
     --------
@@ -18,7 +18,8 @@ from .utils import (implements, format_list, datetime_from_millis, runtime,
 __all__ = ('ApplicationSpec', 'Service', 'Resources', 'File', 'FileType',
            'FileVisibility', 'ACLs', 'Master', 'DelegationTokenProvider', 'Security',
            'ApplicationState', 'FinalStatus', 'ResourceUsageReport',
-           'ApplicationReport', 'ContainerState', 'Container', 'LogLevel', 'NodeState',
+           'ApplicationReport', 'ContainerState', 'Container', 'LogLevel',
+           'GarbageCollector', 'NodeState',
            'NodeReport', 'QueueState', 'Queue', 'ApplicationLogs')
 
 
@@ -1019,6 +1020,28 @@ class LogLevel(Enum):
                'OFF')
 
 
+class GarbageCollector(Enum):
+    """Enum of garbage collectors for the application master JVM.
+
+    Attributes
+    ----------
+    DEFAULT : GarbageCollector
+        Use the JVM's default garbage collector. The default.
+    SERIAL : GarbageCollector
+        The serial collector (``-XX:+UseSerialGC``). Best suited to small
+        heaps with few available cores.
+    PARALLEL : GarbageCollector
+        The parallel collector (``-XX:+UseParallelGC``).
+    G1 : GarbageCollector
+        The garbage-first collector (``-XX:+UseG1GC``). Gives shorter pauses
+        on larger heaps.
+    """
+    _values = ('DEFAULT',
+               'SERIAL',
+               'PARALLEL',
+               'G1')
+
+
 class Master(Specification):
     """Configuration for the Application Master.
 
@@ -1049,15 +1072,49 @@ class Master(Specification):
         The security credentials to use for the application master. If not
         provided, these will be the same as those used by the submitting
         client.
+    heap_fraction : float, optional
+        The fraction of the application master memory to use as the JVM heap,
+        in ``(0, 0.9]``. If not provided, this is 0.6 when no ``script`` is
+        set. When a ``script`` is set its driver shares the container, so the
+        heap is left at 128 MiB by default.
+    gc : str or GarbageCollector, optional
+        The garbage collector to use in the application master JVM. Default
+        is the JVM default.
+    max_direct_memory : int or str, optional
+        The maximum off-heap memory used for network buffers in the
+        application master. Either a number of MiB, or a string with units.
+        If 0, this is half the memory not used by the heap. Default is 0.
+    grpc_worker_threads : int, optional
+        The number of threads handling connections to the application master.
+        If 0, this is the number of processors on the node. Default is 0.
+    grpc_executor_threads : int, optional
+        The maximum number of threads handling requests to the application
+        master. If 0, defaults to 10.
+    grpc_native_transport : bool, optional
+        Whether to use the native epoll transport for connections to the
+        application master, when available. Default is False.
+    grpc_flow_control_window : int, optional
+        The HTTP/2 flow control window for connections to the application
+        master, in bytes. If 0, the gRPC default is used. Default is 0.
     """
     __slots__ = ('resources', 'script', 'files', 'env',
-                 '_log_level', 'log_config', 'security')
+                 '_log_level', 'log_config', 'security',
+                 'heap_fraction', '_gc', '_max_direct_memory',
+                 'grpc_worker_threads', 'grpc_executor_threads',
+                 'grpc_native_transport', 'grpc_flow_control_window')
     _params = ('resources', 'script', 'files', 'env',
-               'log_level', 'log_config', 'security')
+               'log_level', 'log_config', 'security',
+               'heap_fraction', 'gc', 'max_direct_memory',
+               'grpc_worker_threads', 'grpc_executor_threads',
+               'grpc_native_transport', 'grpc_flow_control_window')
     _protobuf_cls = _proto.Master
 
     def __init__(self, resources=None, script="", files=None, env=None,
-                 log_level=LogLevel.INFO, log_config=None, security=None):
+                 log_level=LogLevel.INFO, log_config=None, security=None,
+                 heap_fraction=None, gc=GarbageCollector.DEFAULT,
+                 max_direct_memory=0, grpc_worker_threads=0,
+                 grpc_executor_threads=0, grpc_native_transport=False,
+                 grpc_flow_control_window=0):
         self.resources = (Resources(memory='512 MiB', vcores=1)
                           if resources is None else resources)
         self.script = script
@@ -1069,6 +1126,13 @@ class Master(Specification):
         self.log_config = (File(log_config) if isinstance(log_config, str)
                            else log_config)
         self.security = security
+        self.heap_fraction = heap_fraction
+        self.gc = gc
+        self.max_direct_memory = max_direct_memory
+        self.grpc_worker_threads = grpc_worker_threads
+        self.grpc_executor_threads = grpc_executor_threads
+        self.grpc_native_transport = grpc_native_transport
+        self.grpc_flow_control_window = grpc_flow_control_window
 
         self._validate()
 
@@ -1076,6 +1140,17 @@ class Master(Specification):
         self._check_is_type('resources', Resources)
         self.resources._validate(is_request=True)
 
+        if self.heap_fraction is not None:
+            if not isinstance(self.heap_fraction, (int, float)):
+                raise context.TypeError("heap_fraction must be a number")
+            if not 0 < self.heap_fraction <= 0.9:
+                raise context.ValueError("heap_fraction must be in (0, 0.9]")
+        self._check_is_bounded_int('max_direct_memory')
+        self._check_is_bounded_int('grpc_worker_threads')
+        self._check_is_bounded_int('grpc_executor_threads')
+        self._check_is_type('grpc_native_transport', bool)
+        self._check_is_bounded_int('grpc_flow_control_window')
+
         self._check_is_dict_of('files', str, File)
         for target, f in self.files.items():
             _check_is_filename(target)
@@ -1100,6 +1175,22 @@ class Master(Specification):
     def log_level(self, log_level):
         self._log_level = LogLevel(log_level)
 
+    @property
+    def gc(self):
+        return self._gc
+
+    @gc.setter
+    def gc(self, gc):
+        self._gc = GarbageCollector(gc)
+
+    @property
+    def max_direct_memory(self):
+        return self._max_direct_memory
+
+    @max_direct_memory.setter
+    def max_direct_memory(self, value):
+        self._max_direct_memory = parse_memory(value)
+
     def __repr__(self):
         return 'Master<...>'
 
@@ -1143,13 +1234,21 @@ class Master(Specification):
         security = (Security.from_protobuf(obj.security)
                     if obj.HasField('security')
                     else None)
+        gc = _proto.Master.GarbageCollector.Name(obj.gc)
         return cls(resources=resources,
                    files=files,
                    script=obj.script,
                    env=dict(obj.env),
                    log_level=log_level,
                    log_config=log_config,
-                   security=security)
+                   security=security,
+                   heap_fraction=obj.heap_fraction or None,
+                   gc=gc,
+                   max_direct_memory=obj.max_direct_memory,
+                   grpc_worker_threads=obj.grpc_worker_threads,
+                   grpc_executor_threads=obj.grpc_executor_threads,
+                   grpc_native_transport=obj.grpc_native_transport,
+                   grpc_flow_control_window=obj.grpc_flow_control_window)
 
 
 class DelegationTokenProvider(Specification):
@@ -734,6 +734,7 @@ def test_container_environment(runon, client, has_kerberos_enabled):
     logs = get_logs(client, app_id)
     assert "USER=testuser" in logs
     assert 'SKEIN_APPMASTER_ADDRESS=' in logs
+    assert 'SKEIN_APPMASTER_ADDRESS_FILE=' in logs
     assert 'SKEIN_APPLICATION_ID=%s' % app_id in logs
     if runon == 'service':
         assert 'SKEIN_CONTAINER_ID=service_0' in logs
@@ -10,7 +10,7 @@ from skein.model import (ApplicationSpec, Service, Resources, File,
                          ApplicationState, FinalStatus, FileType, ACLs, Master,
                          DelegationTokenProvider, Container, ApplicationReport,
                          ResourceUsageReport, NodeReport, LogLevel, parse_memory,
-                         Security, Queue, ApplicationLogs)
+                         GarbageCollector, Security, Queue, ApplicationLogs)
 
 
 def indent(s, n):
@@ -273,7 +273,14 @@ def test_security_invariants():
 def test_master():
     m1 = Master(log_level='debug',
                 log_config='/test/path.properties',
-                security=Security.new_credentials())
+                security=Security.new_credentials(),
+                heap_fraction=0.5,
+                gc='g1',
+                max_direct_memory='64 MiB',
+                grpc_worker_threads=8,
+                grpc_executor_threads=32,
+                grpc_native_transport=True,
+                grpc_flow_control_window=4 * 2**20)
     m2 = Master(resources=Resources(memory='1 GiB', vcores=2),
                 script='script',
                 env={'FOO': 'BAR'},
@@ -302,6 +309,25 @@ def test_master_invariants():
     f.log_level = 'info'
     assert f.log_level == LogLevel.INFO
 
+    f = Master(gc='parallel', max_direct_memory='1 GiB')
+    assert f.gc == GarbageCollector.PARALLEL
+    assert f.max_direct_memory == 1024
+
+    assert Master().heap_fraction is None
+    assert Master(heap_fraction=0.9).heap_fraction == 0.9
+    for heap_fraction in [0, 0.95, 1.5]:
+        with pytest.raises(ValueError):
+            Master(heap_fraction=heap_fraction)
+
+    with pytest.raises(TypeError):
+        Master(heap_fraction='0.5')
+
+    with pytest.raises(ValueError):
+        Master(grpc_executor_threads=-1)
+
+    with pytest.raises(TypeError):
+        Master(grpc_native_transport='yes')
+
     with pytest.raises(TypeError):
         Master(script=1)
 